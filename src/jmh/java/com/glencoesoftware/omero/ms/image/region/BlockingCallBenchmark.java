@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the throughput of blocking remote calls made by many
+ * concurrent requests, each on a thread of a fixed pool of platform
+ * threads, as the render scheduler runs requests by default, or on a
+ * virtual thread of its own.  Calls wait for a reply from another thread
+ * either, as a synchronous Ice invocation does, on a monitor or on a
+ * {@link ReentrantLock}.  A virtual thread waiting on a monitor is pinned
+ * to the platform thread carrying it on JDKs before 24, so that no more
+ * calls are in progress at once than there are carriers, one per
+ * processor by default.  Virtual threads require JDK 21 or later; on
+ * earlier JDKs their trials fail.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BlockingCallBenchmark {
+
+    /** Number of concurrent requests, each making one call */
+    private static final int REQUESTS = 256;
+
+    /** Threads the requests are run on, "platform" or "virtual" */
+    @Param({"platform", "virtual"})
+    public String threads;
+
+    /** What calls wait on for their reply, "monitor" or "lock" */
+    @Param({"monitor", "lock"})
+    public String wait;
+
+    /** Number of platform threads; the render scheduler's default */
+    @Param({"8"})
+    public int concurrency;
+
+    /** Latency of a call in microseconds */
+    @Param({"1000"})
+    public long latency;
+
+    private ExecutorService executor;
+
+    private ScheduledExecutorService replier;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if ("virtual".equals(threads)) {
+            executor = VirtualThreads.newThreadPerTaskExecutor("request-");
+            if (executor == null) {
+                throw new IllegalStateException(
+                        "Virtual threads are not supported by this JDK");
+            }
+        } else {
+            executor = Executors.newFixedThreadPool(concurrency);
+        }
+        replier = Executors.newScheduledThreadPool(2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        replier.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void blockingCalls() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        boolean monitor = "monitor".equals(wait);
+        for (int i = 0; i < REQUESTS; i++) {
+            executor.execute(() -> {
+                try {
+                    if (monitor) {
+                        new MonitorCall().invoke();
+                    } else {
+                        new LockCall().invoke();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        done.await();
+    }
+
+    /**
+     * Call whose invoker waits on a monitor for the reply, as a
+     * synchronous Ice invocation does.
+     */
+    private class MonitorCall {
+
+        private boolean replied = false;
+
+        synchronized void invoke() throws InterruptedException {
+            replier.schedule(this::reply, latency, TimeUnit.MICROSECONDS);
+            while (!replied) {
+                wait();
+            }
+        }
+
+        synchronized void reply() {
+            replied = true;
+            notifyAll();
+        }
+    }
+
+    /** Call whose invoker waits on a {@link ReentrantLock} for the reply */
+    private class LockCall {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final Condition repliedCondition = lock.newCondition();
+
+        private boolean replied = false;
+
+        void invoke() throws InterruptedException {
+            lock.lock();
+            try {
+                replier.schedule(
+                        this::reply, latency, TimeUnit.MICROSECONDS);
+                while (!replied) {
+                    repliedCondition.await();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void reply() {
+            lock.lock();
+            try {
+                replied = true;
+                repliedCondition.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
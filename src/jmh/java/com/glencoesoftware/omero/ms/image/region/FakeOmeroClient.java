@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static omero.rtypes.rint;
+import static omero.rtypes.rtime;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import omero.api.IAdminPrx;
+import omero.api.IQueryPrx;
+import omero.api.RenderingEnginePrx;
+import omero.api.ResolutionDescription;
+import omero.api.ServiceFactoryPrx;
+import omero.model.EventI;
+import omero.model.ExperimenterGroupI;
+import omero.model.IObject;
+import omero.model.ImageI;
+import omero.model.PixelsI;
+import omero.sys.EventContext;
+
+/**
+ * OMERO client whose session is answered in process, with no server, by
+ * a query service which finds every Image and a rendering engine which
+ * returns canned image regions of a single resolution, three channel
+ * image.  Remote calls complete after a configurable latency, none by
+ * default, so that benchmarks can measure only the work done by this
+ * microservice around them and load tests can emulate a real server.
+ * Asynchronous calls with a callback return immediately and are completed
+ * once their latency has passed, as those made to a real server are.
+ */
+public class FakeOmeroClient extends omero.client {
+
+    /** Width and height of tiles */
+    public static final int TILE_SIZE = 512;
+
+    /** Completes asynchronous calls once their latency has passed */
+    private static final ScheduledExecutorService completer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "fake-omero-client");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /** Width and height of the image */
+    private final int imageSize;
+
+    /** Latency of every remote call other than rendering, in nanoseconds */
+    private final long callLatency;
+
+    /** Latency of rendering an image region, in nanoseconds */
+    private final long renderLatency;
+
+    /** Canned compressed image region */
+    private final byte[] compressed;
+
+    /** Canned packed image region */
+    private final int[] packed;
+
+    /** Session answering for this client */
+    private final ServiceFactoryPrx session;
+
+    /**
+     * Creates a client for a single tile image whose calls complete
+     * immediately.
+     * @param compressedSize size in bytes of the compressed image regions
+     * the rendering engine returns.
+     */
+    public FakeOmeroClient(int compressedSize) {
+        this(TILE_SIZE, compressedSize, 0, 0);
+    }
+
+    /**
+     * Default constructor.
+     * @param imageSize width and height of the image.
+     * @param compressedSize size in bytes of the compressed image regions
+     * the rendering engine returns.
+     * @param callLatency latency of every remote call other than
+     * rendering, in microseconds.
+     * @param renderLatency latency of rendering an image region, in
+     * microseconds.
+     */
+    public FakeOmeroClient(
+            int imageSize, int compressedSize,
+            long callLatency, long renderLatency) {
+        super("localhost", 4064);
+        this.imageSize = imageSize;
+        this.callLatency = TimeUnit.MICROSECONDS.toNanos(callLatency);
+        this.renderLatency = TimeUnit.MICROSECONDS.toNanos(renderLatency);
+        compressed = new byte[compressedSize];
+        // Noise rather than a gradient so that encoding is not flattered
+        packed = new Random(0).ints(TILE_SIZE * TILE_SIZE)
+                .map(rgb -> rgb | 0xFF000000)
+                .toArray();
+        IQueryPrx queryService = proxy(IQueryPrx.class, this::query);
+        IAdminPrx adminService = proxy(IAdminPrx.class, this::admin);
+        session = proxy(ServiceFactoryPrx.class, (method, args) -> {
+            switch (method.getName()) {
+                case "createRenderingEngine":
+                    delay(callLatency);
+                    return proxy(RenderingEnginePrx.class, this::render);
+                case "getQueryService":
+                    return queryService;
+                case "getAdminService":
+                    return adminService;
+                default:
+                    delay(callLatency);
+                    return null;
+            }
+        });
+    }
+
+    @Override
+    public ServiceFactoryPrx joinSession(String omeroSessionKey) {
+        delay(callLatency);
+        return session;
+    }
+
+    @Override
+    public ServiceFactoryPrx getSession() {
+        return session;
+    }
+
+    /**
+     * Answers a call made on the query service; every Image exists, with
+     * its primary Pixels and their update event loaded.
+     * @param method method called.
+     * @param args arguments of the call.
+     * @return See above.
+     */
+    private Object query(Method method, Object[] args) {
+        String name = method.getName();
+        if (name.startsWith("begin_")) {
+            return begin(name, args, callLatency);
+        }
+        if (!name.startsWith("end_")) {
+            delay(callLatency);
+        }
+        if (!name.endsWith("findAllByQuery")) {
+            return null;
+        }
+        PixelsI pixels = new PixelsI(1L, true);
+        pixels.setSizeX(rint(imageSize));
+        pixels.setSizeY(rint(imageSize));
+        pixels.setSizeZ(rint(1));
+        pixels.setSizeC(rint(3));
+        pixels.setSizeT(rint(1));
+        EventI updateEvent = new EventI(1L, true);
+        updateEvent.setTime(rtime(0L));
+        pixels.getDetails().setUpdateEvent(updateEvent);
+        ImageI image = new ImageI(1L, true);
+        image.addPixels(pixels);
+        image.getDetails().setGroup(new ExperimenterGroupI(1L, false));
+        List<IObject> images = new ArrayList<IObject>();
+        images.add(image);
+        return images;
+    }
+
+    /**
+     * Answers a call made on the admin service; the session belongs to a
+     * single user.
+     * @param method method called.
+     * @param args arguments of the call.
+     * @return See above.
+     */
+    private Object admin(Method method, Object[] args) {
+        String name = method.getName();
+        if (name.startsWith("begin_")) {
+            return begin(name, args, callLatency);
+        }
+        if (!name.startsWith("end_")) {
+            delay(callLatency);
+        }
+        if (!name.endsWith("getEventContext")) {
+            return null;
+        }
+        EventContext eventContext = new EventContext();
+        eventContext.userId = 1L;
+        return eventContext;
+    }
+
+    /**
+     * Answers a call made on the rendering engine.
+     * @param method method called.
+     * @param args arguments of the call.
+     * @return See above.
+     */
+    private Object render(Method method, Object[] args) {
+        String name = method.getName();
+        boolean rendering = name.endsWith("renderCompressed")
+                || name.endsWith("renderAsPackedInt");
+        long latency = rendering? renderLatency : callLatency;
+        if (name.startsWith("begin_")) {
+            return begin(name, args, latency);
+        }
+        if (name.startsWith("end_")) {
+            // Asynchronous calls have completed by the time they are ended,
+            // which answers them as the synchronous call would
+            name = name.substring("end_".length());
+        } else {
+            delay(latency);
+        }
+        switch (name) {
+            case "renderCompressed":
+                return compressed;
+            case "renderAsPackedInt":
+                return packed;
+            case "getTileSize":
+                return new int[] { TILE_SIZE, TILE_SIZE };
+            case "getResolutionLevels":
+                return 1;
+            case "getResolutionDescriptions":
+                ResolutionDescription description =
+                        new ResolutionDescription();
+                description.sizeX = imageSize;
+                description.sizeY = imageSize;
+                return new ArrayList<ResolutionDescription>(
+                        Arrays.asList(description));
+            case "getAvailableModels":
+                return Collections.emptyList();
+            case "lookupRenderingDef":
+                return true;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Begins an asynchronous call.  Calls with a callback return
+     * immediately, the callback being called once the latency of the call
+     * has passed; calls without one return once it has passed.
+     * @param name name of the <code>begin_</code> method called.
+     * @param args arguments of the call.
+     * @param latency latency of the call in nanoseconds.
+     * @return Result of the call, to be passed to its <code>end_</code>
+     * method.
+     */
+    private static Ice.AsyncResult begin(
+            String name, Object[] args, long latency) {
+        String operation = name.substring("begin_".length());
+        Ice.AsyncResult result = proxy(Ice.AsyncResult.class, (m, a) ->
+                m.getName().equals("getOperation")? operation : null);
+        Object last = args == null || args.length == 0?
+                null : args[args.length - 1];
+        if (!(last instanceof Ice.Callback)) {
+            delay(latency);
+            return result;
+        }
+        Ice.Callback callback = (Ice.Callback) last;
+        if (latency > 0) {
+            completer.schedule(
+                    () -> callback.__completed(result),
+                    latency, TimeUnit.NANOSECONDS);
+        } else {
+            callback.__completed(result);
+        }
+        return result;
+    }
+
+    /**
+     * Emulates the latency of a remote call.
+     * @param nanos latency in nanoseconds.
+     */
+    private static void delay(long nanos) {
+        if (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    /**
+     * Functional form of {@link InvocationHandler} for calls which are
+     * not methods of {@link Object}.
+     */
+    private interface Answer {
+        Object answer(Method method, Object[] args);
+    }
+
+    /**
+     * Creates a proxy answering calls with an {@link Answer}, returning the
+     * default value of primitive return types the answer leaves
+     * <code>null</code>.
+     * @param type interface to proxy.
+     * @param answer answer to calls.
+     * @return See above.
+     */
+    private static <T> T proxy(Class<T> type, Answer answer) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return type.getSimpleName() + "@"
+                                + Integer.toHexString(
+                                        System.identityHashCode(proxy));
+                }
+            }
+            Object value = answer.answer(method, args);
+            Class<?> returnType = method.getReturnType();
+            if (value != null || !returnType.isPrimitive()
+                    || returnType == void.class) {
+                return value;
+            }
+            if (returnType == boolean.class) {
+                return false;
+            }
+            if (returnType == long.class) {
+                return 0L;
+            }
+            if (returnType == float.class) {
+                return 0f;
+            }
+            if (returnType == double.class) {
+                return 0d;
+            }
+            return 0;
+        };
+        return type.cast(Proxy.newProxyInstance(
+                FakeOmeroClient.class.getClassLoader(),
+                new Class<?>[] { type }, handler));
+    }
+}
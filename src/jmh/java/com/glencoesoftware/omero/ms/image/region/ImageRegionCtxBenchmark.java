@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+
+/**
+ * Benchmarks of the per request handling of image region parameters:
+ * parsing them from the request, passing them between verticles and
+ * parsing channel colors.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageRegionCtxBenchmark {
+
+    /** Parameters of a typical tile request from OMERO.iviewer */
+    private MultiMap tileParams;
+
+    /** Parameters of a typical region request from OMERO.web */
+    private MultiMap regionParams;
+
+    /** Context parsed from {@link #tileParams} */
+    private ImageRegionCtx tileCtx;
+
+    /** {@link #tileCtx} as encoded by the previous event bus codec */
+    private String tileJson;
+
+    /** Event bus codec of image region contexts */
+    private final ImageRegionCtxCodec codec = new ImageRegionCtxCodec();
+
+    /** {@link #tileCtx} as encoded by {@link #codec} */
+    private Buffer tileWire;
+
+    @Setup
+    public void setup() {
+        tileParams = params();
+        tileParams.add("tile", "2,12,7,512,512");
+        tileParams.add("format", "jpeg");
+        regionParams = params();
+        regionParams.add("region", "1024,2048,1536,1024");
+        regionParams.add("q", "0.9");
+        tileCtx = new ImageRegionCtx(tileParams, "session");
+        tileJson = Json.encode(tileCtx);
+        tileWire = Buffer.buffer();
+        codec.encodeToWire(tileWire, tileCtx);
+    }
+
+    private MultiMap params() {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "123");
+        params.add("z", "4");
+        params.add("t", "0");
+        params.add("c", "1|100:4095$FF0000,2|0:65535$00FF00,"
+                + "-3|1755:51199$0000FF,4|0:1000$FFFF00");
+        params.add("m", "c");
+        params.add("maps", "[{\"reverse\":{\"enabled\":false}}]");
+        return params;
+    }
+
+    @Benchmark
+    public ImageRegionCtx parseTile() {
+        return new ImageRegionCtx(tileParams, "session");
+    }
+
+    @Benchmark
+    public ImageRegionCtx parseRegion() {
+        return new ImageRegionCtx(regionParams, "session");
+    }
+
+    @Benchmark
+    public String cacheKey() {
+        return tileCtx.cacheKey();
+    }
+
+    @Benchmark
+    public ImageRegionCtx jsonRoundTrip() {
+        return Json.decodeValue(Json.encode(tileCtx), ImageRegionCtx.class);
+    }
+
+    @Benchmark
+    public ImageRegionCtx jsonDecode() {
+        return Json.decodeValue(tileJson, ImageRegionCtx.class);
+    }
+
+    @Benchmark
+    public ImageRegionCtx codecRoundTrip() {
+        Buffer buffer = Buffer.buffer(256);
+        codec.encodeToWire(buffer, tileCtx);
+        return codec.decodeFromWire(0, buffer);
+    }
+
+    @Benchmark
+    public ImageRegionCtx codecDecode() {
+        return codec.decodeFromWire(0, tileWire);
+    }
+
+    @Benchmark
+    public ImageRegionCtx codecLocal() {
+        return codec.transform(tileCtx);
+    }
+
+    @Benchmark
+    public int[] splitHTMLColorShort() {
+        return ChannelSettings.splitHTMLColor("0F8");
+    }
+
+    @Benchmark
+    public int[] splitHTMLColorLong() {
+        return ChannelSettings.splitHTMLColor("00FF00");
+    }
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Cookie;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * End to end load test of the microservice.  Deploys
+ * {@link ImageRegionMicroserviceVerticle} in process against a stub
+ * OMERO.web session store, which takes the OMERO session key from the
+ * <code>sessionid</code> cookie, and a stub OMERO server, a
+ * {@link FakeOmeroClient} whose calls complete after a configurable
+ * latency.  Simulated users then pan a viewport across a large image,
+ * requesting the tiles it covers concurrently after each move, and the
+ * throughput and latency percentiles of the tile requests are reported.
+ * Several nodes can be deployed, on consecutive ports, sharing the event
+ * bus of a single Vert.x instance as a cluster; tile requests are then
+ * spread over them round robin, as by a load balancer.
+ * <p>
+ * Arguments are <code>name=value</code> pairs; see {@link #DEFAULTS}.
+ * The process exits with status 1 if the share of responses other than
+ * HTTP 200 exceeds <code>max-error-rate</code>, by default if there are
+ * any, or, when <code>max-p99-ms</code> is given, if the 99th percentile
+ * latency exceeds it, so that the load test can gate continuous
+ * integration.
+ * </p>
+ */
+public class LoadTest {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(LoadTest.class);
+
+    /** Arguments and their default values */
+    private static final String[][] DEFAULTS = {
+        // Duration of the measurement and of the warmup before it, seconds
+        {"duration", "30"},
+        {"warmup", "10"},
+        // Simulated users and the pause between their moves, milliseconds
+        {"users", "16"},
+        {"think-ms", "50"},
+        // Size in pixels of each user's viewport and of the square image
+        {"viewport", "1920x1080"},
+        {"image-size", "65536"},
+        // Output format of the tiles; "jpeg" is compressed by the server
+        {"format", "jpeg"},
+        // Latency of remote calls and of rendering a tile, microseconds
+        {"call-latency-us", "500"},
+        {"render-latency-us", "5000"},
+        // Size in bytes of the compressed tiles returned by the server
+        {"tile-bytes", "32768"},
+        // HTTP port of the first node and number of nodes, on consecutive
+        // ports, which route requests to each other by image unless
+        // "cluster" is disabled in the configuration
+        {"port", "18080"},
+        {"nodes", "1"},
+        // Optional JSON configuration merged over the defaults
+        {"config", ""},
+        // Share of responses other than HTTP 200, between 0 and 1, above
+        // which the test fails
+        {"max-error-rate", "0"},
+        // Optional 99th percentile latency above which the test fails
+        {"max-p99-ms", ""}
+    };
+
+    /** Rendering settings of a three channel image */
+    private static final String CHANNELS =
+            "1|0:255$FF0000,2|0:255$00FF00,3|0:255$0000FF";
+
+    private final Map<String, String> options;
+
+    private final Vertx vertx = Vertx.vertx();
+
+    /** Columns and rows of tiles each viewport covers */
+    private int columns;
+
+    private int rows;
+
+    private HttpClient client;
+
+    /** Node the next tile request is sent to */
+    private int nextNode;
+
+    /** Whether responses are being recorded */
+    private volatile boolean recording;
+
+    /** Whether users should keep moving */
+    private volatile boolean running = true;
+
+    /** Latencies of the recorded responses, nanoseconds */
+    private long[] latencies = new long[1 << 16];
+
+    /** Number of recorded latencies */
+    private int count;
+
+    /** Recorded responses by status code; 0 for failed requests */
+    private final Map<Integer, Integer> statuses =
+            new TreeMap<Integer, Integer>();
+
+    private LoadTest(Map<String, String> options) {
+        this.options = options;
+    }
+
+    /**
+     * Runs the load test.
+     * @param args <code>name=value</code> pairs overriding {@link #DEFAULTS}.
+     * @throws Exception If the microservice cannot be deployed.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String[] option : DEFAULTS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2 || !options.containsKey(option[0])) {
+                System.err.println("Unknown argument: " + arg);
+                System.exit(2);
+            }
+            options.put(option[0], option[1]);
+        }
+        System.exit(new LoadTest(options).run()? 0 : 1);
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    /**
+     * Deploys the microservice, drives load against it and reports.
+     * @return Whether the latency target, if any, was met.
+     * @throws Exception If the microservice cannot be deployed.
+     */
+    private boolean run() throws Exception {
+        int port = intOption("port");
+        JsonObject config = new JsonObject()
+                .put("port", port)
+                .put("debug", false)
+                .put("omero", new JsonObject()
+                        .put("host", "localhost")
+                        .put("port", 4064));
+        if (!options.get("config").isEmpty()) {
+            config.mergeIn(new JsonObject(new String(Files.readAllBytes(
+                    Paths.get(options.get("config"))), "UTF-8")));
+            config.put("port", port);
+        }
+        int imageSize = intOption("image-size");
+        int tileBytes = intOption("tile-bytes");
+        long callLatency = Long.parseLong(options.get("call-latency-us"));
+        long renderLatency = Long.parseLong(options.get("render-latency-us"));
+        int nodes = intOption("nodes");
+        for (int node = 0; node < nodes; node++) {
+            JsonObject nodeConfig = config.copy().put("port", port + node);
+            if (nodes > 1) {
+                JsonObject cluster =
+                        config.getJsonObject("cluster", new JsonObject());
+                nodeConfig.put("cluster", new JsonObject()
+                        .put("enabled", true)
+                        .put("node-id", "node-" + node)
+                        .mergeIn(cluster));
+            }
+            CompletableFuture<String> deployed =
+                    new CompletableFuture<String>();
+            vertx.deployVerticle(
+                    new StubMicroserviceVerticle(() -> new FakeOmeroClient(
+                            imageSize, tileBytes, callLatency,
+                            renderLatency)),
+                    new DeploymentOptions().setConfig(nodeConfig),
+                    result -> {
+                        if (result.succeeded()) {
+                            deployed.complete(result.result());
+                        } else {
+                            deployed.completeExceptionally(result.cause());
+                        }
+                    });
+            deployed.get(60, TimeUnit.SECONDS);
+        }
+
+        String[] viewport = options.get("viewport").split("x");
+        columns = (Integer.parseInt(viewport[0]) - 1)
+                / FakeOmeroClient.TILE_SIZE + 1;
+        rows = (Integer.parseInt(viewport[1]) - 1)
+                / FakeOmeroClient.TILE_SIZE + 1;
+        int users = intOption("users");
+        CountDownLatch stopped = new CountDownLatch(users);
+        // Users share a single context, that of the HTTP client
+        vertx.deployVerticle(new AbstractVerticle() {
+            @Override
+            public void start() {
+                client = vertx.createHttpClient(new HttpClientOptions()
+                        .setDefaultHost("localhost")
+                        .setDefaultPort(port)
+                        .setKeepAlive(true)
+                        .setMaxPoolSize(users * columns * rows));
+                Random random = new Random(0);
+                int tiles = imageSize / FakeOmeroClient.TILE_SIZE;
+                for (int i = 0; i < users; i++) {
+                    new User("load-test-" + i, tiles, random.nextLong(),
+                            stopped::countDown).move();
+                }
+            }
+        });
+
+        long warmup = Long.parseLong(options.get("warmup"));
+        long duration = Long.parseLong(options.get("duration"));
+        log.warn("Warming up for {}s with {} users", warmup, users);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        recording = true;
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        recording = false;
+        long elapsed = System.nanoTime() - start;
+        running = false;
+        stopped.await(60, TimeUnit.SECONDS);
+        CompletableFuture<Void> closed = new CompletableFuture<Void>();
+        vertx.close(result -> closed.complete(null));
+        closed.get(60, TimeUnit.SECONDS);
+        return report(elapsed);
+    }
+
+    /**
+     * Records the outcome of a tile request.
+     * @param status HTTP status code or 0 if the request failed.
+     * @param latency time from sending the request to receiving the whole
+     * response, nanoseconds.
+     */
+    private synchronized void record(int status, long latency) {
+        if (!recording) {
+            return;
+        }
+        statuses.merge(status, 1, Integer::sum);
+        if (status != 200) {
+            return;
+        }
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latency;
+    }
+
+    /**
+     * Prints throughput, responses by status code, the error rate and
+     * latency percentiles.
+     * @param elapsed duration of the measurement, nanoseconds.
+     * @return Whether the error rate and latency targets were met.
+     */
+    private synchronized boolean report(long elapsed) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        double seconds = elapsed / 1e9;
+        int requests = statuses.values().stream().mapToInt(i -> i).sum();
+        System.out.printf("Requests:   %d in %.1fs (%.1f/s)%n",
+                requests, seconds, requests / seconds);
+        System.out.printf("Succeeded:  %d (%.1f/s)%n", count, count / seconds);
+        System.out.println("Statuses:   " + statuses);
+        double errorRate = requests == 0?
+                Double.NaN : (double) (requests - count) / requests;
+        System.out.printf("Errors:     %d (rate %.4f)%n",
+                requests - count, errorRate);
+        System.out.printf("Latency ms: p50 %.2f  p99 %.2f  p999 %.2f  "
+                + "max %.2f%n",
+                percentile(sorted, 0.5), percentile(sorted, 0.99),
+                percentile(sorted, 0.999), percentile(sorted, 1.0));
+        boolean passed = true;
+        String maxErrorRate = options.get("max-error-rate");
+        if (requests == 0
+                || errorRate > Double.parseDouble(maxErrorRate)) {
+            System.out.printf("FAILED: error rate %.4f exceeds %s%n",
+                    errorRate, maxErrorRate);
+            passed = false;
+        }
+        String maxP99 = options.get("max-p99-ms");
+        if (maxP99.isEmpty()) {
+            return passed;
+        }
+        double p99 = percentile(sorted, 0.99);
+        if (count == 0 || p99 > Double.parseDouble(maxP99)) {
+            System.out.printf("FAILED: p99 %.2fms exceeds %sms%n", p99, maxP99);
+            passed = false;
+        }
+        return passed;
+    }
+
+    /**
+     * @param sorted sorted latencies, nanoseconds.
+     * @param quantile quantile between 0 and 1.
+     * @return Latency at the quantile by the nearest rank method,
+     * milliseconds, or <code>NaN</code> if there are no latencies.
+     */
+    private static double percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int rank = (int) Math.ceil(quantile * sorted.length);
+        return sorted[Math.max(rank, 1) - 1] / 1e6;
+    }
+
+    /**
+     * Simulated user panning a viewport across the image one tile at a
+     * time in a random direction, as a viewer does when dragged.
+     */
+    private final class User {
+
+        private final String sessionKey;
+
+        private final int tiles;
+
+        private final Random random;
+
+        private final Runnable onStop;
+
+        private int column;
+
+        private int row;
+
+        User(String sessionKey, int tiles, long seed, Runnable onStop) {
+            this.sessionKey = sessionKey;
+            this.tiles = tiles;
+            this.random = new Random(seed);
+            this.onStop = onStop;
+            column = random.nextInt(Math.max(tiles - columns, 1));
+            row = random.nextInt(Math.max(tiles - rows, 1));
+        }
+
+        /**
+         * Moves the viewport and requests the tiles it now covers.
+         */
+        void move() {
+            if (!running) {
+                onStop.run();
+                return;
+            }
+            column = step(column, tiles - columns);
+            row = step(row, tiles - rows);
+            AtomicInteger remaining =
+                    new AtomicInteger(columns * rows);
+            Handler<Void> done = v -> {
+                if (remaining.decrementAndGet() == 0) {
+                    vertx.setTimer(Math.max(intOption("think-ms"), 1),
+                            timerId -> move());
+                }
+            };
+            for (int x = column; x < column + columns; x++) {
+                for (int y = row; y < row + rows; y++) {
+                    request(x, y, done);
+                }
+            }
+        }
+
+        private int step(int position, int max) {
+            return Math.min(Math.max(
+                    position + random.nextInt(3) - 1, 0), Math.max(max, 0));
+        }
+
+        private void request(int x, int y, Handler<Void> done) {
+            long start = System.nanoTime();
+            int port = intOption("port") + nextNode;
+            nextNode = (nextNode + 1) % intOption("nodes");
+            String uri = String.format(
+                    "/webgateway/render_image_region/1/0/0/"
+                    + "?tile=0,%d,%d,%d,%d&c=%s&m=c&format=%s",
+                    x, y, FakeOmeroClient.TILE_SIZE,
+                    FakeOmeroClient.TILE_SIZE, encode(CHANNELS),
+                    options.get("format"));
+            HttpClientRequest request = client.get(port, "localhost", uri,
+                    response -> response.bodyHandler(body -> {
+                        record(response.statusCode(),
+                                System.nanoTime() - start);
+                        done.handle(null);
+                    }));
+            request.exceptionHandler(t -> {
+                log.debug("Request failed", t);
+                record(0, System.nanoTime() - start);
+                done.handle(null);
+            });
+            request.putHeader("Cookie", "sessionid=" + sessionKey);
+            request.setTimeout(TimeUnit.SECONDS.toMillis(30));
+            request.end();
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Microservice against a stub OMERO server whose OMERO.web session
+     * store maps each <code>sessionid</code> cookie directly to an OMERO
+     * session key of the same value.
+     */
+    public static class StubMicroserviceVerticle
+            extends ImageRegionMicroserviceVerticle {
+
+        private final Supplier<omero.client> clientFactory;
+
+        public StubMicroserviceVerticle(
+                Supplier<omero.client> clientFactory) {
+            this.clientFactory = clientFactory;
+        }
+
+        @Override
+        protected ImageRegionVerticle createImageRegionVerticle() {
+            return new ImageRegionVerticle("localhost", 4064, clientFactory);
+        }
+
+        @Override
+        protected Handler<RoutingContext> createSessionHandler() {
+            return event -> {
+                Cookie cookie = event.getCookie("sessionid");
+                if (cookie == null) {
+                    event.response().setStatusCode(403).end();
+                    return;
+                }
+                event.put("omero.session_key", cookie.getValue());
+                event.next();
+            };
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.MultiMap;
+import omero.ServerError;
+
+/**
+ * Benchmark of {@link ImageRegionRequestHandler#renderImageRegion}
+ * against a {@link FakeOmeroClient}, with cached image metadata, a pooled
+ * rendering engine and a tile cache which always misses; the steady state
+ * of a viewer panning over an image.  Measures the overhead of this
+ * microservice per image region and, for formats other than JPEG, the cost
+ * of encoding.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RenderImageRegionBenchmark {
+
+    /** Output format of the image region */
+    @Param({"jpeg", "png"})
+    public String format;
+
+    /**
+     * Whether successive requests alternate channel settings, requiring
+     * the rendering engine's settings to be changed for each
+     */
+    @Param({"false", "true"})
+    public boolean alternate;
+
+    private FakeOmeroClient client;
+
+    private RenderingEnginePool enginePool;
+
+    private ImageMetadataCache metadataCache;
+
+    private RenderingMetadataCache renderingMetadataCache;
+
+    private TileCache tileCache;
+
+    private ImageEncoder encoder;
+
+    private ZProjector projector;
+
+    private ImageMetadata image;
+
+    private ImageRegionCtx[] contexts;
+
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        client = new FakeOmeroClient(64 * 1024);
+        enginePool = new RenderingEnginePool(8, 60000L);
+        metadataCache = new ImageMetadataCache(100, 3600);
+        renderingMetadataCache = new RenderingMetadataCache(100);
+        tileCache = new TileCache(0) {
+            @Override
+            public byte[] get(String key) {
+                return null;
+            }
+        };
+        encoder = new ImageEncoder(new PngEncoder(1, PngEncoder.Filter.SUB));
+        projector = new ZProjector(1);
+        image = new ImageMetadata(
+                1L, 1L, FakeOmeroClient.TILE_SIZE, FakeOmeroClient.TILE_SIZE,
+                1, 3, 1L, 1L, 0L, 1L);
+        contexts = new ImageRegionCtx[] {
+                context("1|0:255$FF0000,2|0:255$00FF00,3|0:255$0000FF"),
+                context("1|0:4095$FF0000,-2|0:255$00FF00,3|10:200$00FFFF")
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        projector.close();
+        enginePool.close();
+        client.closeSession();
+    }
+
+    private ImageRegionCtx context(String channels) {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "1");
+        params.add("z", "0");
+        params.add("t", "0");
+        params.add("tile", "0,0,0," + FakeOmeroClient.TILE_SIZE + ","
+                + FakeOmeroClient.TILE_SIZE);
+        params.add("c", channels);
+        params.add("m", "c");
+        params.add("format", format);
+        return new ImageRegionCtx(params, "session");
+    }
+
+    @Benchmark
+    public byte[] renderImageRegion() throws ServerError {
+        ImageRegionCtx ctx = contexts[0];
+        if (alternate) {
+            ctx = contexts[next];
+            next ^= 1;
+        }
+        ImageRegionRequestHandler handler = new ImageRegionRequestHandler(
+                ctx, enginePool, metadataCache, renderingMetadataCache,
+                tileCache, false, encoder, projector, cacheKey -> false);
+        return IceFutures.await(handler.renderImageRegion(
+                client, image, Runnable::run, Runnable::run));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+
+/**
+ * Event bus codec for rendered image regions.  Unlike the built in
+ * {@link Buffer} codec, which copies the buffer for every local delivery,
+ * the buffer is passed by reference within a single JVM; neither sender
+ * nor receiver may modify it.  Across a clustered event bus the buffer is
+ * written with its length.
+ */
+public class BufferReferenceCodec implements MessageCodec<Buffer, Buffer> {
+
+    /** Name the codec is registered under */
+    public static final String NAME = "BufferReference";
+
+    /**
+     * Wraps an image region without copying it.
+     * @param imageRegion rendered image region.
+     * @return See above.
+     */
+    public static Buffer wrap(byte[] imageRegion) {
+        return Buffer.buffer(Unpooled.wrappedBuffer(imageRegion));
+    }
+
+    @Override
+    public void encodeToWire(Buffer buffer, Buffer imageRegion) {
+        buffer.appendInt(imageRegion.length());
+        buffer.appendBuffer(imageRegion);
+    }
+
+    @Override
+    public Buffer decodeFromWire(int pos, Buffer buffer) {
+        int length = buffer.getInt(pos);
+        pos += 4;
+        return buffer.getBuffer(pos, pos + length);
+    }
+
+    @Override
+    public Buffer transform(Buffer imageRegion) {
+        return imageRegion;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+}
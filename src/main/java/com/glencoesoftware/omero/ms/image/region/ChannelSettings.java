@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Channel rendering settings of an image region as specified by the
+ * <code>c</code> query parameter:
+ * "-1|0:65535$0000FF,2|1755:51199$00FF00,3|3218:26623$FF0000".  Settings
+ * are parsed in a single pass into primitive arrays and are immutable, so
+ * that the settings parsed from a specification can be shared by every
+ * request which repeats it, as each tile request of a viewer does.
+ */
+public final class ChannelSettings {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(ChannelSettings.class);
+
+    /** Number of lookups which found parsed settings */
+    private static final LongAdder hits =
+            MetricsRegistry.DEFAULT.cacheLookups("channel-settings", true);
+
+    /** Number of lookups which parsed the specification */
+    private static final LongAdder misses =
+            MetricsRegistry.DEFAULT.cacheLookups("channel-settings", false);
+
+    /** Parsed settings by specification */
+    private static final Cache<String, ChannelSettings> cache =
+            Caffeine.newBuilder().maximumSize(1024).build();
+
+    /** Specification the settings were parsed from */
+    private final String spec;
+
+    /** Channel indexes, from 1; negative if the channel is inactive */
+    private final int[] channels;
+
+    /**
+     * Window start and end of each channel, in pairs; <code>NaN</code> if
+     * the window was not specified
+     */
+    private final float[] windows;
+
+    /**
+     * Red, green, blue and alpha components of the color of each channel;
+     * <code>null</code> if the color was not specified or is not valid
+     */
+    private final int[][] colors;
+
+    /** Canonical form of the settings of the active channels */
+    private final String cacheKey;
+
+    /**
+     * Parses a specification.
+     * @param spec specification to parse.
+     * @throws IllegalArgumentException If the specification is malformed.
+     */
+    private ChannelSettings(String spec) {
+        this.spec = spec;
+        int size = 1;
+        for (int i = 0; i < spec.length(); i++) {
+            if (spec.charAt(i) == ',') {
+                size++;
+            }
+        }
+        channels = new int[size];
+        windows = new float[size * 2];
+        colors = new int[size][];
+        int start = 0;
+        for (int idx = 0; idx < size; idx++) {
+            int end = spec.indexOf(',', start);
+            if (end < 0) {
+                end = spec.length();
+            }
+            parseChannel(idx, start, end);
+            start = end + 1;
+        }
+        cacheKey = canonicalForm();
+    }
+
+    /**
+     * Retrieves the settings of a specification, parsing it only if it
+     * has not been parsed recently.
+     * @param spec specification of the <code>c</code> query parameter.
+     * @return See above or <code>null</code> if <code>spec</code> is
+     * <code>null</code>.
+     * @throws IllegalArgumentException If the specification is malformed.
+     */
+    @JsonCreator
+    public static ChannelSettings parse(String spec) {
+        if (spec == null) {
+            return null;
+        }
+        ChannelSettings settings = cache.getIfPresent(spec);
+        if (settings != null) {
+            hits.increment();
+            return settings;
+        }
+        misses.increment();
+        settings = new ChannelSettings(spec);
+        cache.put(spec, settings);
+        return settings;
+    }
+
+    /**
+     * Parses the settings of a single channel:
+     * "[-]index[|start:end][$color]".
+     * @param idx index of the channel in the specification.
+     * @param start offset of the channel's settings in the specification.
+     * @param end offset of the end of the channel's settings.
+     */
+    private void parseChannel(int idx, int start, int end) {
+        int dollar = spec.indexOf('$', start);
+        if (dollar < 0 || dollar > end) {
+            dollar = end;
+        } else {
+            colors[idx] = splitHTMLColor(spec, dollar + 1, end);
+        }
+        int bar = spec.indexOf('|', start);
+        if (bar < 0 || bar > dollar) {
+            bar = dollar;
+        }
+        channels[idx] = parseInt(spec, start, bar);
+        windows[idx * 2] = Float.NaN;
+        windows[idx * 2 + 1] = Float.NaN;
+        int colon = spec.indexOf(':', bar);
+        if (bar < dollar && colon > bar && colon < dollar) {
+            windows[idx * 2] =
+                    Float.parseFloat(spec.substring(bar + 1, colon));
+            windows[idx * 2 + 1] =
+                    Float.parseFloat(spec.substring(colon + 1, dollar));
+        }
+    }
+
+    /**
+     * @return Canonical form of the settings of the active channels, in
+     * channel order, for use in cache keys.
+     */
+    private String canonicalForm() {
+        int[] order = new int[channels.length];
+        int active = 0;
+        for (int idx = 0; idx < channels.length; idx++) {
+            if (channels[idx] > 0) {
+                order[active++] = idx;
+            }
+        }
+        // Insertion sort by channel; there are only ever a few channels
+        for (int i = 1; i < active; i++) {
+            int idx = order[i];
+            int j = i - 1;
+            for (; j >= 0 && channels[order[j]] > channels[idx]; j--) {
+                order[j + 1] = order[j];
+            }
+            order[j + 1] = idx;
+        }
+        StringBuilder key = new StringBuilder(active * 24);
+        for (int i = 0; i < active; i++) {
+            int idx = order[i];
+            key.append(channels[idx]).append('|');
+            if (hasWindow(idx)) {
+                key.append(windowStart(idx)).append(':')
+                    .append(windowEnd(idx));
+            }
+            int[] rgba = colors[idx];
+            if (rgba != null) {
+                key.append('$');
+                for (int component : rgba) {
+                    key.append(Character.toUpperCase(
+                            Character.forDigit(component >> 4, 16)));
+                    key.append(Character.toUpperCase(
+                            Character.forDigit(component & 0xF, 16)));
+                }
+            }
+            key.append(',');
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return Number of channels specified.
+     */
+    public int size() {
+        return channels.length;
+    }
+
+    /**
+     * @param idx index of the channel in the specification.
+     * @return Channel index, from 1; negative if the channel is inactive.
+     */
+    public int channel(int idx) {
+        return channels[idx];
+    }
+
+    /**
+     * @param channel channel index, from 1; negative for inactive.
+     * @return Index of the channel in the specification or -1 if it is not
+     * specified.
+     */
+    public int indexOf(int channel) {
+        for (int idx = 0; idx < channels.length; idx++) {
+            if (channels[idx] == channel) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param idx index of the channel in the specification.
+     * @return Whether the window of the channel was specified.
+     */
+    public boolean hasWindow(int idx) {
+        return !Float.isNaN(windows[idx * 2]);
+    }
+
+    /**
+     * @param idx index of the channel in the specification.
+     * @return Window start of the channel; <code>NaN</code> if not
+     * specified.
+     */
+    public float windowStart(int idx) {
+        return windows[idx * 2];
+    }
+
+    /**
+     * @param idx index of the channel in the specification.
+     * @return Window end of the channel; <code>NaN</code> if not specified.
+     */
+    public float windowEnd(int idx) {
+        return windows[idx * 2 + 1];
+    }
+
+    /**
+     * @param idx index of the channel in the specification.
+     * @return Red, green, blue and alpha components of the color of the
+     * channel, which must not be modified, or <code>null</code> if the
+     * color was not specified or is not valid.
+     */
+    public int[] rgba(int idx) {
+        return colors[idx];
+    }
+
+    /**
+     * @return Canonical form of the settings of the active channels, in
+     * channel order and regardless of the case of colors, for use in cache
+     * keys.
+     */
+    public String cacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * @return Specification the settings were parsed from.
+     */
+    @JsonValue
+    @Override
+    public String toString() {
+        return spec;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ChannelSettings
+                && spec.equals(((ChannelSettings) obj).spec);
+    }
+
+    @Override
+    public int hashCode() {
+        return spec.hashCode();
+    }
+
+    /**
+     * Splits a hex color into its red, green, blue and alpha components.
+     * <ul>
+     * <li>abc      -&gt; (0xAA, 0xBB, 0xCC, 0xFF)</li>
+     * <li>abcd     -&gt; (0xAA, 0xBB, 0xCC, 0xDD)</li>
+     * <li>abbccd   -&gt; (0xAB, 0xBC, 0xCD, 0xFF)</li>
+     * <li>abbccdde -&gt; (0xAB, 0xBC, 0xCD, 0xDE)</li>
+     * </ul>
+     * @param color characters to split.
+     * @return rgba or <code>null</code> if the color is not valid.
+     */
+    static int[] splitHTMLColor(String color) {
+        return splitHTMLColor(color, 0, color.length());
+    }
+
+    /**
+     * Splits part of a string, a hex color, into its red, green, blue and
+     * alpha components; see {@link #splitHTMLColor(String)}.
+     * @param s string containing the color.
+     * @param start offset of the color.
+     * @param end offset of the end of the color.
+     * @return rgba or <code>null</code> if the color is not valid.
+     */
+    static int[] splitHTMLColor(String s, int start, int end) {
+        int length = end - start;
+        int[] rgba = new int[] { 0, 0, 0, 0xFF };
+        int components;
+        if (length == 3 || length == 4) {
+            components = length;
+            for (int i = 0; i < components; i++) {
+                int digit = Character.digit(s.charAt(start + i), 16);
+                if (digit < 0) {
+                    return invalidColor(s, start, end);
+                }
+                rgba[i] = digit * 0x11;
+            }
+        } else if (length == 6 || length == 8) {
+            components = length / 2;
+            for (int i = 0; i < components; i++) {
+                int high = Character.digit(s.charAt(start + i * 2), 16);
+                int low = Character.digit(s.charAt(start + i * 2 + 1), 16);
+                if (high < 0 || low < 0) {
+                    return invalidColor(s, start, end);
+                }
+                rgba[i] = high << 4 | low;
+            }
+        } else {
+            return invalidColor(s, start, end);
+        }
+        return rgba;
+    }
+
+    private static int[] invalidColor(String s, int start, int end) {
+        log.error("Error while parsing color: {}", s.substring(start, end));
+        return null;
+    }
+
+    /**
+     * Parses part of a string as a signed decimal integer without
+     * creating a substring.
+     * @param s string containing the integer.
+     * @param start offset of the integer.
+     * @param end offset of the end of the integer.
+     * @return See above.
+     * @throws NumberFormatException If the part of the string is not a
+     * decimal integer which fits in an <code>int</code>.
+     */
+    static int parseInt(String s, int start, int end) {
+        boolean negative = start < end && s.charAt(start) == '-';
+        int i = negative? start + 1 : start;
+        if (i == end) {
+            throw new NumberFormatException(
+                    "Not an integer: " + s.substring(start, end));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE) {
+                throw new NumberFormatException(
+                        "Not an integer: " + s.substring(start, end));
+            }
+            value = value * 10 + digit;
+        }
+        value = negative? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException(
+                    "Not an integer: " + s.substring(start, end));
+        }
+        return (int) value;
+    }
+}
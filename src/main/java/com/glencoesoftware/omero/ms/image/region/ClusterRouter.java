@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+
+/**
+ * Routes render requests for an image to the node of a cluster which owns
+ * the image, chosen by consistent hashing on its id, so that the rendering
+ * engines, metadata and tiles of each image are loaded and cached once
+ * per cluster rather than once per node.  Nodes are the instances of this
+ * microservice sharing an event bus, whether clustered or, for testing,
+ * that of a single Vert.x instance.  Each node announces itself
+ * periodically and is removed from the ring when it leaves, once it has
+ * not been heard from for a timeout or as soon as a request sent to it
+ * finds no handler.
+ */
+public class ClusterRouter {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(ClusterRouter.class);
+
+    /** Address nodes announce themselves on */
+    public static final String HEARTBEAT_EVENT =
+            "omero.image_region.cluster.heartbeat";
+
+    /** Address nodes announce their departure on */
+    public static final String LEAVE_EVENT =
+            "omero.image_region.cluster.leave";
+
+    /** Vert.x instance whose event bus the nodes share */
+    private final Vertx vertx;
+
+    /** Id of this node */
+    private final String nodeId;
+
+    /** Interval in milliseconds at which this node announces itself */
+    private final long heartbeatInterval;
+
+    /**
+     * Time in milliseconds after which a node which has not announced
+     * itself is removed
+     */
+    private final long nodeTimeout;
+
+    /** Ring of the nodes known to be up */
+    private final ConsistentHashRing ring;
+
+    /** Time in milliseconds each other node last announced itself */
+    private final Map<String, Long> lastSeen =
+            new ConcurrentHashMap<String, Long>();
+
+    private MessageConsumer<String> heartbeatConsumer;
+
+    private MessageConsumer<String> leaveConsumer;
+
+    private long timerId = -1;
+
+    /**
+     * Default constructor.
+     * @param vertx Vert.x instance whose event bus the nodes share.
+     * @param nodeId id of this node.
+     * @param virtualNodes number of points on the ring of each node.
+     * @param heartbeatInterval interval in milliseconds at which this node
+     * announces itself.
+     * @param nodeTimeout time in milliseconds after which a node which has
+     * not announced itself is removed.
+     */
+    public ClusterRouter(
+            Vertx vertx, String nodeId, int virtualNodes,
+            long heartbeatInterval, long nodeTimeout) {
+        this.vertx = vertx;
+        this.nodeId = nodeId;
+        this.heartbeatInterval = heartbeatInterval;
+        this.nodeTimeout = nodeTimeout;
+        ring = new ConsistentHashRing(virtualNodes);
+        ring.add(nodeId);
+    }
+
+    /**
+     * Joins the cluster, announcing this node and listening for others.
+     */
+    public void start() {
+        heartbeatConsumer = vertx.eventBus().consumer(
+                HEARTBEAT_EVENT, message -> seen(message.body()));
+        leaveConsumer = vertx.eventBus().consumer(
+                LEAVE_EVENT, message -> {
+                    if (!isLocal(message.body())) {
+                        lastSeen.remove(message.body());
+                        removeNode(message.body(), "left");
+                    }
+                });
+        vertx.eventBus().publish(HEARTBEAT_EVENT, nodeId);
+        timerId = vertx.setPeriodic(heartbeatInterval, id -> heartbeat());
+        log.info("Node {} joined the cluster", nodeId);
+    }
+
+    /**
+     * Leaves the cluster so that the other nodes stop routing to this one.
+     */
+    public void stop() {
+        if (timerId != -1) {
+            vertx.cancelTimer(timerId);
+        }
+        if (heartbeatConsumer != null) {
+            heartbeatConsumer.unregister();
+            leaveConsumer.unregister();
+        }
+        vertx.eventBus().publish(LEAVE_EVENT, nodeId);
+    }
+
+    /**
+     * Announces this node and removes the nodes which have not announced
+     * themselves within the timeout.
+     */
+    private void heartbeat() {
+        vertx.eventBus().publish(HEARTBEAT_EVENT, nodeId);
+        long cutoff = System.currentTimeMillis() - nodeTimeout;
+        lastSeen.forEach((node, time) -> {
+            if (time < cutoff && lastSeen.remove(node, time)) {
+                removeNode(node, "timed out");
+            }
+        });
+    }
+
+    /**
+     * Records that a node has announced itself, adding it to the ring if
+     * it is new.
+     * @param node id of the node.
+     */
+    private void seen(String node) {
+        if (isLocal(node)) {
+            return;
+        }
+        lastSeen.put(node, System.currentTimeMillis());
+        if (ring.add(node)) {
+            log.info("Node {} joined; {} nodes", node, ring.nodes().size());
+        }
+    }
+
+    private void removeNode(String node, String reason) {
+        if (ring.remove(node)) {
+            log.info("Node {} {}; {} nodes",
+                    node, reason, ring.nodes().size());
+        }
+    }
+
+    /**
+     * @return Id of this node.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @param imageId id of the image.
+     * @return Id of the node which owns the image.
+     */
+    public String owner(long imageId) {
+        String owner = ring.owner(imageId);
+        return owner == null? nodeId : owner;
+    }
+
+    /**
+     * @param node id of a node.
+     * @return Whether <code>node</code> is this node.
+     */
+    public boolean isLocal(String node) {
+        return nodeId.equals(node);
+    }
+
+    /**
+     * Sends a request for an image to the node which owns it.  Requests
+     * for another node carry an <code>inline</code> header, as that node's
+     * disk tile cache files cannot be sent by reference; requests for a
+     * node which has gone are sent to this node instead.
+     * @param address address of an event handled on every node.
+     * @param imageId id of the image.
+     * @param body body of the request.
+     * @param options delivery options of the request.
+     * @param replyHandler handler of the reply.
+     */
+    public <T> void send(
+            String address, long imageId, Object body,
+            DeliveryOptions options,
+            Handler<AsyncResult<Message<T>>> replyHandler) {
+        String owner = owner(imageId);
+        if (!isLocal(owner)) {
+            options.addHeader("inline", "true");
+        }
+        vertx.eventBus().<T>send(
+                address(address, owner), body, options, result -> {
+            if (result.failed() && failed(owner, result.cause())) {
+                log.warn("Node {} has gone; rendering locally", owner);
+                options.getHeaders().remove("inline");
+                vertx.eventBus().send(
+                        address(address, nodeId), body, options,
+                        replyHandler);
+                return;
+            }
+            replyHandler.handle(result);
+        });
+    }
+
+    /**
+     * Removes a node which a request could not be delivered to, until it
+     * next announces itself.
+     * @param node id of the node.
+     * @param t failure of the request.
+     * @return Whether the request failed because the node has gone and
+     * should be sent elsewhere.
+     */
+    public boolean failed(String node, Throwable t) {
+        if (isLocal(node) || !(t instanceof ReplyException)
+                || ((ReplyException) t).failureType()
+                        != ReplyFailure.NO_HANDLERS) {
+            return false;
+        }
+        lastSeen.remove(node);
+        removeNode(node, "has no handlers");
+        return true;
+    }
+
+    /**
+     * @return Number of nodes known to be up, including this one.
+     */
+    public int size() {
+        return ring.nodes().size();
+    }
+
+    /**
+     * @param address address of an event handled on every node.
+     * @param node id of a node.
+     * @return Address of the event on <code>node</code>.
+     */
+    public static String address(String address, String node) {
+        return address + "." + node;
+    }
+}
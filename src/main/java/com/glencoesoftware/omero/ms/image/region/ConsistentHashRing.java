@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Consistent hash ring assigning keys, such as image ids, to the nodes of
+ * a cluster.  Each node is placed on the ring at a number of pseudo random
+ * points, its virtual nodes, and owns the keys which hash to the stretch
+ * of the ring up to each of them, so that keys are spread evenly and only
+ * the keys of a node which joins or leaves change owner.  Lookups read an
+ * immutable snapshot of the ring and do not lock.
+ */
+public class ConsistentHashRing {
+
+    /** Number of points on the ring of each node */
+    private final int virtualNodes;
+
+    /** Nodes by point on the ring; replaced rather than modified */
+    private volatile NavigableMap<Long, String> ring =
+            Collections.emptyNavigableMap();
+
+    /**
+     * Default constructor.
+     * @param virtualNodes number of points on the ring of each node.
+     */
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException(
+                    "Virtual nodes must be positive: " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Adds a node to the ring.
+     * @param node id of the node.
+     * @return <code>false</code> if the node was already on the ring.
+     */
+    public synchronized boolean add(String node) {
+        if (ring.containsValue(node)) {
+            return false;
+        }
+        TreeMap<Long, String> updated = new TreeMap<Long, String>(ring);
+        for (int replica = 0; replica < virtualNodes; replica++) {
+            // Collisions are vanishingly rare; the lower id keeps the
+            // point so that every member resolves them alike
+            long point = hash(node, replica);
+            String current = updated.get(point);
+            if (current == null || node.compareTo(current) < 0) {
+                updated.put(point, node);
+            }
+        }
+        ring = updated;
+        return true;
+    }
+
+    /**
+     * Removes a node from the ring.
+     * @param node id of the node.
+     * @return <code>false</code> if the node was not on the ring.
+     */
+    public synchronized boolean remove(String node) {
+        if (!ring.containsValue(node)) {
+            return false;
+        }
+        TreeMap<Long, String> updated = new TreeMap<Long, String>(ring);
+        Iterator<String> nodes = updated.values().iterator();
+        while (nodes.hasNext()) {
+            if (nodes.next().equals(node)) {
+                nodes.remove();
+            }
+        }
+        ring = updated;
+        return true;
+    }
+
+    /**
+     * @param key key to look up.
+     * @return Id of the node which owns the key or <code>null</code> if
+     * the ring is empty.
+     */
+    public String owner(long key) {
+        NavigableMap<Long, String> ring = this.ring;
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(mix(key));
+        return entry == null?
+                ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    /**
+     * @return Ids of the nodes on the ring, in order.
+     */
+    public Set<String> nodes() {
+        return new TreeSet<String>(ring.values());
+    }
+
+    /**
+     * @param node id of a node.
+     * @param replica index of the virtual node.
+     * @return Point on the ring of the virtual node.
+     */
+    static long hash(String node, int replica) {
+        // 64 bit FNV-1a, then mixed so that similar ids spread evenly
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < node.length(); i++) {
+            hash ^= node.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash ^ replica * 0x9e3779b97f4a7c15L);
+    }
+
+    /**
+     * Finalization mix of MurmurHash3, which spreads sequential keys, as
+     * image ids are, over the whole ring.
+     * @param key key to mix.
+     * @return Point on the ring of the key.
+     */
+    static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
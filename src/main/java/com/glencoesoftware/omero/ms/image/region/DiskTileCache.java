@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Persistent, size bounded cache of rendered image regions on disk.
+ * Regions are appended to large segment files and indexed in memory by a
+ * 128-bit hash of {@link ImageRegionCtx#cacheKey()}.  Hits are returned as
+ * a {@link Location} within a segment file so that they can be sent to the
+ * client straight from the file, without the bytes being copied onto the
+ * heap.  The index is rebuilt from the segment files on startup, verifying
+ * the checksums of the records in the most recent segment which may have
+ * been partially written, and, when the cache grows beyond its maximum
+ * size, the oldest segment is evicted as a whole.  Like {@link TileCache},
+ * the cache is not aware of sessions.
+ */
+public class DiskTileCache {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(DiskTileCache.class);
+
+    /** Number of lookups which found a cached region */
+    private static final LongAdder hits =
+            MetricsRegistry.DEFAULT.cacheLookups("disk-tile", true);
+
+    /** Number of lookups which did not find a cached region */
+    private static final LongAdder misses =
+            MetricsRegistry.DEFAULT.cacheLookups("disk-tile", false);
+
+    /** Marker at the start of every record */
+    private static final int MAGIC = 0x4F4D5452;
+
+    /**
+     * Record header length; marker, 128-bit hash, data length and data
+     * checksum
+     */
+    private static final int HEADER_LENGTH = 4 + 8 + 8 + 4 + 4;
+
+    /** Segment file name prefix */
+    private static final String PREFIX = "segment-";
+
+    /** Segment file name suffix */
+    private static final String SUFFIX = ".dat";
+
+    /**
+     * Time in milliseconds evicted segment files are kept on disk for so
+     * that in flight responses can complete
+     */
+    private static final long DELETE_GRACE_PERIOD = 60000L;
+
+    /** Directory containing the segment files */
+    private final Path directory;
+
+    /** Maximum total size of all segments in bytes */
+    private final long maximumBytes;
+
+    /** Maximum size of a single segment in bytes */
+    private final long segmentBytes;
+
+    /** Location of every cached region by hash */
+    private final ConcurrentHashMap<Hash, Location> index =
+            new ConcurrentHashMap<Hash, Location>();
+
+    /** All segments, oldest first; the last segment is appended to */
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+
+    /** Evicted segments awaiting deletion */
+    private final List<Segment> evicted = new ArrayList<Segment>();
+
+    /** Total size of all segments in bytes */
+    private long totalBytes = 0;
+
+    /**
+     * Default constructor.  Creates the cache directory if required and
+     * rebuilds the index from any existing segment files.
+     * @param directory directory to store segment files in
+     * @param maximumBytes maximum total size of the cache in bytes
+     * @param segmentBytes maximum size of a single segment file in bytes
+     * @throws IOException If the cache directory cannot be read.
+     */
+    public DiskTileCache(Path directory, long maximumBytes, long segmentBytes)
+            throws IOException {
+        this.directory = directory;
+        this.maximumBytes = maximumBytes;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    /**
+     * Location of a cached region within a segment file.
+     */
+    public static final class Location {
+
+        /** Segment the region is stored in */
+        private final Segment segment;
+
+        /** Offset of the region's bytes within the segment file */
+        public final long offset;
+
+        /** Length of the region in bytes */
+        public final int length;
+
+        Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return Absolute path of the segment file.
+         */
+        public String getPath() {
+            return segment.path.toAbsolutePath().toString();
+        }
+    }
+
+    /**
+     * Retrieves the location of a cached region.
+     * @param key canonical rendering parameters
+     * @return See above or <code>null</code> if the region is not cached.
+     */
+    public Location get(String key) {
+        Location location = index.get(hash(key));
+        (location == null? misses : hits).increment();
+        return location;
+    }
+
+    /**
+     * Reads a cached region onto the heap; for callers which cannot send
+     * the region straight from the segment file.
+     * @param location location of the cached region
+     * @return Region bytes.
+     * @throws IOException If the segment file cannot be read.
+     */
+    public byte[] read(Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        try (FileChannel channel = FileChannel.open(
+                location.segment.path, StandardOpenOption.READ)) {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, location.offset + buffer.position())
+                        < 0) {
+                    throw new IOException("Truncated segment");
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Appends a rendered region to the current segment, starting a new
+     * segment and evicting the oldest as required.
+     * @param key canonical rendering parameters
+     * @param imageRegion rendered image region
+     * @throws IOException If the region cannot be written.
+     */
+    public synchronized void put(String key, byte[] imageRegion)
+            throws IOException {
+        Hash hash = hash(key);
+        if (index.containsKey(hash)) {
+            return;
+        }
+        long recordLength = HEADER_LENGTH + imageRegion.length;
+        Segment segment = segments.peekLast();
+        if (segment == null || (segment.size > 0
+                && segment.size + recordLength > segmentBytes)) {
+            segment = newSegment();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(imageRegion);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).putLong(hash.high).putLong(hash.low)
+            .putInt(imageRegion.length).putInt((int) crc.getValue()).flip();
+        long offset = segment.size;
+        segment.write(new ByteBuffer[] {
+                header, ByteBuffer.wrap(imageRegion)}, offset);
+        segment.size += recordLength;
+        totalBytes += recordLength;
+        index.put(hash, new Location(
+                segment, offset + HEADER_LENGTH, imageRegion.length));
+        evict();
+    }
+
+    /**
+     * @return Total size of all segments in bytes.
+     */
+    public synchronized long bytesUsed() {
+        return totalBytes;
+    }
+
+    /**
+     * @return Number of cached regions.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Closes the segment currently being appended to and deletes any
+     * evicted segments.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            segment.closeChannel();
+        }
+        for (Segment segment : evicted) {
+            segment.delete();
+        }
+        evicted.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DiskTileCache(entries=%d, bytes=%d/%d)",
+                size(), bytesUsed(), maximumBytes);
+    }
+
+    /**
+     * Evicts the oldest segments while the cache is over its maximum size
+     * and deletes evicted segments whose grace period has passed.
+     */
+    private void evict() {
+        while (totalBytes > maximumBytes && segments.size() > 1) {
+            Segment oldest = segments.removeFirst();
+            log.debug("Evicting {}", oldest.path);
+            totalBytes -= oldest.size;
+            oldest.closeChannel();
+            index.values().removeIf(location -> location.segment == oldest);
+            oldest.evictedAt = System.currentTimeMillis();
+            evicted.add(oldest);
+        }
+        long cutoff = System.currentTimeMillis() - DELETE_GRACE_PERIOD;
+        Iterator<Segment> i = evicted.iterator();
+        while (i.hasNext()) {
+            Segment segment = i.next();
+            if (segment.evictedAt < cutoff) {
+                segment.delete();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment to append to.
+     * @return See above.
+     * @throws IOException If the segment file cannot be created.
+     */
+    private Segment newSegment() throws IOException {
+        Segment current = segments.peekLast();
+        long id = 0;
+        if (current != null) {
+            current.closeChannel();
+            id = current.id + 1;
+        }
+        Segment segment = new Segment(
+                id, directory.resolve(String.format(
+                        "%s%012d%s", PREFIX, id, SUFFIX)));
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Rebuilds the index from the segment files on disk, truncating any
+     * segment whose last record was only partially written.
+     * @throws IOException If the cache directory cannot be read.
+     */
+    private synchronized void recover() throws IOException {
+        List<Segment> found = new ArrayList<Segment>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    long id = Long.parseLong(name.substring(
+                            PREFIX.length(), name.length() - SUFFIX.length()));
+                    found.add(new Segment(id, path));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file: {}", path);
+                }
+            }
+        }
+        Collections.sort(found, (a, b) -> Long.compare(a.id, b.id));
+        for (int i = 0; i < found.size(); i++) {
+            Segment segment = found.get(i);
+            recover(segment, i == found.size() - 1);
+            segments.addLast(segment);
+            totalBytes += segment.size;
+        }
+        log.info("Recovered {} cached regions from {} segments ({} bytes)",
+                index.size(), segments.size(), totalBytes);
+        evict();
+    }
+
+    /**
+     * Indexes the records of a single segment file.
+     * @param segment segment to index.
+     * @param verify whether or not to verify the checksum of each record.
+     * @throws IOException If the segment file cannot be read.
+     */
+    private void recover(Segment segment, boolean verify) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        try (FileChannel channel = FileChannel.open(
+                segment.path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long fileSize = channel.size();
+            long position = 0;
+            while (position + HEADER_LENGTH <= fileSize) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    if (channel.read(header, position + header.position())
+                            < 0) {
+                        break;
+                    }
+                }
+                header.flip();
+                if (header.remaining() < HEADER_LENGTH
+                        || header.getInt() != MAGIC) {
+                    break;
+                }
+                Hash hash = new Hash(header.getLong(), header.getLong());
+                int length = header.getInt();
+                int checksum = header.getInt();
+                if (length < 0
+                        || position + HEADER_LENGTH + length > fileSize) {
+                    break;
+                }
+                if (verify && !verify(
+                        channel, position + HEADER_LENGTH, length,
+                        checksum)) {
+                    break;
+                }
+                index.put(hash, new Location(
+                        segment, position + HEADER_LENGTH, length));
+                position += HEADER_LENGTH + length;
+            }
+            if (position < fileSize) {
+                log.warn("Truncating {} from {} to {} bytes",
+                        segment.path, fileSize, position);
+                channel.truncate(position);
+            }
+            segment.size = position;
+        }
+    }
+
+    /**
+     * Verifies the checksum of a record's data.
+     * @param channel channel to read the record from.
+     * @param position offset of the record's data.
+     * @param length length of the record's data.
+     * @param checksum expected checksum.
+     * @return Whether or not the checksum matches.
+     * @throws IOException If the record cannot be read.
+     */
+    private boolean verify(
+            FileChannel channel, long position, int length, int checksum)
+                    throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) {
+                return false;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data.array());
+        return (int) crc.getValue() == checksum;
+    }
+
+    /**
+     * Computes the 128-bit hash of a cache key.
+     * @param key canonical rendering parameters
+     * @return See above.
+     */
+    private static Hash hash(String key) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(
+                digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+        return new Hash(bytes.getLong(), bytes.getLong());
+    }
+
+    /**
+     * A single segment file.
+     */
+    private static final class Segment {
+
+        private final long id;
+
+        private final Path path;
+
+        /** Size in bytes of the valid records in the segment */
+        private long size = 0;
+
+        /** Channel used for appending; opened on first write */
+        private FileChannel channel;
+
+        /** Time in milliseconds at which the segment was evicted */
+        private long evictedAt;
+
+        Segment(long id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+
+        void write(ByteBuffer[] buffers, long position) throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(
+                        path, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+            }
+            channel.position(position);
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+
+        void closeChannel() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Exception while closing {}", path, e);
+            }
+            channel = null;
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Exception while deleting {}", path, e);
+            }
+        }
+    }
+
+    /**
+     * 128-bit hash of a cache key.
+     */
+    private static final class Hash {
+
+        private final long high;
+
+        private final long low;
+
+        Hash(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Hash)) {
+                return false;
+            }
+            Hash other = (Hash) o;
+            return high == other.high && low == other.low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import omero.ServerError;
+
+/**
+ * Adapts the asynchronous method invocation (<code>begin_*</code> and
+ * <code>end_*</code>) variants of OMERO proxies to
+ * {@link CompletableFuture}s so that calls can be composed without a
+ * thread waiting on each of them.  Futures complete on an Ice client
+ * thread; dependent stages which do more than a little work should be run
+ * asynchronously on an executor of their own.
+ */
+public final class IceFutures {
+
+    /** Starts a call, arranging for a callback once it has completed */
+    @FunctionalInterface
+    public interface Begin {
+        Ice.AsyncResult begin(Ice.Callback callback);
+    }
+
+    /** Ends a completed call, returning its result */
+    @FunctionalInterface
+    public interface End<T> {
+        T end(Ice.AsyncResult result) throws Exception;
+    }
+
+    /** Ends a completed call which has no result */
+    @FunctionalInterface
+    public interface EndVoid {
+        void end(Ice.AsyncResult result) throws Exception;
+    }
+
+    private IceFutures() {
+    }
+
+    /**
+     * Makes a call, timing it as a stage.
+     * @param stage name of the stage the call is timed as.
+     * @param begin starts the call.
+     * @param end ends the call.
+     * @return Future result of the call.
+     */
+    public static <T> CompletableFuture<T> call(
+            String stage, Begin begin, End<T> end) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        StageTimer t0 = new StageTimer(stage);
+        try {
+            begin.begin(new Ice.Callback() {
+                @Override
+                public void completed(Ice.AsyncResult result) {
+                    t0.stop();
+                    try {
+                        future.complete(end.end(result));
+                    } catch (Throwable t) {
+                        future.completeExceptionally(t);
+                    }
+                }
+            });
+        } catch (Throwable t) {
+            // Such as the communicator having been destroyed
+            t0.stop();
+            future.completeExceptionally(t);
+        }
+        return future;
+    }
+
+    /**
+     * Makes a call which has no result, timing it as a stage.
+     * @param stage name of the stage the call is timed as.
+     * @param begin starts the call.
+     * @param end ends the call.
+     * @return Future completed once the call has.
+     */
+    public static CompletableFuture<Void> run(
+            String stage, Begin begin, EndVoid end) {
+        return call(stage, begin, result -> {
+            end.end(result);
+            return null;
+        });
+    }
+
+    /**
+     * @param futures futures to wait for.
+     * @return Future completed once all of <code>futures</code> have,
+     * exceptionally if any of them did.
+     */
+    public static CompletableFuture<Void> allOf(
+            List<CompletableFuture<?>> futures) {
+        return CompletableFuture.allOf(
+                futures.toArray(new CompletableFuture<?>[futures.size()]));
+    }
+
+    /**
+     * Waits for a future, rethrowing the exception it completed with, if
+     * any, as it was thrown by the call which failed.
+     * @param future future to wait for.
+     * @return Result of <code>future</code>.
+     * @throws ServerError If <code>future</code> failed with one.
+     */
+    public static <T> T await(CompletableFuture<T> future)
+            throws ServerError {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof ServerError) {
+                throw (ServerError) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param t exception a future or dependent stage completed with.
+     * @return The exception which caused the future to complete
+     * exceptionally, without the wrapping added by dependent stages.
+     */
+    public static Throwable unwrap(Throwable t) {
+        while ((t instanceof CompletionException
+                    || t instanceof ExecutionException)
+                && t.getCause() != null) {
+            t = t.getCause();
+        }
+        return t;
+    }
+}
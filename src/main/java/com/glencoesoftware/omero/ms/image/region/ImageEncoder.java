@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes rendered image regions, as packed RGB pixels, in the output
+ * formats supported by the microservice:
+ * <ul>
+ *   <li><code>jpeg</code>: JPEG encoded by ImageIO</li>
+ *   <li><code>png</code>: lossless 8 bit RGB PNG</li>
+ *   <li><code>raw</code>: the width and height as big endian 32 bit
+ *   integers followed by 8 bit RGBA pixels, row by row</li>
+ * </ul>
+ */
+public class ImageEncoder {
+
+    /** Default output format */
+    public static final String JPEG = "jpeg";
+
+    /** Lossless PNG output format */
+    public static final String PNG = "png";
+
+    /** Raw RGBA output format */
+    public static final String RAW = "raw";
+
+    /** Supported output formats */
+    public static final List<String> FORMATS = Arrays.asList(JPEG, PNG, RAW);
+
+    /** Masks of the red, green and blue components of a packed pixel */
+    private static final int[] RGB_MASKS =
+            new int[] { 0xFF0000, 0x00FF00, 0x0000FF };
+
+    /** PNG encoder */
+    private final PngEncoder pngEncoder;
+
+    /**
+     * Default constructor.
+     * @param pngEncoder PNG encoder.
+     */
+    public ImageEncoder(PngEncoder pngEncoder) {
+        this.pngEncoder = pngEncoder;
+    }
+
+    /**
+     * @param format output format.
+     * @return Media type of the output format.
+     */
+    public static String getContentType(String format) {
+        switch (format) {
+            case PNG:
+                return "image/png";
+            case RAW:
+                return "application/octet-stream";
+            default:
+                return "image/jpeg";
+        }
+    }
+
+    /**
+     * Encodes a rendered image region.
+     * @param format output format; one of {@link #FORMATS}.
+     * @param rgb packed RGB pixels, row by row.
+     * @param width width of the image region.
+     * @param height height of the image region.
+     * @param quality JPEG compression quality in the range
+     * <code>[0, 1]</code>.
+     * @return Encoded image region.
+     */
+    public byte[] encode(
+            String format, int[] rgb, int width, int height, float quality) {
+        StageTimer t0 = new StageTimer("ImageEncoder.encode." + format);
+        try {
+            switch (format) {
+                case JPEG:
+                    return encodeJpeg(rgb, width, height, quality);
+                case PNG:
+                    return pngEncoder.encode(rgb, width, height);
+                case RAW:
+                    return encodeRaw(rgb, width, height);
+                default:
+                    throw new IllegalArgumentException(
+                            "Unsupported format: " + format);
+            }
+        } finally {
+            t0.stop();
+        }
+    }
+
+    /**
+     * Encodes packed RGB pixels as a JPEG.
+     * @param rgb packed RGB pixels, row by row.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @param quality compression quality in the range <code>[0, 1]</code>.
+     * @return See above.
+     */
+    static byte[] encodeJpeg(
+            int[] rgb, int width, int height, float quality) {
+        // Wrap rather than copy the pixels
+        WritableRaster raster = Raster.createPackedRaster(
+                new DataBufferInt(rgb, width * height),
+                width, height, width, RGB_MASKS, null);
+        BufferedImage image = new BufferedImage(
+                new DirectColorModel(24, RGB_MASKS[0], RGB_MASKS[1],
+                        RGB_MASKS[2]),
+                raster, false, null);
+        ImageWriter writer =
+                ImageIO.getImageWritersByFormatName("jpeg").next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (ImageOutputStream stream =
+                    ImageIO.createImageOutputStream(out)) {
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            // Not possible when writing to memory
+            throw new UncheckedIOException(e);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Encodes packed RGB pixels as raw, opaque RGBA prefixed by the width
+     * and height.
+     * @param rgb packed RGB pixels, row by row.
+     * @param width width of the image.
+     * @param height height of the image.
+     * @return See above.
+     */
+    static byte[] encodeRaw(int[] rgb, int width, int height) {
+        byte[] raw = new byte[8 + width * height * 4];
+        putInt(raw, 0, width);
+        putInt(raw, 4, height);
+        for (int i = 0, j = 8; i < width * height; i++, j += 4) {
+            int pixel = rgb[i];
+            raw[j] = (byte) (pixel >> 16);
+            raw[j + 1] = (byte) (pixel >> 8);
+            raw[j + 2] = (byte) pixel;
+            raw[j + 3] = (byte) 0xFF;
+        }
+        return raw;
+    }
+
+    /**
+     * Writes a big endian integer.
+     * @param buffer buffer to write to.
+     * @param offset offset to write at.
+     * @param value value to write.
+     */
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static omero.rtypes.unwrap;
+
+import omero.model.Event;
+import omero.model.Image;
+import omero.model.Pixels;
+import omero.model.RenderingDef;
+
+/**
+ * Immutable subset of {@link Image} and primary {@link Pixels} metadata
+ * required to render an image region.
+ */
+public class ImageMetadata {
+
+    /** Image Id */
+    public final long imageId;
+
+    /** Primary Pixels Id */
+    public final long pixelsId;
+
+    /** Width of the full resolution image in pixels */
+    public final int sizeX;
+
+    /** Height of the full resolution image in pixels */
+    public final int sizeY;
+
+    /** Number of Z sections */
+    public final int sizeZ;
+
+    /** Number of channels */
+    public final int sizeC;
+
+    /** Id of the group the Image belongs to */
+    public final long groupId;
+
+    /**
+     * Id of the most recent update event of the Pixels or any of its
+     * rendering definitions
+     */
+    public final long version;
+
+    /**
+     * Time in milliseconds of the most recent update of the Pixels or any
+     * of its rendering definitions
+     */
+    public final long lastModified;
+
+    /**
+     * Id of the user of the session the metadata was retrieved for; unless
+     * a request specifies every rendering setting the server renders with
+     * this user's rendering definition
+     */
+    public final long userId;
+
+    /**
+     * Default constructor.
+     * @param imageId Image Id
+     * @param pixelsId primary Pixels Id
+     * @param sizeX width of the full resolution image in pixels
+     * @param sizeY height of the full resolution image in pixels
+     * @param sizeZ number of Z sections
+     * @param sizeC number of channels
+     * @param groupId Id of the group the Image belongs to
+     * @param version Id of the most recent update event of the Pixels or
+     * any of its rendering definitions
+     * @param lastModified time in milliseconds of the most recent update of
+     * the Pixels or any of its rendering definitions
+     * @param userId Id of the user of the session the metadata was
+     * retrieved for
+     */
+    public ImageMetadata(
+            long imageId, long pixelsId, int sizeX, int sizeY, int sizeZ,
+            int sizeC, long groupId, long version, long lastModified,
+            long userId) {
+        this.imageId = imageId;
+        this.pixelsId = pixelsId;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.sizeC = sizeC;
+        this.groupId = groupId;
+        this.version = version;
+        this.lastModified = lastModified;
+        this.userId = userId;
+    }
+
+    /**
+     * Creates the metadata from a loaded {@link Image}.
+     * @param image {@link Image} with its primary {@link Pixels}, their
+     * rendering definitions and the update events of both loaded
+     * @param userId Id of the user of the session the {@link Image} was
+     * loaded by
+     * @return See above.
+     */
+    public static ImageMetadata fromImage(Image image, long userId) {
+        Pixels pixels = image.getPrimaryPixels();
+        Event updateEvent = pixels.getDetails().getUpdateEvent();
+        long version = (Long) unwrap(updateEvent.getId());
+        long lastModified = (Long) unwrap(updateEvent.getTime());
+        if (pixels.sizeOfSettings() > 0) {
+            for (RenderingDef renderingDef : pixels.copySettings()) {
+                updateEvent = renderingDef.getDetails().getUpdateEvent();
+                version = Math.max(
+                        version, (Long) unwrap(updateEvent.getId()));
+                lastModified = Math.max(
+                        lastModified, (Long) unwrap(updateEvent.getTime()));
+            }
+        }
+        return new ImageMetadata(
+                (Long) unwrap(image.getId()),
+                (Long) unwrap(pixels.getId()),
+                (Integer) unwrap(pixels.getSizeX()),
+                (Integer) unwrap(pixels.getSizeY()),
+                (Integer) unwrap(pixels.getSizeZ()),
+                (Integer) unwrap(pixels.getSizeC()),
+                (Long) unwrap(image.getDetails().getGroup().getId()),
+                version, lastModified, userId);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "ImageMetadata(imageId=%d, pixelsId=%d, sizeC=%d, "
+                + "groupId=%d, version=%d, userId=%d)",
+                imageId, pixelsId, sizeC, groupId, version, userId);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Size and time bounded cache of {@link ImageMetadata}.  Entries are keyed
+ * by OMERO session key as well as by Image Id so that a cached entry is
+ * only ever returned to a session which has itself successfully retrieved
+ * the Image from the server; permissions are therefore enforced exactly as
+ * they would be without the cache, delayed by at most the time to live.
+ */
+public class ImageMetadataCache {
+
+    /** Number of lookups which found cached metadata */
+    private static final LongAdder hits =
+            MetricsRegistry.DEFAULT.cacheLookups("image-metadata", true);
+
+    /** Number of lookups which did not find cached metadata */
+    private static final LongAdder misses =
+            MetricsRegistry.DEFAULT.cacheLookups("image-metadata", false);
+
+    /** Underlying cache */
+    private final Cache<Key, ImageMetadata> cache;
+
+    /**
+     * Default constructor.
+     * @param maximumSize maximum number of entries
+     * @param timeToLive time in seconds after which an entry expires
+     */
+    public ImageMetadataCache(long maximumSize, long timeToLive) {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Retrieves cached metadata.
+     * @param omeroSessionKey OMERO session key of the requester
+     * @param imageId Image Id
+     * @return Cached metadata or <code>null</code> if the session has not
+     * retrieved the Image within the time to live.
+     */
+    public ImageMetadata get(String omeroSessionKey, long imageId) {
+        ImageMetadata metadata =
+                cache.getIfPresent(new Key(omeroSessionKey, imageId));
+        (metadata == null? misses : hits).increment();
+        return metadata;
+    }
+
+    /**
+     * Caches metadata retrieved from the server on behalf of a session.
+     * @param omeroSessionKey OMERO session key of the requester
+     * @param metadata metadata to cache
+     */
+    public void put(String omeroSessionKey, ImageMetadata metadata) {
+        cache.put(new Key(omeroSessionKey, metadata.imageId), metadata);
+    }
+
+    /**
+     * Cache key; OMERO session key and Image Id.
+     */
+    private static final class Key {
+
+        private final String omeroSessionKey;
+
+        private final long imageId;
+
+        Key(String omeroSessionKey, long imageId) {
+            this.omeroSessionKey = omeroSessionKey;
+            this.imageId = imageId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return imageId == other.imageId
+                    && Objects.equals(omeroSessionKey, other.omeroSessionKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(omeroSessionKey, imageId);
+        }
+    }
+}
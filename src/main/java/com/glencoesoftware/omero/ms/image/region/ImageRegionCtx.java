@@ -18,8 +18,6 @@
 
 package com.glencoesoftware.omero.ms.image.region;
 
-import java.util.ArrayList;
-import java.util.List;
 import org.slf4j.LoggerFactory;
 
 import com.glencoesoftware.omero.ms.core.OmeroRequestCtx;
@@ -47,6 +45,13 @@ public class ImageRegionCtx extends OmeroRequestCtx {
      */
     public RegionDef tile;
 
+    /**
+     * Tile width and height in pixels if specified by the client; not used
+     * for rendering but allows the neighbouring tiles to be determined
+     */
+    public Integer tileWidth;
+    public Integer tileHeight;
+
     /** Resolution to read */
     public Integer resolution;
 
@@ -57,9 +62,7 @@ public class ImageRegionCtx extends OmeroRequestCtx {
     public RegionDef region;
 
     /** Channel settings - handled at the Verticle level*/
-    public List<Integer> channels;
-    public List<Float[]> windows;
-    public List<String> colors;
+    public ChannelSettings channels;
 
     /** Color mode (g == grey scale; c == rgb) */
     public String m;
@@ -70,11 +73,12 @@ public class ImageRegionCtx extends OmeroRequestCtx {
     /** Compression quality */
     public Float compressionQuality;
 
+    /** Output format; one of {@link ImageEncoder#FORMATS} if supported */
+    public String format;
+
     /**
-     * Projection 'intmax' OR 'intmax|5:25'
-     * NOT handled at the moment - does not look like it's supported
-     * for renderImageRegion: https://github.com/openmicroscopy/openmicroscopy/blob/be40a59300bb73a22b72eac00dd24b2aa54e4768/components/tools/OmeroPy/src/omero/gateway/__init__.py#L8758
-     * vs. renderImage: https://github.com/openmicroscopy/openmicroscopy/blob/be40a59300bb73a22b72eac00dd24b2aa54e4768/components/tools/OmeroPy/src/omero/gateway/__init__.py#L8837
+     * Projection 'intmax' OR 'intmax|5:25'; see
+     * {@link ZProjector.Projection#parse(String, int)}
      * */
     public String projection;
 
@@ -102,15 +106,99 @@ public class ImageRegionCtx extends OmeroRequestCtx {
         t = Integer.parseInt(params.get("t"));
         getTileFromString(params.get("tile"));
         getRegionFromString(params.get("region"));
-        getChannelInfoFromString(params.get("c"));
+        channels = ChannelSettings.parse(params.get("c"));
         getColorModelFromString(params.get("m"));
         getCompressionQualityFromString(params.get("q"));
+        getFormatFromString(params.get("format"));
         getInvertedAxisFromString(params.get("ia"));
         projection = params.get("p");
         maps = params.get("maps");
 
-        log.debug("{}, z: {}, t: {}, tile: {}, c: [{}, {}, {}], m: {}",
-                imageId, z, t, tile, channels, windows, colors, m);
+        log.debug("{}, z: {}, t: {}, tile: {}, c: {}, m: {}",
+                imageId, z, t, tile, channels, m);
+    }
+
+    /**
+     * Canonical form of the rendering parameters suitable for use as a
+     * cache key.  Two contexts which render identical bytes have the same
+     * canonical form regardless of the session they belong to or the order
+     * and case their channel settings were specified in; inactive channels
+     * are omitted as their settings do not affect the rendered region.
+     * Settings which are not specified are those of the rendering
+     * definition; see
+     * {@link ImageRegionRequestHandler#getCacheKey(ImageMetadata)}.
+     * @return See above.
+     */
+    public String cacheKey() {
+        StringBuilder key = new StringBuilder(128);
+        key.append(imageId).append('/').append(z).append('/').append(t);
+        if (tile != null) {
+            key.append("/tile=").append(resolution)
+                .append(',').append(tile.getX())
+                .append(',').append(tile.getY());
+        }
+        if (region != null) {
+            key.append("/region=").append(region.getX())
+                .append(',').append(region.getY())
+                .append(',').append(region.getWidth())
+                .append(',').append(region.getHeight());
+        }
+        key.append("/c=");
+        if (channels != null) {
+            key.append(channels.cacheKey());
+        }
+        key.append("/m=").append(m)
+            .append("/q=").append(compressionQuality)
+            .append("/p=").append(projection)
+            .append("/ia=").append(invertedAxis)
+            .append("/maps=").append(maps)
+            .append("/f=").append(format);
+        return key.toString();
+    }
+
+    /**
+     * Creates a copy of this context for a different tile of the same
+     * plane rendered with the same settings.
+     * @param resolution resolution level of the tile.
+     * @param x tile offset along the X axis.
+     * @param y tile offset along the Y axis.
+     * @return See above.
+     */
+    ImageRegionCtx forTile(int resolution, int x, int y) {
+        ImageRegionCtx copy = new ImageRegionCtx();
+        copy.omeroSessionKey = omeroSessionKey;
+        copy.imageId = imageId;
+        copy.z = z;
+        copy.t = t;
+        copy.tile = new RegionDef();
+        copy.tile.setX(x);
+        copy.tile.setY(y);
+        copy.tileWidth = tileWidth;
+        copy.tileHeight = tileHeight;
+        copy.resolution = resolution;
+        copy.channels = channels;
+        copy.m = m;
+        copy.maps = maps;
+        copy.compressionQuality = compressionQuality;
+        copy.format = format;
+        copy.projection = projection;
+        copy.invertedAxis = invertedAxis;
+        return copy;
+    }
+
+    /**
+     * Creates a copy of this context for a different tile of the same
+     * plane rendered with the same settings.
+     * @param tileString string describing the tile to render:
+     * "1,1,0,1024,1024"
+     * @return See above.
+     */
+    ImageRegionCtx forTile(String tileString) {
+        ImageRegionCtx copy = forTile(0, 0, 0);
+        copy.tileWidth = null;
+        copy.tileHeight = null;
+        copy.getTileFromString(tileString);
+        return copy;
     }
 
     /**
@@ -122,11 +210,15 @@ public class ImageRegionCtx extends OmeroRequestCtx {
         if (tileString == null) {
             return;
         }
-        String[] tileArray = tileString.split(",", -1);
+        int[] tileArray = splitInts(tileString, 3);
         tile = new RegionDef();
-        tile.setX(Integer.parseInt(tileArray[1]));
-        tile.setY(Integer.parseInt(tileArray[2]));
-        resolution = Integer.parseInt(tileArray[0]);
+        tile.setX(tileArray[1]);
+        tile.setY(tileArray[2]);
+        if (tileArray.length > 4) {
+            tileWidth = tileArray[3];
+            tileHeight = tileArray[4];
+        }
+        resolution = tileArray[0];
     }
 
     /**
@@ -138,61 +230,42 @@ public class ImageRegionCtx extends OmeroRequestCtx {
         if (regionString == null) {
             return;
         }
-        String[] regionSplit = regionString.split(",", -1);
+        int[] regionSplit = splitInts(regionString, 4);
         region = new RegionDef(
-            Integer.parseInt(regionSplit[0]),
-            Integer.parseInt(regionSplit[1]),
-            Integer.parseInt(regionSplit[2]),
-            Integer.parseInt(regionSplit[3])
+            regionSplit[0], regionSplit[1], regionSplit[2], regionSplit[3]
         );
     }
 
     /**
-     * Parses a string to channel rendering settings.
-     * Populates channels, windows and colors lists.
-     * @param channelInfo string describing the channel rendering settings:
-     * "-1|0:65535$0000FF,2|1755:51199$00FF00,3|3218:26623$FF0000"
+     * Parses a comma separated list of integers in a single pass.
+     * @param value comma separated list: "1,1,0,1024,1024"
+     * @param minimum minimum number of integers the list must contain.
+     * @return See above.
+     * @throws IllegalArgumentException If the list is malformed or too
+     * short.
      */
-    private void getChannelInfoFromString(String channelInfo) {
-        if (channelInfo == null) {
-            return;
-        }
-        String[] channelArray = channelInfo.split(",", -1);
-        channels = new ArrayList<Integer>();
-        windows = new ArrayList<Float[]>();
-        colors = new ArrayList<String>();
-        for (String channel : channelArray) {
-            // chan  1|12:1386r$0000FF
-            // temp ['1', '12:1386r$0000FF']
-            String[] temp = channel.split("\\|", 2);
-            String active = temp[0];
-            String color = null;
-            Float[] range = new Float[2];
-            String window = null;
-            // temp = '1'
-            // Not normally used...
-            if (active.indexOf("$") >= 0) {
-                String[] split = active.split("\\$", -1);
-                active = split[0];
-                color = split[1];
+    static int[] splitInts(String value, int minimum) {
+        int size = 1;
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) == ',') {
+                size++;
             }
-            channels.add(Integer.parseInt(active));
-            if (temp.length > 1) {
-                if (temp[1].indexOf("$") >= 0) {
-                    window = temp[1].split("\\$")[0];
-                    color = temp[1].split("\\$")[1];
-                }
-                String[] rangeStr = window.split(":");
-                if (rangeStr.length > 1) {
-                    range[0] = Float.parseFloat(rangeStr[0]);
-                    range[1] = Float.parseFloat(rangeStr[1]);
-                }
+        }
+        if (size < minimum) {
+            throw new IllegalArgumentException(
+                    "Expected at least " + minimum + " integers: " + value);
+        }
+        int[] values = new int[size];
+        int start = 0;
+        for (int idx = 0; idx < size; idx++) {
+            int end = value.indexOf(',', start);
+            if (end < 0) {
+                end = value.length();
             }
-            colors.add(color);
-            windows.add(range);
-            log.debug("Adding channel: {}, color: {}, window: {}",
-                    active, color, window);
+            values[idx] = ChannelSettings.parseInt(value, start, end);
+            start = end + 1;
         }
+        return values;
     }
 
     /**
@@ -218,6 +291,18 @@ public class ImageRegionCtx extends OmeroRequestCtx {
         compressionQuality = quality == null? null : Float.parseFloat(quality);
     }
 
+    /**
+     * Parses string to the output format.
+     * @param formatString output format; "jpeg" if not specified.
+     */
+    private void getFormatFromString(String formatString) {
+        if (formatString == null || "jpg".equalsIgnoreCase(formatString)) {
+            format = ImageEncoder.JPEG;
+        } else {
+            format = formatString.toLowerCase();
+        }
+    }
+
     /**
      * Parses string to boolean and sets it as inverted axis.
      * @param iaString accepted values: 0 - False, 1 - True
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.nio.charset.StandardCharsets;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import omeis.providers.re.data.RegionDef;
+
+/**
+ * Event bus codec for {@link ImageRegionCtx}.  Within a single JVM the
+ * context is passed by reference; senders must not modify a context once
+ * it has been sent.  Across a clustered event bus the context is written
+ * in a compact binary form rather than as JSON.
+ */
+public class ImageRegionCtxCodec
+        implements MessageCodec<ImageRegionCtx, ImageRegionCtx> {
+
+    /** Name the codec is registered under */
+    public static final String NAME = "ImageRegionCtx";
+
+    @Override
+    public void encodeToWire(Buffer buffer, ImageRegionCtx ctx) {
+        Writer writer = new Writer(buffer);
+        writer.writeString(ctx.omeroSessionKey);
+        writer.writeLong(ctx.imageId);
+        writer.writeInteger(ctx.z);
+        writer.writeInteger(ctx.t);
+        writer.writeRegion(ctx.tile);
+        writer.writeInteger(ctx.tileWidth);
+        writer.writeInteger(ctx.tileHeight);
+        writer.writeInteger(ctx.resolution);
+        writer.writeRegion(ctx.region);
+        // Channel settings are written as their specification, which the
+        // receiver will most likely find already parsed
+        writer.writeString(
+                ctx.channels == null? null : ctx.channels.toString());
+        writer.writeString(ctx.m);
+        writer.writeString(ctx.maps);
+        writer.writeFloat(ctx.compressionQuality);
+        writer.writeString(ctx.format);
+        writer.writeString(ctx.projection);
+        writer.writeBoolean(ctx.invertedAxis);
+    }
+
+    @Override
+    public ImageRegionCtx decodeFromWire(int pos, Buffer buffer) {
+        Reader reader = new Reader(buffer, pos);
+        ImageRegionCtx ctx = new ImageRegionCtx();
+        ctx.omeroSessionKey = reader.readString();
+        ctx.imageId = reader.readLong();
+        ctx.z = reader.readInteger();
+        ctx.t = reader.readInteger();
+        ctx.tile = reader.readRegion();
+        ctx.tileWidth = reader.readInteger();
+        ctx.tileHeight = reader.readInteger();
+        ctx.resolution = reader.readInteger();
+        ctx.region = reader.readRegion();
+        ctx.channels = ChannelSettings.parse(reader.readString());
+        ctx.m = reader.readString();
+        ctx.maps = reader.readString();
+        ctx.compressionQuality = reader.readFloat();
+        ctx.format = reader.readString();
+        ctx.projection = reader.readString();
+        ctx.invertedAxis = reader.readBoolean();
+        return ctx;
+    }
+
+    @Override
+    public ImageRegionCtx transform(ImageRegionCtx ctx) {
+        return ctx;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public byte systemCodecID() {
+        return -1;
+    }
+
+    /**
+     * Appends nullable values to a buffer, each preceded by a presence
+     * flag.
+     */
+    private static final class Writer {
+
+        private final Buffer buffer;
+
+        Writer(Buffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void writeLong(Long value) {
+            if (present(value)) {
+                buffer.appendLong(value);
+            }
+        }
+
+        void writeInteger(Integer value) {
+            if (present(value)) {
+                buffer.appendInt(value);
+            }
+        }
+
+        void writeFloat(Float value) {
+            if (present(value)) {
+                buffer.appendFloat(value);
+            }
+        }
+
+        void writeBoolean(Boolean value) {
+            if (present(value)) {
+                buffer.appendByte((byte) (value? 1 : 0));
+            }
+        }
+
+        void writeString(String value) {
+            if (value == null) {
+                buffer.appendInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer.appendInt(bytes.length);
+            buffer.appendBytes(bytes);
+        }
+
+        void writeRegion(RegionDef region) {
+            if (present(region)) {
+                buffer.appendInt(region.getX());
+                buffer.appendInt(region.getY());
+                buffer.appendInt(region.getWidth());
+                buffer.appendInt(region.getHeight());
+            }
+        }
+
+        private boolean present(Object value) {
+            buffer.appendByte((byte) (value == null? 0 : 1));
+            return value != null;
+        }
+    }
+
+    /**
+     * Reads values written by {@link Writer} from a buffer.
+     */
+    private static final class Reader {
+
+        private final Buffer buffer;
+
+        private int pos;
+
+        Reader(Buffer buffer, int pos) {
+            this.buffer = buffer;
+            this.pos = pos;
+        }
+
+        byte readByte() {
+            return buffer.getByte(pos++);
+        }
+
+        int readInt() {
+            int value = buffer.getInt(pos);
+            pos += 4;
+            return value;
+        }
+
+        Long readLong() {
+            if (readByte() == 0) {
+                return null;
+            }
+            long value = buffer.getLong(pos);
+            pos += 8;
+            return value;
+        }
+
+        Integer readInteger() {
+            return readByte() == 0? null : readInt();
+        }
+
+        Float readFloat() {
+            if (readByte() == 0) {
+                return null;
+            }
+            float value = buffer.getFloat(pos);
+            pos += 4;
+            return value;
+        }
+
+        Boolean readBoolean() {
+            return readByte() == 0? null : readByte() != 0;
+        }
+
+        String readString() {
+            int length = readInt();
+            if (length < 0) {
+                return null;
+            }
+            String value = buffer.getString(
+                    pos, pos + length, StandardCharsets.UTF_8.name());
+            pos += length;
+            return value;
+        }
+
+        RegionDef readRegion() {
+            if (readByte() == 0) {
+                return null;
+            }
+            return new RegionDef(readInt(), readInt(), readInt(), readInt());
+        }
+    }
+}
@@ -18,6 +18,9 @@
 
 package com.glencoesoftware.omero.ms.image.region;
 
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.LoggerFactory;
 
 import com.glencoesoftware.omero.ms.core.OmeroWebRedisSessionStore;
@@ -27,14 +30,19 @@ import com.glencoesoftware.omero.ms.core.OmeroWebSessionRequestHandler;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
 import io.vertx.core.eventbus.ReplyException;
 import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
-import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
@@ -52,9 +60,45 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
     private static final org.slf4j.Logger log =
             LoggerFactory.getLogger(ImageRegionMicroserviceVerticle.class);
 
+    /** Paths of the image region endpoints */
+    private static final String[] RENDER_IMAGE_REGION_PATHS = {
+        "/webgateway/render_image_region/:imageId/:z/:t*",
+        "/webclient/render_image_region/:imageId/:z/:t*"
+    };
+
+    /** Paths of the image region batch endpoints */
+    private static final String[] RENDER_IMAGE_REGION_BATCH_PATHS = {
+        "/webgateway/render_image_region_batch/:imageId/:z/:t*",
+        "/webclient/render_image_region_batch/:imageId/:z/:t*"
+    };
+
+    /** Requests sent on the event bus which have not yet been replied to */
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+
+    /**
+     * Router of requests to the node of the cluster which owns their image;
+     * <code>null</code> if not in a cluster
+     */
+    private ClusterRouter clusterRouter;
+
     /** OMERO.web session store */
     private OmeroWebSessionStore sessionStore;
 
+    /**
+     * Near-cache of the OMERO session keys of OMERO.web sessions;
+     * <code>null</code> if disabled
+     */
+    private OmeroWebSessionCache webSessionCache;
+
+    /** <code>Cache-Control</code> header sent with rendered image regions */
+    private String cacheControl;
+
+    /**
+     * <code>Retry-After</code> header, in seconds, sent when the server is
+     * too busy to render an image region
+     */
+    private String retryAfter;
+
     /**
      * Entry point method which starts the server event loop and initializes
      * our current OMERO.web session store.
@@ -69,33 +113,102 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
             root.setLevel(Level.DEBUG);
         }
 
-        // Deploy our dependency verticles
-        JsonObject omero = config().getJsonObject("omero");
-        vertx.deployVerticle(new ImageRegionVerticle(
-                omero.getString("host"), omero.getInteger("port")),
-                new DeploymentOptions().setWorker(
-                        true).setMultiThreaded(true));
+        // Image region contexts and rendered image regions are passed by
+        // reference between verticles
+        try {
+            vertx.eventBus().registerDefaultCodec(
+                    ImageRegionCtx.class, new ImageRegionCtxCodec());
+            vertx.eventBus().registerCodec(new BufferReferenceCodec());
+        } catch (IllegalStateException e) {
+            // Registered by another node deployed in this Vert.x instance
+            log.debug("Codecs already registered", e);
+        }
+
+        // Route requests to the node which owns their image when clustered;
+        // the node id is passed on to the image region verticle
+        JsonObject config = config();
+        JsonObject clusterConfig =
+                config.getJsonObject("cluster", new JsonObject());
+        if (clusterConfig.getBoolean("enabled", false)) {
+            String nodeId = clusterConfig.getString(
+                    "node-id", UUID.randomUUID().toString());
+            clusterRouter = new ClusterRouter(
+                    vertx, nodeId,
+                    clusterConfig.getInteger("virtual-nodes", 128),
+                    clusterConfig.getLong("heartbeat-interval-ms", 1000L),
+                    clusterConfig.getLong("node-timeout-ms", 5000L));
+            config = config.copy().put(
+                    "cluster", clusterConfig.copy().put("node-id", nodeId));
+            MetricsRegistry.DEFAULT.gauge(
+                    MetricsRegistry.PREFIX + "cluster_nodes",
+                    "Instances in the cluster known to be up",
+                    clusterRouter::size);
+        }
+
+        // Deploy our dependency verticles; this node only joins the
+        // cluster once it can render the requests routed to it
+        vertx.deployVerticle(createImageRegionVerticle(),
+                new DeploymentOptions()
+                        .setWorker(true)
+                        .setMultiThreaded(true)
+                        .setConfig(config), deployed -> {
+            if (clusterRouter != null && deployed.succeeded()) {
+                clusterRouter.start();
+            }
+        });
 
         HttpServer server = vertx.createHttpServer();
         Router router = Router.router(vertx);
 
+        // Metrics, which need no OMERO session, and instrumentation of the
+        // image region endpoints ahead of the session handler so that
+        // requests it refuses are counted
+        router.get("/metrics").handler(this::metrics);
+        for (String path : RENDER_IMAGE_REGION_PATHS) {
+            router.get(path).handler(
+                    event -> instrument(event, "render_image_region"));
+        }
+        for (String path : RENDER_IMAGE_REGION_BATCH_PATHS) {
+            router.get(path).handler(
+                    event -> instrument(event, "render_image_region_batch"));
+        }
+        MetricsRegistry.DEFAULT.gauge(
+                MetricsRegistry.PREFIX + "requests_pending",
+                "Requests sent on the event bus awaiting a reply",
+                pendingRequests::get);
+
         // Cookie handler so we can pick up the OMERO.web session
         router.route().handler(CookieHandler.create());
 
         // OMERO session handler which picks up the session key from the
-        // OMERO.web session and joins it.
-        JsonObject redis = config().getJsonObject("redis");
-        sessionStore = new OmeroWebRedisSessionStore(redis.getString("uri"));
-        router.route().handler(
-                new OmeroWebSessionRequestHandler(sessionStore));
+        // OMERO.web session and joins it, only looking up sessions in the
+        // session store which are not in the near-cache.
+        Handler<RoutingContext> sessionHandler = createSessionHandler();
+        JsonObject webSessionCacheConfig = config().getJsonObject(
+                "omero-web-session-cache", new JsonObject());
+        if (webSessionCacheConfig.getBoolean("enabled", true)) {
+            webSessionCache = new OmeroWebSessionCache(
+                    webSessionCacheConfig.getInteger("size", 10000),
+                    webSessionCacheConfig.getInteger("ttl", 10));
+            router.route().handler(webSessionCache.lookup(sessionHandler));
+            router.route().handler(webSessionCache::store);
+        } else {
+            router.route().handler(sessionHandler);
+        }
+
+        cacheControl =
+                config().getString("cache-control", "private, no-cache");
+        retryAfter = String.valueOf(config().getJsonObject(
+                "render-scheduler", new JsonObject())
+                .getInteger("retry-after", 1));
 
         // ImageRegion request handlers
-        router.get(
-                "/webgateway/render_image_region/:imageId/:z/:t*")
-            .handler(this::renderImageRegion);
-        router.get(
-                "/webclient/render_image_region/:imageId/:z/:t*")
-            .handler(this::renderImageRegion);
+        for (String path : RENDER_IMAGE_REGION_PATHS) {
+            router.get(path).handler(this::renderImageRegion);
+        }
+        for (String path : RENDER_IMAGE_REGION_BATCH_PATHS) {
+            router.get(path).handler(this::renderImageRegionBatch);
+        }
 
         int port = config().getInteger("port");
         log.info("Starting HTTP server *:{}", port);
@@ -114,15 +227,48 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
      */
     @Override
     public void stop() throws Exception {
-        sessionStore.close();
+        if (clusterRouter != null) {
+            clusterRouter.stop();
+        }
+        if (sessionStore != null) {
+            sessionStore.close();
+        }
+    }
+
+    /**
+     * Creates the verticle which renders image regions against the OMERO
+     * server configured in <code>omero</code>.
+     * @return See above.
+     */
+    protected ImageRegionVerticle createImageRegionVerticle() {
+        JsonObject omero = config().getJsonObject("omero");
+        return new ImageRegionVerticle(
+                omero.getString("host"), omero.getInteger("port"));
+    }
+
+    /**
+     * Creates the handler which puts the OMERO session key of each
+     * request's OMERO.web session, looked up in the Redis session store
+     * configured in <code>redis</code>, into the routing context as
+     * <code>omero.session_key</code>.
+     * @return See above.
+     */
+    protected Handler<RoutingContext> createSessionHandler() {
+        JsonObject redis = config().getJsonObject("redis");
+        sessionStore = new OmeroWebRedisSessionStore(redis.getString("uri"));
+        return new OmeroWebSessionRequestHandler(sessionStore);
     }
 
     /**
      * Render image region event handler.
-     * Responds with a <code>image/jpeg</code> body on success based
-     * on the <code>imageId</code>, <code>z</code> and <code>t</code>
-     * encoded in the URL or HTTP 404 if the {@link Image} does not exist
-     * or the user does not have permissions to access it.
+     * Responds with a <code>image/jpeg</code>, <code>image/png</code> or
+     * raw RGBA body, as selected by the <code>format</code> parameter, on
+     * success based on the <code>imageId</code>, <code>z</code> and
+     * <code>t</code> encoded in the URL or HTTP 404 if the {@link Image}
+     * does not exist or the user does not have permissions to access it.
+     * Conditional requests whose <code>If-None-Match</code> or
+     * <code>If-Modified-Since</code> headers match the current version of
+     * the image region are answered with HTTP 304.
      * @param event Current routing context.
      */
     private void renderImageRegion(RoutingContext event) {
@@ -132,28 +278,299 @@ public class ImageRegionMicroserviceVerticle extends AbstractVerticle {
                 request.params(), event.get("omero.session_key"));
 
         final HttpServerResponse response = event.response();
-        vertx.eventBus().send(
-                ImageRegionVerticle.RENDER_IMAGE_REGION_EVENT,
-                Json.encode(imageRegionCtx), result -> {
-            try {
-                if (result.failed()) {
-                    Throwable t = result.cause();
-                    int statusCode = 404;
-                    if (t instanceof ReplyException) {
-                        statusCode = ((ReplyException) t).failureCode();
-                    }
-                    response.setStatusCode(statusCode);
-                    return;
+        DeliveryOptions options = new DeliveryOptions();
+        cancelOnClose(response, options);
+        for (String name : new String[] {
+                "If-None-Match", "If-Modified-Since" }) {
+            String value = request.getHeader(name);
+            if (value != null) {
+                options.addHeader(name, value);
+            }
+        }
+        pendingRequests.incrementAndGet();
+        send(ImageRegionVerticle.RENDER_IMAGE_REGION_EVENT,
+                imageRegionCtx, options, result -> {
+            pendingRequests.decrementAndGet();
+            if (response.closed()) {
+                log.debug("Client went away");
+                return;
+            }
+            if (result.failed()) {
+                Throwable t = result.cause();
+                int statusCode = 404;
+                if (t instanceof ReplyException) {
+                    statusCode = ((ReplyException) t).failureCode();
+                }
+                if (statusCode == 503) {
+                    response.headers().set("Retry-After", retryAfter);
+                }
+                if (statusCode == 403 && webSessionCache != null) {
+                    // The OMERO session has expired or been denied
+                    webSessionCache.invalidate(event);
+                }
+                response.setStatusCode(statusCode);
+                response.end();
+                log.debug("Response ended");
+                return;
+            }
+            Message<Object> reply = result.result();
+            MultiMap headers = response.headers();
+            headers.set("Cache-Control", cacheControl);
+            for (String name : new String[] { "ETag", "Last-Modified" }) {
+                String value = reply.headers().get(name);
+                if (value != null) {
+                    headers.set(name, value);
+                }
+            }
+            Object body = reply.body();
+            if (body == null) {
+                // Client already has the current image region
+                response.setStatusCode(304);
+                response.end();
+                log.debug("Response ended");
+                return;
+            }
+            headers.set(
+                    "Content-Type",
+                    ImageEncoder.getContentType(imageRegionCtx.format));
+            if (body instanceof JsonObject) {
+                // Image region is in the disk tile cache
+                JsonObject location = (JsonObject) body;
+                response.sendFile(
+                        location.getString("path"),
+                        location.getLong("offset"),
+                        location.getLong("length"),
+                        sent -> {
+                            if (sent.failed()) {
+                                log.error("Exception while sending file",
+                                        sent.cause());
+                            }
+                            log.debug("Response ended");
+                        });
+                return;
+            }
+            Buffer imageRegion = (Buffer) body;
+            response.headers().set(
+                    "Content-Length",
+                    String.valueOf(imageRegion.length()));
+            response.end(imageRegion);
+            log.debug("Response ended");
+        });
+    }
+
+    /**
+     * Render image region batch event handler.
+     * Renders every tile listed in the repeated <code>tile</code>
+     * parameter with the settings of the remaining parameters, as for
+     * {@link #renderImageRegion(RoutingContext)}, and streams them in a
+     * chunked <code>application/octet-stream</code> body as they are
+     * rendered.  Each tile is framed by its position in the request and
+     * its length, both big endian 32 bit integers; tiles which could not be
+     * rendered have a length of zero.  Responds with HTTP 404 if the
+     * {@link Image} does not exist or the user does not have permissions
+     * to access it.
+     * @param event Current routing context.
+     */
+    private void renderImageRegionBatch(RoutingContext event) {
+        log.info("Rendering image region batch");
+        HttpServerRequest request = event.request();
+        final HttpServerResponse response = event.response();
+        ImageRegionCtx imageRegionCtx;
+        try {
+            imageRegionCtx = new ImageRegionCtx(
+                    request.params(), event.get("omero.session_key"));
+        } catch (Exception e) {
+            log.debug("Illegal image region batch parameters", e);
+            response.setStatusCode(400);
+            response.end();
+            return;
+        }
+
+        // Tiles are sent to a per request address as they are rendered
+        String streamAddress = ImageRegionVerticle
+                .RENDER_IMAGE_REGION_BATCH_EVENT + "." + UUID.randomUUID();
+        MessageConsumer<Buffer> consumer =
+                vertx.eventBus().consumer(streamAddress);
+        TileStreamWriter writer = new TileStreamWriter(
+                consumer, request.params().getAll("tile").size(), response);
+        consumer.handler(writer);
+
+        DeliveryOptions options = new DeliveryOptions()
+                .addHeader("stream-address", streamAddress);
+        cancelOnClose(response, options, v -> writer.close());
+        for (String tile : request.params().getAll("tile")) {
+            options.addHeader("tile", tile);
+        }
+        // In a cluster the consumer's registration has to have propagated
+        // before the node rendering the batch streams tiles to it
+        consumer.completionHandler(registered -> {
+            if (registered.failed()) {
+                log.error("Cannot register image region batch stream",
+                        registered.cause());
+                if (!response.closed()) {
+                    response.setStatusCode(500);
+                    response.end();
+                }
+                return;
+            }
+            if (response.closed()) {
+                log.debug("Client went away");
+                consumer.unregister();
+                return;
+            }
+            sendBatch(event, imageRegionCtx, consumer, options);
+        });
+    }
+
+    /**
+     * Sends an image region batch request once the consumer its tiles are
+     * streamed to has been registered, and responds to the reply.
+     * @param event Current routing context.
+     * @param imageRegionCtx request.
+     * @param consumer consumer of the address the tiles are streamed to.
+     * @param options delivery options of the request.
+     */
+    private void sendBatch(
+            RoutingContext event, ImageRegionCtx imageRegionCtx,
+            MessageConsumer<Buffer> consumer, DeliveryOptions options) {
+        HttpServerResponse response = event.response();
+        pendingRequests.incrementAndGet();
+        send(ImageRegionVerticle.RENDER_IMAGE_REGION_BATCH_EVENT,
+                imageRegionCtx, options, result -> {
+            pendingRequests.decrementAndGet();
+            if (result.failed()) {
+                consumer.unregister();
+            }
+            if (response.closed()) {
+                log.debug("Client went away");
+                return;
+            }
+            if (result.failed()) {
+                Throwable t = result.cause();
+                int statusCode = 404;
+                if (t instanceof ReplyException) {
+                    statusCode = ((ReplyException) t).failureCode();
+                }
+                if (statusCode == 503) {
+                    response.headers().set("Retry-After", retryAfter);
+                }
+                if (statusCode == 403 && webSessionCache != null) {
+                    // The OMERO session has expired or been denied
+                    webSessionCache.invalidate(event);
                 }
-                byte[] imageRegion = (byte []) result.result().body();
-                response.headers().set("Content-Type", "image/jpeg");
-                response.headers().set(
-                        "Content-Length",
-                        String.valueOf(imageRegion.length));
-                response.write(Buffer.buffer(imageRegion));
-            } finally {
+                response.setStatusCode(statusCode);
                 response.end();
                 log.debug("Response ended");
+                return;
+            }
+            response.setChunked(true);
+            MultiMap headers = response.headers();
+            headers.set("Cache-Control", cacheControl);
+            headers.set("Content-Type", "application/octet-stream");
+        });
+    }
+
+    /**
+     * Sends a request to the image region verticle of this node or, in a
+     * cluster, of the node which owns the request's image.  Requests for a
+     * node which has gone are rendered by this node instead.
+     * @param address address of the request.
+     * @param imageRegionCtx request.
+     * @param options delivery options of the request.
+     * @param replyHandler handler of the reply.
+     */
+    private <T> void send(
+            String address, ImageRegionCtx imageRegionCtx,
+            DeliveryOptions options,
+            Handler<AsyncResult<Message<T>>> replyHandler) {
+        if (clusterRouter == null) {
+            vertx.eventBus().send(
+                    address, imageRegionCtx, options, replyHandler);
+            return;
+        }
+        clusterRouter.send(
+                address, imageRegionCtx.imageId, imageRegionCtx, options,
+                replyHandler);
+    }
+
+    /**
+     * Metrics event handler.
+     * Responds with all metrics of this process in the Prometheus text
+     * exposition format.
+     * @param event Current routing context.
+     */
+    private void metrics(RoutingContext event) {
+        event.response()
+            .putHeader("Content-Type", MetricsRegistry.CONTENT_TYPE)
+            .end(MetricsRegistry.DEFAULT.scrape());
+    }
+
+    /**
+     * Records the duration and status code of a request to one of the
+     * image region endpoints once its response has been sent, or with a
+     * status code of 499 if the client goes away first, then passes the
+     * request on to the next handler.
+     * @param event Current routing context.
+     * @param endpoint name of the endpoint.
+     */
+    private void instrument(RoutingContext event, String endpoint) {
+        long start = System.nanoTime();
+        HttpServerResponse response = event.response();
+        Runnable record = () -> {
+            MetricsRegistry.DEFAULT.histogram(
+                    MetricsRegistry.PREFIX + "request_duration_seconds",
+                    "Duration of HTTP requests by endpoint",
+                    "endpoint", endpoint)
+                .record(System.nanoTime() - start);
+            MetricsRegistry.DEFAULT.counter(
+                    MetricsRegistry.PREFIX + "responses_total",
+                    "HTTP responses by endpoint and status code",
+                    "endpoint", endpoint,
+                    "status", response.ended()?
+                            String.valueOf(response.getStatusCode()) : "499")
+                .increment();
+        };
+        event.addBodyEndHandler(v -> record.run());
+        response.endHandler(v -> {
+            if (!response.ended()) {
+                record.run();
+            }
+        });
+        event.next();
+    }
+
+    /**
+     * Identifies a request so that it can be cancelled, dropping it if it
+     * is still queued or abandoning it between rendering stages, if the
+     * client goes away before the response has been sent.
+     * @param response response to the request.
+     * @param options delivery options of the request.
+     */
+    private void cancelOnClose(
+            HttpServerResponse response, DeliveryOptions options) {
+        cancelOnClose(response, options, v -> {});
+    }
+
+    /**
+     * Identifies a request so that it can be cancelled, as for
+     * {@link #cancelOnClose(HttpServerResponse, DeliveryOptions)}, also
+     * notifying a handler if the client goes away.
+     * @param response response to the request.
+     * @param options delivery options of the request.
+     * @param closeHandler handler notified when the connection closes.
+     */
+    private void cancelOnClose(
+            HttpServerResponse response, DeliveryOptions options,
+            Handler<Void> closeHandler) {
+        String requestId = UUID.randomUUID().toString();
+        options.addHeader("request-id", requestId);
+        response.closeHandler(v -> {
+            closeHandler.handle(null);
+            if (!response.ended()) {
+                log.debug("Client went away; cancelling {}", requestId);
+                // Published as the request may be on another node
+                vertx.eventBus().publish(
+                        ImageRegionVerticle.CANCEL_REQUEST_EVENT, requestId);
             }
         });
     }
@@ -18,23 +18,32 @@
 
 package com.glencoesoftware.omero.ms.image.region;
 
-import static omero.rtypes.unwrap;
-
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
 
-import org.perf4j.StopWatch;
-import org.perf4j.slf4j.Slf4JStopWatch;
 import org.slf4j.LoggerFactory;
 
+import omero.SecurityViolation;
 import omero.ServerError;
+import omero.api.IAdminPrx;
+import omero.api.IQueryPrx;
 import omero.api.RenderingEnginePrx;
-import omero.model.RenderingModel;
 import omero.model.IObject;
 import omero.model.Image;
+import omero.model.Pixels;
 import omero.romio.PlaneDef;
 import omero.romio.RegionDef;
 import omero.sys.ParametersI;
@@ -44,16 +53,77 @@ public class ImageRegionRequestHandler {
     private static final org.slf4j.Logger log =
             LoggerFactory.getLogger(ImageRegionRequestHandler.class);
 
+    /**
+     * Compression quality used by the rendering engine when none has been
+     * explicitly set
+     */
+    public static final float DEFAULT_COMPRESSION_QUALITY = 0.85f;
+
     /** Image Region Context */
     private final ImageRegionCtx imageRegionCtx;
 
+    /** Encoder of image regions rendered as packed pixels */
+    private final ImageEncoder encoder;
+
+    /** Pool of loaded rendering engines */
+    private final RenderingEnginePool enginePool;
+
+    /** Cache of Image metadata */
+    private final ImageMetadataCache metadataCache;
+
+    /** Cache of rendering models and pyramid geometry */
+    private final RenderingMetadataCache renderingMetadataCache;
+
+    /** Cache of rendered image regions */
+    private final TileCache tileCache;
+
+    /**
+     * Whether or not to render image regions in process from raw pixel
+     * data when the request allows it
+     */
+    private final boolean localRendering;
+
+    /** Projector of Z sections for projected image regions */
+    private final ZProjector projector;
+
+    /**
+     * Whether or not the request has been cancelled and rendering of the
+     * image region, given its cache key, should be abandoned
+     */
+    private final Predicate<String> cancelled;
+
     /**
      * Default constructor.
      * @param imageRegionCtx {@link ImageRegionCtx} object
+     * @param enginePool pool to borrow loaded rendering engines from
+     * @param metadataCache cache of Image metadata
+     * @param renderingMetadataCache cache of rendering models and pyramid
+     * geometry
+     * @param tileCache cache of rendered image regions
+     * @param localRendering whether or not to render image regions in
+     * process from raw pixel data when the request allows it
+     * @param encoder encoder of image regions rendered as packed pixels
+     * @param projector projector of Z sections for projected image regions
+     * @param cancelled whether or not the request has been cancelled and
+     * rendering of the image region, given its cache key, should be
+     * abandoned
      */
-    public ImageRegionRequestHandler(ImageRegionCtx imageRegionCtx) {
-        log.info("Setting up handler");
+    public ImageRegionRequestHandler(
+            ImageRegionCtx imageRegionCtx, RenderingEnginePool enginePool,
+            ImageMetadataCache metadataCache,
+            RenderingMetadataCache renderingMetadataCache,
+            TileCache tileCache, boolean localRendering, ImageEncoder encoder,
+            ZProjector projector, Predicate<String> cancelled) {
+        log.debug("Setting up handler");
         this.imageRegionCtx = imageRegionCtx;
+        this.enginePool = enginePool;
+        this.metadataCache = metadataCache;
+        this.renderingMetadataCache = renderingMetadataCache;
+        this.tileCache = tileCache;
+        this.localRendering = localRendering;
+        this.encoder = encoder;
+        this.projector = projector;
+        this.cancelled = cancelled;
     }
 
     /**
@@ -62,162 +132,574 @@ public class ImageRegionRequestHandler {
      * <code>imageId</code>, <code>z</code> and <code>t</code> encoded in the
      * URL or HTTP 404 if the {@link Image}
      * does not exist or the user does not have permissions to access it.
-     * @param event Current routing context.
+     * Image regions rendered by the server are rendered without a thread
+     * waiting on the calls made to it.
+     * @param client joined OMERO client to render the image region with.
+     * @param image metadata of the {@link Image} as returned by
+     * {@link #getImageMetadata(omero.client)}.
+     * @param executor executor of the work done in process once the server
+     * has replied, such as encoding.
+     * @param localExecutor executor of rendering and projection in
+     * process, which block on reading raw pixel data.
+     * @return Future image region, <code>null</code> if the session's user
+     * does not have permission to read it, which fails if the image region
+     * could not be rendered; with a {@link ServerError} if the session has
+     * expired, in which case the session should be discarded by the caller,
+     * with an {@link IllegalArgumentException} if the request is invalid or
+     * with a {@link CancellationException} if the request was cancelled
+     * before the image region was rendered.
      */
-    public byte[] renderImageRegion(omero.client client) {
-        StopWatch t0 = new Slf4JStopWatch("renderImageRegion");
+    public CompletableFuture<byte[]> renderImageRegion(
+            omero.client client, ImageMetadata image, Executor executor,
+            Executor localExecutor) {
+        String cacheKey = getCacheKey(image);
+        byte[] cached = tileCache.get(cacheKey);
+        if (cached != null) {
+            log.debug("Tile cache hit: {}", cacheKey);
+            return CompletableFuture.completedFuture(cached);
+        }
+        StageTimer t0 = new StageTimer("renderImageRegion");
+        CompletableFuture<byte[]> imageRegion;
         try {
-            Image image = getImage(client, imageRegionCtx.imageId);
-            if (image != null) {
-                return getRegion(client, image);
+            checkCancelled(image);
+            if (imageRegionCtx.projection != null
+                    && !LocalRenderer.canRender(imageRegionCtx)) {
+                // Projected regions can only be rendered in process
+                throw new IllegalArgumentException(
+                        "Projections require the rendering model and "
+                        + "the window and color of every active channel");
+            }
+            if (rendersLocally()) {
+                imageRegion =
+                        getRegionLocally(client, image, localExecutor);
             } else {
-                log.debug("Cannot find Image:{}", imageRegionCtx.imageId);
+                imageRegion = getRegion(client, image, executor);
             }
         } catch (Exception e) {
-            log.error("Exception while retrieving thumbnail", e);
-        } finally {
+            imageRegion = new CompletableFuture<byte[]>();
+            imageRegion.completeExceptionally(e);
+        }
+        return imageRegion.handle((rendered, t) -> {
             t0.stop();
+            if (t == null) {
+                tileCache.put(cacheKey, rendered);
+                return rendered;
+            }
+            Throwable cause = IceFutures.unwrap(t);
+            if (cause instanceof SecurityViolation) {
+                // The pixels cannot be read by the session's user
+                log.debug("Cannot access Image:{}", image.imageId, cause);
+                return null;
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    /**
+     * Retrieves the metadata of the requested {@link Image} from the cache
+     * or, if the current session has not recently retrieved it, from the
+     * server, along with the id of the session's user.  As the metadata is
+     * cached per session retrieving it also ensures that the session has
+     * access to the image before a cached image region is returned.
+     * @param client OMERO client to use for querying.
+     * @return Future metadata of the {@link Image} and its primary
+     * {@link Pixels}, <code>null</code> if the image does not exist, which
+     * fails if there was any sort of error retrieving the image.
+     */
+    public CompletableFuture<ImageMetadata> getImageMetadata(
+            omero.client client) {
+        Long imageId = imageRegionCtx.imageId;
+        ImageMetadata metadata =
+                metadataCache.get(imageRegionCtx.omeroSessionKey, imageId);
+        if (metadata != null) {
+            log.debug("Using cached {}", metadata);
+            return CompletableFuture.completedFuture(metadata);
+        }
+        CompletableFuture<Long> userId = getUserId(client);
+        return getImage(client, imageId).thenCombine(userId, (image, user) -> {
+            if (image == null) {
+                log.debug("Cannot find Image:{}", imageId);
+                return null;
+            }
+            ImageMetadata retrieved = ImageMetadata.fromImage(image, user);
+            metadataCache.put(imageRegionCtx.omeroSessionKey, retrieved);
+            return retrieved;
+        });
+    }
+
+    /**
+     * Builds the key under which the requested image region is cached; the
+     * canonical rendering parameters qualified by the version of the
+     * image's pixels and rendering definitions so that changes to either
+     * are never masked by a cached region.  Unless the image region is
+     * rendered in process, which requires every rendering setting the key
+     * names, some settings are those of the user's own rendering
+     * definition, such as the quantization applied by the server, so the
+     * key is also qualified by the user.
+     * @param image metadata of the {@link Image}.
+     * @return See above.
+     */
+    public String getCacheKey(ImageMetadata image) {
+        String cacheKey = imageRegionCtx.cacheKey() + "/v=" + image.version;
+        if (!rendersLocally()) {
+            cacheKey += "/u=" + image.userId;
+        }
+        return cacheKey;
+    }
+
+    /**
+     * @return Whether or not the requested image region is rendered in
+     * process rather than by the server.
+     */
+    private boolean rendersLocally() {
+        return (localRendering || imageRegionCtx.projection != null)
+                && LocalRenderer.canRender(imageRegionCtx);
+    }
+
+    /**
+     * Builds a strong HTTP entity tag for a rendered image region.
+     * @param cacheKey key under which the image region is cached as
+     * returned by {@link #getCacheKey(ImageMetadata)}.
+     * @return Quoted entity tag.
+     */
+    public static String getETag(String cacheKey) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest =
+                    md5.digest(cacheKey.getBytes(StandardCharsets.UTF_8));
+            StringBuilder etag = new StringBuilder(34).append('"');
+            for (byte b : digest) {
+                etag.append(Character.forDigit((b >> 4) & 0xF, 16));
+                etag.append(Character.forDigit(b & 0xF, 16));
+            }
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 is required to be supported by every Java platform
+            throw new IllegalStateException(e);
         }
-        return null;
     }
 
     /**
      * Retrieves a single {@link Image} from the server.
      * @param client OMERO client to use for querying.
      * @param imageId {@link Image} identifier to query for.
-     * @return Loaded {@link Image} and primary {@link Pixels} or
-     * <code>null</code> if the image does not exist.
-     * @throws ServerError If there was any sort of error retrieving the image.
+     * @return Future loaded {@link Image} and primary {@link Pixels},
+     * <code>null</code> if the image does not exist, which fails if there
+     * was any sort of error retrieving the image.
      */
-    private Image getImage(omero.client client, Long imageId)
-            throws ServerError {
-        return (Image) getImages(client, Arrays.asList(imageId))
-                .stream()
-                .findFirst()
-                .orElse(null);
+    private CompletableFuture<Image> getImage(
+            omero.client client, Long imageId) {
+        return getImages(client, Arrays.asList(imageId))
+                .thenApply(images -> (Image) images
+                        .stream()
+                        .findFirst()
+                        .orElse(null));
+    }
+
+    /**
+     * Retrieves the id of the user of the current session from the server.
+     * @param client OMERO client to use for querying.
+     * @return Future id of the user which fails if there was any sort of
+     * error retrieving it.
+     */
+    private CompletableFuture<Long> getUserId(omero.client client) {
+        IAdminPrx adminService;
+        try {
+            adminService = client.getSession().getAdminService();
+        } catch (ServerError e) {
+            CompletableFuture<Long> failed = new CompletableFuture<Long>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return IceFutures.call(
+            "getEventContext",
+            callback -> adminService.begin_getEventContext(callback),
+            adminService::end_getEventContext
+        ).thenApply(eventContext -> eventContext.userId);
     }
 
     /**
      * Retrieves a single {@link Image} from the server.
      * @param client OMERO client to use for querying.
      * @param imageIds {@link Image} identifiers to query for.
-     * @return List of loaded {@link Image} and primary {@link Pixels}.
-     * @throws ServerError If there was any sort of error retrieving the images.
+     * @return Future list of loaded {@link Image} and primary
+     * {@link Pixels} which fails if there was any sort of error retrieving
+     * the images.
      */
-    private List<IObject> getImages(omero.client client, List<Long> imageIds)
-            throws ServerError {
+    private CompletableFuture<List<IObject>> getImages(
+            omero.client client, List<Long> imageIds) {
         Map<String, String> ctx = new HashMap<String, String>();
         ctx.put("omero.group", "-1");
         ParametersI params = new ParametersI();
         params.addIds(imageIds);
-        StopWatch t0 = new Slf4JStopWatch("getImages");
+        IQueryPrx queryService;
         try {
-            return client.getSession().getQueryService().findAllByQuery(
-                "SELECT i FROM Image as i " +
-                "JOIN FETCH i.pixels as p WHERE i.id IN (:ids)",
-                params, ctx
-            );
-        } finally {
-            t0.stop();
+            queryService = client.getSession().getQueryService();
+        } catch (ServerError e) {
+            CompletableFuture<List<IObject>> failed =
+                    new CompletableFuture<List<IObject>>();
+            failed.completeExceptionally(e);
+            return failed;
         }
+        return IceFutures.call(
+            "getImages",
+            callback -> queryService.begin_findAllByQuery(
+                "SELECT i FROM Image as i " +
+                "JOIN FETCH i.pixels as p " +
+                "JOIN FETCH p.details.updateEvent " +
+                "LEFT OUTER JOIN FETCH p.settings as rdef " +
+                "LEFT OUTER JOIN FETCH rdef.details.updateEvent " +
+                "WHERE i.id IN (:ids)",
+                params, ctx, callback
+            ),
+            queryService::end_findAllByQuery
+        );
     }
 
     /**
-     * Retrieves a single JPEG region from the server.
+     * Retrieves a single image region from the server.  The rendering
+     * engine is borrowed from the pool, loaded only if it has not been used
+     * before and returned to the pool once the region has been rendered.
+     * JPEG regions are compressed by the server; other formats are
+     * retrieved as packed pixels and encoded locally.  Calls are made
+     * asynchronously; those which do not depend on each other, the
+     * rendering settings, are sent together so that applying them costs a
+     * single round trip.
      * @param client OMERO client to use for image region retrieval.
-     * @param image {@link Image} instance to retrieve image region for.
-     * @return JPEG image region as a byte array.
-     * @throws Exception
+     * @param image metadata of the {@link Image} to retrieve image region
+     * for.
+     * @param executor executor of the encoding of packed pixels.
+     * @return Future image region encoded in the requested format as a
+     * byte array.
+     * @throws ServerError If the rendering engine cannot be created.
      */
-    private byte[] getRegion(omero.client client, Image image)
-            throws IllegalArgumentException, ServerError {
+    private CompletableFuture<byte[]> getRegion(
+            omero.client client, ImageMetadata image, Executor executor)
+                    throws ServerError {
         log.debug("Getting image region");
-        Integer sizeC = (Integer) unwrap(image.getPrimaryPixels().getSizeC());
-        Long pixelsId = (Long) unwrap(image.getPrimaryPixels().getId());
+        int sizeC = image.sizeC;
+        long pixelsId = image.pixelsId;
         Map<String, String> ctx = new HashMap<String, String>();
-        ctx.put("omero.group",
-                String.valueOf(unwrap(image.getDetails().getGroup().getId())));
-        RenderingEnginePrx renderingEngine =
-                client.getSession().createRenderingEngine();
+        ctx.put("omero.group", String.valueOf(image.groupId));
+        PooledRenderingEngine pooledEngine =
+                enginePool.borrow(client, pixelsId);
+        RenderingEnginePrx renderingEngine;
         try {
-            StopWatch t0 = new Slf4JStopWatch("RenderingEngine.lookupPixels");
-            try {
-                renderingEngine.lookupPixels(pixelsId, ctx);
-                if (!(renderingEngine.lookupRenderingDef(pixelsId, ctx))) {
-                    renderingEngine.resetDefaultSettings(true, ctx);
-                    renderingEngine.lookupRenderingDef(pixelsId, ctx);
-                }
-            } finally {
-                t0.stop();
-            }
-            t0 = new Slf4JStopWatch("RenderingEngine.load");
-            try {
-                renderingEngine.load(ctx);
-            } finally {
-                t0.stop();
-            }
+            renderingEngine = pooledEngine.getRenderingEngine();
+        } catch (ServerError | RuntimeException e) {
+            enginePool.invalidate(pooledEngine);
+            throw e;
+        }
+        RenderingEngineState state = pooledEngine.getState();
+        boolean reused = pooledEngine.isLoaded();
+        CompletableFuture<Void> loaded;
+        if (!reused) {
+            loaded = load(renderingEngine, pixelsId, ctx).thenRun(() -> {
+                pooledEngine.setLoaded();
+                state.reset(sizeC);
+            });
+        } else if (requiresRenderingDefReset(state)) {
+            // Restore the rendering definition's model, channel windows
+            // and colors as a previous request may have changed them
+            loaded = IceFutures.run(
+                    "RenderingEngine.load",
+                    callback -> renderingEngine.begin_load(ctx, callback),
+                    renderingEngine::end_load)
+                .thenRun(() -> state.reset(sizeC));
+        } else {
+            loaded = CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<PyramidGeometry> applied = loaded.thenCompose(v -> {
+            checkCancelled(image);
+            CompletableFuture<PyramidGeometry> geometry =
+                    renderingMetadataCache.getPyramidGeometry(
+                            renderingEngine, pixelsId);
+            List<CompletableFuture<?>> pending =
+                    new ArrayList<CompletableFuture<?>>();
+            pending.add(setResolutionLevel(
+                    renderingEngine, geometry, reused, state));
+            pending.add(setRenderingModel(renderingEngine, state));
+            pending.add(setActiveChannels(renderingEngine, sizeC, ctx, state));
+            pending.add(setCompressionLevel(renderingEngine, reused, state));
+            return IceFutures.allOf(pending).thenApply(w -> geometry.join());
+        });
+        CompletableFuture<PlaneDef> planeDef = applied.thenApply(geometry -> {
+            checkCancelled(image);
             PlaneDef pDef = new PlaneDef();
             pDef.z = imageRegionCtx.z;
             pDef.t = imageRegionCtx.t;
-            pDef.region = getRegionDef(renderingEngine);
-            setRenderingModel(renderingEngine);
-            setActiveChannels(renderingEngine, sizeC, ctx);
-            setResolutionLevel(renderingEngine);
-            setCompressionLevel(renderingEngine);
-            t0 = new Slf4JStopWatch("RenderingEngine.renderCompressed");
+            pDef.region = getRegionDef(geometry);
+            return pDef;
+        });
+        if (ImageEncoder.JPEG.equals(imageRegionCtx.format)) {
+            CompletableFuture<byte[]> compressed = planeDef.thenCompose(
+                    pDef -> IceFutures.call(
+                            "RenderingEngine.renderCompressed",
+                            callback -> renderingEngine
+                                    .begin_renderCompressed(pDef, callback),
+                            renderingEngine::end_renderCompressed));
+            return release(pooledEngine, compressed, executor);
+        }
+        CompletableFuture<int[]> rendered = release(
+                pooledEngine,
+                planeDef.thenCompose(pDef -> IceFutures.call(
+                        "RenderingEngine.renderAsPackedInt",
+                        callback -> renderingEngine
+                                .begin_renderAsPackedInt(pDef, callback),
+                        renderingEngine::end_renderAsPackedInt)),
+                executor);
+        return planeDef.thenCombineAsync(rendered, (pDef, rgb) -> {
+            // The server truncates regions to the bounds of the image
+            int resolution = imageRegionCtx.resolution == null?
+                    0 : imageRegionCtx.resolution;
+            int[] size = applied.join().resolutionSize(resolution);
+            int width = Math.min(pDef.region.width, size[0] - pDef.region.x);
+            int height =
+                    Math.min(pDef.region.height, size[1] - pDef.region.y);
+            return encoder.encode(
+                    imageRegionCtx.format, rgb, width, height,
+                    getCompressionQuality());
+        }, executor);
+    }
+
+    /**
+     * Returns a rendering engine to the pool once it has rendered, or
+     * failed to render, an image region.  Returning an engine may close
+     * others, which blocks, so it is never done on an Ice client thread.
+     * @param pooledEngine rendering engine to return.
+     * @param rendered future outcome of rendering.
+     * @param executor executor to return the rendering engine on.
+     * @return Future completed as <code>rendered</code> once the rendering
+     * engine has been returned.
+     */
+    private <T> CompletableFuture<T> release(
+            PooledRenderingEngine pooledEngine,
+            CompletableFuture<T> rendered, Executor executor) {
+        return rendered.whenCompleteAsync((region, t) -> {
+            // Cancellation only occurs between complete stages so the
+            // rendering engine's state is consistent
+            if (t == null
+                    || IceFutures.unwrap(t) instanceof CancellationException) {
+                enginePool.release(pooledEngine);
+            } else {
+                enginePool.invalidate(pooledEngine);
+            }
+        }, executor);
+    }
+
+    /**
+     * Renders a single image region in process, as
+     * {@link #getRegionLocally(omero.client, ImageMetadata)} does, on an
+     * executor as reading the raw pixel data blocks.
+     * @param client OMERO client to use for image region retrieval.
+     * @param image metadata of the {@link Image} to retrieve image region
+     * for.
+     * @param executor executor to render on.
+     * @return Future image region encoded in the requested format as a
+     * byte array.
+     */
+    private CompletableFuture<byte[]> getRegionLocally(
+            omero.client client, ImageMetadata image, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
             try {
-                return renderingEngine.renderCompressed(pDef);
-            } finally {
-                t0.stop();
+                return getRegionLocally(client, image);
+            } catch (ServerError e) {
+                throw new CompletionException(e);
             }
+        }, executor);
+    }
+
+    /**
+     * Renders a single image region in process from the raw pixel data of
+     * the active channels.  The raw pixels store is borrowed from the pool
+     * along with the rendering engine and returned to the pool once the
+     * region has been read.
+     * @param client OMERO client to use for image region retrieval.
+     * @param image metadata of the {@link Image} to retrieve image region
+     * for.
+     * @return Image region encoded in the requested format as a byte array.
+     * @throws IllegalArgumentException If the requested region is invalid.
+     * @throws ServerError If the raw pixel data cannot be read.
+     */
+    private byte[] getRegionLocally(omero.client client, ImageMetadata image)
+            throws IllegalArgumentException, ServerError {
+        log.debug("Rendering image region locally");
+        Map<String, String> ctx = new HashMap<String, String>();
+        ctx.put("omero.group", String.valueOf(image.groupId));
+        PooledRenderingEngine pooledEngine =
+                enginePool.borrow(client, image.pixelsId);
+        BufferedImage rendered;
+        boolean reusable = false;
+        try {
+            PixelSource source = pooledEngine.getPixelSource(ctx);
+            rendered = new LocalRenderer(
+                    imageRegionCtx, projector, image.sizeZ).render(
+                            source, image.sizeC);
+            // Cached for prefetching, as for regions rendered by the server
+            renderingMetadataCache.getPyramidGeometry(source, image.pixelsId);
+            reusable = true;
         } finally {
-            renderingEngine.close();
+            if (reusable) {
+                enginePool.release(pooledEngine);
+            } else {
+                enginePool.invalidate(pooledEngine);
+            }
+        }
+        int[] rgb = ((DataBufferInt) rendered.getRaster().getDataBuffer())
+                .getData();
+        return encoder.encode(
+                imageRegionCtx.format, rgb, rendered.getWidth(),
+                rendered.getHeight(), getCompressionQuality());
+    }
+
+    /**
+     * Abandons rendering if the request has been cancelled.
+     * @param image metadata of the {@link Image} being rendered.
+     * @throws CancellationException If the request has been cancelled.
+     */
+    private void checkCancelled(ImageMetadata image)
+            throws CancellationException {
+        if (cancelled.test(getCacheKey(image))) {
+            log.debug("Request cancelled: {}", getCacheKey(image));
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * @return Requested JPEG compression quality or the default if none
+     * was requested.
+     */
+    private float getCompressionQuality() {
+        Float compressionQuality = imageRegionCtx.compressionQuality;
+        return compressionQuality == null?
+                DEFAULT_COMPRESSION_QUALITY : compressionQuality;
+    }
+
+    /**
+     * Looks up the pixels set and rendering definition of a newly created
+     * rendering engine and loads it.
+     * @param renderingEngine rendering engine to load
+     * @param pixelsId pixels set to load the rendering engine for
+     * @param ctx OMERO context (group)
+     * @return Future completed once the rendering engine has been loaded
+     */
+    private CompletableFuture<Void> load(
+            RenderingEnginePrx renderingEngine, long pixelsId,
+            Map<String, String> ctx) {
+        return IceFutures.run(
+                "RenderingEngine.lookupPixels",
+                callback -> renderingEngine.begin_lookupPixels(
+                        pixelsId, ctx, callback),
+                renderingEngine::end_lookupPixels)
+            .thenCompose(v -> lookupRenderingDef(
+                    renderingEngine, pixelsId, ctx))
+            .thenCompose(found -> {
+                if (found) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                return IceFutures.call(
+                        "RenderingEngine.resetDefaultSettings",
+                        callback -> renderingEngine.begin_resetDefaultSettings(
+                                true, ctx, callback),
+                        renderingEngine::end_resetDefaultSettings)
+                    .thenCompose(id -> lookupRenderingDef(
+                            renderingEngine, pixelsId, ctx));
+            })
+            .thenCompose(v -> IceFutures.run(
+                    "RenderingEngine.load",
+                    callback -> renderingEngine.begin_load(ctx, callback),
+                    renderingEngine::end_load));
+    }
+
+    /**
+     * Looks up the rendering definition of a rendering engine.
+     * @param renderingEngine rendering engine to look up the rendering
+     * definition of
+     * @param pixelsId pixels set the rendering engine is for
+     * @param ctx OMERO context (group)
+     * @return Future which is <code>false</code> if the pixels set has no
+     * rendering definition
+     */
+    private CompletableFuture<Boolean> lookupRenderingDef(
+            RenderingEnginePrx renderingEngine, long pixelsId,
+            Map<String, String> ctx) {
+        return IceFutures.call(
+                "RenderingEngine.lookupRenderingDef",
+                callback -> renderingEngine.begin_lookupRenderingDef(
+                        pixelsId, ctx, callback),
+                renderingEngine::end_lookupRenderingDef);
+    }
+
+    /**
+     * Whether or not the state of a reused rendering engine needs to be
+     * reset to that of its rendering definition before rendering; the case
+     * when the request does not specify both a window and a color for each
+     * active channel or does not specify the rendering model while a
+     * previous request has.
+     * @param state rendering settings last applied to the engine
+     * @return See above.
+     */
+    private boolean requiresRenderingDefReset(RenderingEngineState state) {
+        if (imageRegionCtx.m == null && state.hasModel()) {
+            return true;
+        }
+        ChannelSettings channels = imageRegionCtx.channels;
+        if (channels == null) {
+            return true;
+        }
+        for (int idx = 0; idx < channels.size(); idx++) {
+            if (channels.channel(idx) > 0 && (channels.rgba(idx) == null
+                    || !channels.hasWindow(idx))) {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
      * Sets compression level on the <code>renderingEngine</code>
      * @param renderingEngine loaded instance of {@link RenderingEnginePrx}
-     * @throws ServerError
+     * @param reused whether or not the rendering engine has been used by a
+     * previous request and may have a compression level other than the
+     * default set
+     * @param state rendering settings last applied to the engine
+     * @return Future completed once the compression level has been set
      */
-    private void setCompressionLevel(RenderingEnginePrx renderingEngine)
-            throws ServerError {
+    private CompletableFuture<Void> setCompressionLevel(
+            RenderingEnginePrx renderingEngine, boolean reused,
+            RenderingEngineState state) {
         log.debug("Setting compression level: {}",
                   imageRegionCtx.compressionQuality);
-        StopWatch t0 =
-                new Slf4JStopWatch("RenderingEngine.setCompressionLevel");
-        try {
-            if (imageRegionCtx.compressionQuality != null) {
-                renderingEngine.setCompressionLevel(
-                        imageRegionCtx.compressionQuality);
-            }
-        } finally {
-            t0.stop();
+        Float compressionQuality = imageRegionCtx.compressionQuality;
+        if (compressionQuality == null && reused) {
+            compressionQuality = DEFAULT_COMPRESSION_QUALITY;
+        }
+        if (compressionQuality == null
+                || !state.setCompressionQuality(compressionQuality)) {
+            return CompletableFuture.completedFuture(null);
         }
+        float level = compressionQuality;
+        return IceFutures.run(
+                "RenderingEngine.setCompressionLevel",
+                callback -> renderingEngine.begin_setCompressionLevel(
+                        level, callback),
+                renderingEngine::end_setCompressionLevel);
     }
 
     /**
      * Returns RegionDef to read based on tile / region provided in
      * ImageRegionCtx.
-     * @param renderingEngine loaded instance of {@link RenderingEnginePrx}
+     * @param geometry geometry of the Pixels set
      * @return RegionDef {@link RegionDef} describing image region to read
      * @throws IllegalArgumentException
-     * @throws ServerError
      */
-    private RegionDef getRegionDef(RenderingEnginePrx renderingEngine)
-            throws IllegalArgumentException, ServerError {
+    private RegionDef getRegionDef(PyramidGeometry geometry)
+            throws IllegalArgumentException {
         log.debug("Setting region to read");
         RegionDef regionDef = new RegionDef();
         if (imageRegionCtx.tile != null) {
-            StopWatch t0 = new Slf4JStopWatch("RenderingEngine.getTileSize");
-            int[] tileSize;
-            try {
-                tileSize = renderingEngine.getTileSize();
-            } finally {
-                t0.stop();
-            }
-            regionDef.width = tileSize[0];
-            regionDef.height = tileSize[1];
+            regionDef.width = geometry.tileWidth;
+            regionDef.height = geometry.tileHeight;
             regionDef.x = imageRegionCtx.tile.getX() * regionDef.width;
             regionDef.y = imageRegionCtx.tile.getY() * regionDef.height;
         } else if (imageRegionCtx.region != null) {
@@ -236,152 +718,134 @@ public class ImageRegionRequestHandler {
     /**
      * Sets the pyramid resolution level on the <code>renderingEngine</code>
      * @param renderingEngine loaded instance of {@link RenderingEnginePrx}
-     * @throws ServerError
+     * @param geometry future geometry of the Pixels set
+     * @param reused whether or not the rendering engine has been used by a
+     * previous request and may have a resolution level other than full
+     * resolution set
+     * @param state rendering settings last applied to the engine
+     * @return Future completed once the resolution level has been set
      */
-    private void setResolutionLevel(RenderingEnginePrx renderingEngine)
-            throws ServerError {
+    private CompletableFuture<Void> setResolutionLevel(
+            RenderingEnginePrx renderingEngine,
+            CompletableFuture<PyramidGeometry> geometry,
+            boolean reused, RenderingEngineState state) {
         log.debug("Setting resolution level: {}", imageRegionCtx.resolution);
-        if (imageRegionCtx.resolution == null) {
-            return;
-        }
-        StopWatch t0 =
-                new Slf4JStopWatch("RenderingEngine.getResolutionLevels");
-        Integer numberOfLevels;
-        try {
-            numberOfLevels = renderingEngine.getResolutionLevels();
-        } finally {
-            t0.stop();
+        Integer resolution = imageRegionCtx.resolution;
+        if (resolution == null) {
+            if (!reused) {
+                return CompletableFuture.completedFuture(null);
+            }
+            resolution = 0;
         }
-        Integer level = numberOfLevels - imageRegionCtx.resolution - 1;
-        log.debug("Setting resolution level to: {}", level);
-        t0 = new Slf4JStopWatch("RenderingEngine.setResolutionLevel");
-        try {
-            renderingEngine.setResolutionLevel(level);
-        } finally {
-            t0.stop();
+        if (!state.setResolution(resolution)) {
+            return CompletableFuture.completedFuture(null);
         }
+        int requested = resolution;
+        return geometry.thenCompose(g -> {
+            int level = g.level(requested);
+            log.debug("Setting resolution level to: {}", level);
+            return IceFutures.run(
+                    "RenderingEngine.setResolutionLevel",
+                    callback -> renderingEngine.begin_setResolutionLevel(
+                            level, callback),
+                    renderingEngine::end_setResolutionLevel);
+        });
     }
 
     /**
      * Sets the rendering model on <code>renderingEngine</code>
      * @param renderingEngine loaded instance of {@link RenderingEnginePrx}
-     * @throws ServerError
+     * @param state rendering settings last applied to the engine
+     * @return Future completed once the rendering model has been set
      */
-    private void setRenderingModel(RenderingEnginePrx renderingEngine)
-            throws ServerError {
+    private CompletableFuture<Void> setRenderingModel(
+            RenderingEnginePrx renderingEngine, RenderingEngineState state) {
         log.debug("Setting rendering model: {}", imageRegionCtx.m);
-        StopWatch t0 = new Slf4JStopWatch("RenderingEngine.getAvailableModels");
-        List<RenderingModel> renderingModels;
-        try {
-            renderingModels = renderingEngine.getAvailableModels()
-                    .stream()
-                    .map(x -> (RenderingModel) x)
-                    .collect(Collectors.toList());
-        } finally {
-            t0.stop();
+        if (imageRegionCtx.m == null) {
+            // Rendered with the model of the rendering definition
+            return CompletableFuture.completedFuture(null);
         }
-        for (RenderingModel renderingModel : renderingModels) {
-            if (imageRegionCtx.m.equals(unwrap(renderingModel.getValue()))) {
-                t0 = new Slf4JStopWatch("RenderingEngine.setModel");
-                try {
-                    renderingEngine.setModel(renderingModel);
-                } finally {
-                    t0.stop();
-                }
-                break;
-            }
+        if (!state.setModel(imageRegionCtx.m)) {
+            return CompletableFuture.completedFuture(null);
         }
+        return renderingMetadataCache.getRenderingModel(
+                renderingEngine, imageRegionCtx.m)
+            .thenCompose(renderingModel -> {
+                if (renderingModel == null) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                return IceFutures.run(
+                        "RenderingEngine.setModel",
+                        callback -> renderingEngine.begin_setModel(
+                                renderingModel, callback),
+                        renderingEngine::end_setModel);
+            });
     }
 
     /**
      * Sets the rendering settings on the <code>redneringEngine</code> for
-     * all the channels (<code>sizeC</code>).
+     * all the channels (<code>sizeC</code>).  Only settings which differ
+     * from those last applied to the engine are sent and they are sent
+     * together, so that the cost is at most a single round trip
+     * regardless of the number of channels.
      * @param renderingEngine loaded instance of {@link RenderingEnginePrx}
      * @param sizeC number of channels
      * @param ctx OMERO context (group)
-     * @throws ServerError
+     * @param state rendering settings last applied to the engine
+     * @return Future completed once the settings have been set
      */
-    private void setActiveChannels(
+    private CompletableFuture<Void> setActiveChannels(
             RenderingEnginePrx renderingEngine, int sizeC,
-            Map<String, String> ctx)
-                    throws ServerError {
+            Map<String, String> ctx, RenderingEngineState state) {
         log.debug("Setting active channels");
+        List<CompletableFuture<?>> pending =
+                new ArrayList<CompletableFuture<?>>();
+        ChannelSettings channels = imageRegionCtx.channels;
+        if (channels == null) {
+            // Rendered with the settings of the rendering definition
+            return CompletableFuture.completedFuture(null);
+        }
         int idx = 0; // index of windows/colors args
         for (int c = 0; c < sizeC; c++) {
-            StopWatch t0 = new Slf4JStopWatch("RenderingEngine.setActive");
-            try {
-                renderingEngine.setActive(
-                        c, imageRegionCtx.channels.contains(c + 1), ctx);
-            } finally {
-                t0.stop();
+            int channel = c;
+            boolean active = channels.indexOf(c + 1) >= 0;
+            if (state.setActive(c, active)) {
+                pending.add(IceFutures.run(
+                        "RenderingEngine.setActive",
+                        callback -> renderingEngine.begin_setActive(
+                                channel, active, ctx, callback),
+                        renderingEngine::end_setActive));
             }
-            if (!imageRegionCtx.channels.contains(c + 1)) {
-                if (imageRegionCtx.channels.contains(-1 * (c + 1))) {
+            if (!active) {
+                if (channels.indexOf(-1 * (c + 1)) >= 0) {
                     idx += 1;
                 }
                 continue;
             }
-            if (imageRegionCtx.windows != null) {
-                float min = (float) imageRegionCtx.windows.get(idx)[0];
-                float max = (float) imageRegionCtx.windows.get(idx)[1];
+            if (channels.hasWindow(idx)) {
+                float min = channels.windowStart(idx);
+                float max = channels.windowEnd(idx);
                 log.debug("Channel: {}, [{}, {}]", c, min, max);
-                t0 = new Slf4JStopWatch("RenderingEngine.setChannelWindow");
-                try {
-                    renderingEngine.setChannelWindow(c, min, max, ctx);
-                } finally {
-                    t0.stop();
+                if (state.setChannelWindow(c, min, max)) {
+                    pending.add(IceFutures.run(
+                            "RenderingEngine.setChannelWindow",
+                            callback -> renderingEngine.begin_setChannelWindow(
+                                    channel, min, max, ctx, callback),
+                            renderingEngine::end_setChannelWindow));
                 }
             }
-            if (imageRegionCtx.colors != null) {
-                int[] rgba = splitHTMLColor(imageRegionCtx.colors.get(idx));
-                if (rgba != null) {
-                    t0 = new Slf4JStopWatch("RenderingEngine.setRGBA");
-                    try {
-                        renderingEngine.setRGBA(
-                                c, rgba[0], rgba[1], rgba[2], rgba[3], ctx);
-                    } finally {
-                        t0.stop();
-                    }
-                }
+            int[] rgba = channels.rgba(idx);
+            if (rgba != null && state.setRGBA(c, rgba)) {
+                pending.add(IceFutures.run(
+                        "RenderingEngine.setRGBA",
+                        callback -> renderingEngine.begin_setRGBA(
+                                channel, rgba[0], rgba[1], rgba[2], rgba[3],
+                                ctx, callback),
+                        renderingEngine::end_setRGBA));
             }
             idx += 1;
         }
-    }
-
-    /**
-     *  Splits an hex stream of characters into an array of bytes
-     *  in format (R,G,B,A).
-     *  - abc      -> (0xAA, 0xBB, 0xCC, 0xFF)
-     *  - abcd     -> (0xAA, 0xBB, 0xCC, 0xDD)
-     *  - abbccd   -> (0xAB, 0xBC, 0xCD, 0xFF)
-     *  - abbccdde -> (0xAB, 0xBC, 0xCD, 0xDE)
-     *  @param color: Characters to split.
-     *  @return rgba - list of Ints
-     */
-    private int[] splitHTMLColor(String color) {
-        List<Integer> level1 = Arrays.asList(3, 4);
-        int[] out = new int[4];
-        try {
-            if (level1.contains(color.length())) {
-                String c = color;
-                color = "";
-                for (char ch : c.toCharArray()) {
-                    color += ch + ch;
-                }
-            }
-            if (color.length() == 6) {
-                color += "FF";
-            }
-            if (color.length() == 8) {
-                out[0] = Integer.parseInt(color.substring(0, 2), 16);
-                out[1] = Integer.parseInt(color.substring(2, 4), 16);
-                out[2] = Integer.parseInt(color.substring(4, 6), 16);
-                out[3] = Integer.parseInt(color.substring(6, 8), 16);
-                return out;
-            }
-        } catch (Exception e) {
-            log.error("Error while parsing color: {}", color, e);
-        }
-        return null;
+        log.debug("Applying {} channel setting changes", pending.size());
+        return IceFutures.allOf(pending);
     }
 }
@@ -18,15 +18,44 @@
 
 package com.glencoesoftware.omero.ms.image.region;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.glencoesoftware.omero.ms.core.OmeroRequest;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 
 import Glacier2.CannotCreateSessionException;
 import Glacier2.PermissionDeniedException;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
 import io.vertx.core.eventbus.Message;
+import io.vertx.core.json.JsonObject;
+import omero.model.Image;
 
 public class ImageRegionVerticle extends AbstractVerticle {
 
@@ -36,21 +65,123 @@ public class ImageRegionVerticle extends AbstractVerticle {
     public static final String RENDER_IMAGE_REGION_EVENT =
             "omero.render_image_region";
 
+    public static final String RENDER_IMAGE_REGION_BATCH_EVENT =
+            "omero.render_image_region_batch";
+
+    public static final String CANCEL_REQUEST_EVENT =
+            "omero.cancel_request";
+
     /** OMERO server host */
     private final String host;
 
     /** OMERO server port */
     private final int port;
 
+    /** Creates the clients with which OMERO sessions are joined */
+    private final Supplier<omero.client> clientFactory;
+
+    /** Pool of loaded rendering engines shared by all requests */
+    private RenderingEnginePool enginePool;
+
+    /** Image metadata cache shared by all requests */
+    private ImageMetadataCache metadataCache;
+
+    /** Rendering model and pyramid geometry cache shared by all requests */
+    private RenderingMetadataCache renderingMetadataCache;
+
+    /** Joined OMERO sessions shared by all requests */
+    private OmeroSessionCache sessionCache;
+
+    /** Rendered image region cache shared by all requests */
+    private TileCache tileCache;
+
+    /**
+     * Persistent rendered image region cache shared by all requests;
+     * <code>null</code> if disabled
+     */
+    private DiskTileCache diskTileCache;
+
+    /**
+     * Whether or not to render image regions in process from raw pixel
+     * data when the request allows it
+     */
+    private boolean localRendering;
+
+    /** Encoder of image regions rendered as packed pixels */
+    private ImageEncoder encoder;
+
+    /** Projector of Z sections for projected image regions */
+    private ZProjector projector;
+
+    /**
+     * Speculative renderer of the tiles surrounding those requested;
+     * <code>null</code> if disabled
+     */
+    private TilePrefetcher prefetcher;
+
+    /** Maximum number of tiles which may be requested in one batch */
+    private int batchMaxTiles;
+
+    /** Scheduler bounding the requests run against the OMERO server */
+    private RenderScheduler scheduler;
+
+    /**
+     * Runs the work done once the OMERO server has replied, such as
+     * encoding and replying, on this verticle's context or, if requests
+     * are run on virtual threads, each on a virtual thread of its own
+     */
+    private Executor contextExecutor;
+
+    /**
+     * Executor of {@link #contextExecutor} if it runs work on virtual
+     * threads; <code>null</code> otherwise
+     */
+    private ExecutorService virtualExecutor;
+
+    /**
+     * Runs rendering and projection in process, which block on reading raw
+     * pixel data, off this verticle's context
+     */
+    private ExecutorService localExecutor;
+
+    /**
+     * Ids of requests whose client has gone away; cancellations may arrive
+     * before the request they cancel
+     */
+    private final Cache<String, Boolean> cancelledRequests =
+            Caffeine.newBuilder()
+                .expireAfterWrite(5, TimeUnit.MINUTES)
+                .maximumSize(100000)
+                .build();
+
+    /** Renders in flight by cache key shared by all requests */
+    private final SingleFlight<String, byte[]> renders =
+            new SingleFlight<String, byte[]>();
+
     /**
      * Default constructor.
      * @param host OMERO server host.
      * @param port OMERO server port.
      */
     public ImageRegionVerticle(String host, int port)
+    {
+        this(host, port, () -> new omero.client(host, port));
+    }
+
+    /**
+     * Constructor for use with a client other than that of a standard
+     * OMERO server, such as a stub server for load testing.
+     * @param host OMERO server host, for logging.
+     * @param port OMERO server port, for logging.
+     * @param clientFactory creates the clients with which OMERO sessions
+     * are joined.
+     */
+    public ImageRegionVerticle(
+            String host, int port, Supplier<omero.client> clientFactory)
     {
         this.host = host;
         this.port = port;
+        this.clientFactory = clientFactory;
     }
 
     /* (non-Javadoc)
@@ -60,58 +191,855 @@ public class ImageRegionVerticle extends AbstractVerticle {
     public void start() {
         log.info("Starting verticle");
 
+        JsonObject poolConfig = config().getJsonObject(
+                "rendering-engine-pool", new JsonObject());
+        long idleTimeout =
+                poolConfig.getInteger("idle-timeout", 60) * 1000L;
+        enginePool = new RenderingEnginePool(
+                poolConfig.getInteger("size", 64), idleTimeout);
+        vertx.setPeriodic(
+                Math.max(idleTimeout / 2, 1000L),
+                timerId -> enginePool.evictIdle());
+
+        JsonObject sessionCacheConfig = config().getJsonObject(
+                "omero-session-cache", new JsonObject());
+        long sessionIdleTimeout =
+                sessionCacheConfig.getInteger("idle-timeout", 300) * 1000L;
+        sessionCache = new OmeroSessionCache(
+                clientFactory, sessionIdleTimeout,
+                enginePool::invalidateClient);
+        vertx.setPeriodic(
+                Math.max(sessionIdleTimeout / 2, 1000L),
+                timerId -> sessionCache.evictIdle());
+        vertx.setPeriodic(
+                sessionCacheConfig.getInteger("keep-alive-interval", 60)
+                        * 1000L,
+                timerId -> sessionCache.keepAlive());
+
+        JsonObject metadataCacheConfig = config().getJsonObject(
+                "image-metadata-cache", new JsonObject());
+        metadataCache = new ImageMetadataCache(
+                metadataCacheConfig.getInteger("size", 10000),
+                metadataCacheConfig.getInteger("ttl", 60));
+
+        renderingMetadataCache = new RenderingMetadataCache(
+                config().getJsonObject(
+                        "rendering-metadata-cache", new JsonObject())
+                .getInteger("size", 10000));
+
+        JsonObject tileCacheConfig = config().getJsonObject(
+                "tile-cache", new JsonObject());
+        tileCache = new TileCache(
+                tileCacheConfig.getInteger("max-memory-mb", 256)
+                        * 1024L * 1024L);
+        vertx.setPeriodic(
+                tileCacheConfig.getInteger("stats-interval", 300) * 1000L,
+                timerId -> log.info("{}", tileCache));
+
+        JsonObject diskTileCacheConfig = config().getJsonObject(
+                "disk-tile-cache", new JsonObject());
+        if (diskTileCacheConfig.getBoolean("enabled", false)) {
+            try {
+                diskTileCache = new DiskTileCache(
+                        Paths.get(diskTileCacheConfig.getString("path")),
+                        diskTileCacheConfig.getLong("max-size-mb", 10240L)
+                                * 1024L * 1024L,
+                        diskTileCacheConfig.getLong("segment-size-mb", 256L)
+                                * 1024L * 1024L);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            vertx.setPeriodic(
+                    tileCacheConfig.getInteger("stats-interval", 300) * 1000L,
+                    timerId -> log.info("{}", diskTileCache));
+        }
+
+        JsonObject localRenderingConfig = config().getJsonObject(
+                "local-rendering", new JsonObject());
+        localRendering = localRenderingConfig.getBoolean("enabled", false);
+
+        JsonObject pngConfig = config().getJsonObject(
+                "png", new JsonObject());
+        encoder = new ImageEncoder(new PngEncoder(
+                pngConfig.getInteger("compression-level", 1),
+                PngEncoder.Filter.valueOf(
+                        pngConfig.getString("filter", "sub").toUpperCase())));
+
+        projector = new ZProjector(config().getJsonObject(
+                "projection", new JsonObject())
+                .getInteger("parallelism",
+                        Runtime.getRuntime().availableProcessors()));
+
+        JsonObject prefetchConfig = config().getJsonObject(
+                "prefetch", new JsonObject());
+        if (prefetchConfig.getBoolean("enabled", false)) {
+            prefetcher = new TilePrefetcher(
+                    prefetchConfig.getInteger("threads", 2),
+                    prefetchConfig.getInteger("max-per-session", 32),
+                    prefetchConfig.getInteger("radius", 2),
+                    this::prefetchImageRegion);
+        }
+
+        batchMaxTiles = config().getJsonObject("batch", new JsonObject())
+                .getInteger("max-tiles", 64);
+
+        JsonObject schedulerConfig = config().getJsonObject(
+                "render-scheduler", new JsonObject());
+        scheduler = new RenderScheduler(
+                schedulerConfig.getInteger("concurrency", 8),
+                schedulerConfig.getInteger("max-queued", 64),
+                schedulerConfig.getLong("deadline-ms", 5000L),
+                schedulerConfig.getInteger("max-in-flight", 64),
+                schedulerConfig.getBoolean("virtual-threads", false));
+        if (scheduler.isVirtual()) {
+            virtualExecutor =
+                    VirtualThreads.newThreadPerTaskExecutor("render-stage-");
+            contextExecutor = virtualExecutor;
+        } else {
+            contextExecutor =
+                    command -> context.runOnContext(v -> command.run());
+        }
+        // Also used for projections, whether or not in-process rendering
+        // is enabled
+        localExecutor = scheduler.isVirtual()? virtualExecutor
+                : newLocalRenderingExecutor(localRenderingConfig.getInteger(
+                        "threads",
+                        Runtime.getRuntime().availableProcessors()));
+        vertx.setPeriodic(
+                schedulerConfig.getInteger("stats-interval", 300) * 1000L,
+                timerId -> log.info("{}", scheduler));
+
+        registerMetrics();
+
         vertx.eventBus().<String>consumer(
-                RENDER_IMAGE_REGION_EVENT, event -> {
-                    renderImageRegion(event);
+                CANCEL_REQUEST_EVENT, event -> {
+                    cancelledRequests.put(event.body(), Boolean.TRUE);
                 });
+        // In a cluster, requests for the images this node owns are sent
+        // to addresses of its own by the node which received them
+        String nodeId = config().getJsonObject("cluster", new JsonObject())
+                .getString("node-id");
+        consumer(RENDER_IMAGE_REGION_EVENT, nodeId, event -> {
+            schedule(event, this::renderImageRegion);
+        });
+        consumer(RENDER_IMAGE_REGION_BATCH_EVENT, nodeId, event -> {
+            schedule(event, message -> {
+                renderImageRegionBatch(message);
+                return CompletableFuture.completedFuture(null);
+            });
+        });
+    }
+
+    /**
+     * Creates the executor rendering and projecting image regions in
+     * process on platform threads.
+     * @param threads number of threads.
+     * @return See above.
+     */
+    private static ExecutorService newLocalRenderingExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(
+                    runnable,
+                    "local-rendering-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Registers a handler of requests sent to an address and, in a
+     * cluster, to this node's own form of the address.
+     * @param address address of the requests.
+     * @param nodeId id of this node or <code>null</code> if not in a
+     * cluster.
+     * @param handler handler of the requests.
+     */
+    private void consumer(
+            String address, String nodeId,
+            Handler<Message<ImageRegionCtx>> handler) {
+        vertx.eventBus().<ImageRegionCtx>consumer(address, handler);
+        if (nodeId != null) {
+            vertx.eventBus().<ImageRegionCtx>consumer(
+                    ClusterRouter.address(address, nodeId), handler);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see io.vertx.core.AbstractVerticle#stop()
+     */
+    @Override
+    public void stop() {
+        scheduler.close();
+        if (virtualExecutor != null) {
+            virtualExecutor.shutdownNow();
+        }
+        localExecutor.shutdownNow();
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        projector.close();
+        sessionCache.close();
+        enginePool.close();
+        if (diskTileCache != null) {
+            diskTileCache.close();
+        }
+    }
+
+    /**
+     * Registers the gauges and counters of the render scheduler, caches and
+     * pools of this verticle with the default {@link MetricsRegistry}.
+     */
+    private void registerMetrics() {
+        MetricsRegistry metrics = MetricsRegistry.DEFAULT;
+        String prefix = MetricsRegistry.PREFIX;
+        metrics.gauge(
+                prefix + "renders_in_flight",
+                "Requests being run against the OMERO server",
+                scheduler::inFlight);
+        metrics.gauge(
+                prefix + "renders_queued",
+                "Requests received on the event bus waiting to be run",
+                scheduler::queued);
+        metrics.gauge(
+                prefix + "renders_shared",
+                "Image region renders which other requests may join",
+                renders::size);
+        metrics.counter(
+                prefix + "renders_shed_total",
+                "Requests shed by the render scheduler by reason",
+                scheduler::rejected, "reason", "queue-full");
+        metrics.counter(
+                prefix + "renders_shed_total",
+                "Requests shed by the render scheduler by reason",
+                scheduler::expired, "reason", "deadline");
+        metrics.cacheLookups(
+                "tile", true, () -> tileCache.stats().hitCount());
+        metrics.cacheLookups(
+                "tile", false, () -> tileCache.stats().missCount());
+        metrics.gauge(
+                prefix + "tile_cache_bytes",
+                "Size of the rendered image regions held in memory",
+                tileCache::bytesUsed);
+        metrics.gauge(
+                prefix + "rendering_engines_idle",
+                "Idle rendering engines in the pool",
+                enginePool::size);
+        metrics.gauge(
+                prefix + "omero_sessions",
+                "Joined OMERO sessions in the cache",
+                sessionCache::size);
+    }
+
+    /**
+     * Schedules a request to be handled once the OMERO server has capacity
+     * for it.  Requests which cannot be queued or whose deadline passes
+     * while they are queued are failed with HTTP 503.
+     * @param message request.
+     * @param handler handler of the request; called on a scheduler thread,
+     * the request being in flight until the stage it returns completes.
+     */
+    private void schedule(
+            Message<ImageRegionCtx> message,
+            Function<Message<ImageRegionCtx>, CompletionStage<?>> handler) {
+        boolean scheduled = scheduler.scheduleAsync(() -> {
+            if (isCancelled(message)) {
+                log.debug("Dropping cancelled request");
+                message.fail(499, "Request cancelled");
+                return CompletableFuture.completedFuture(null);
+            }
+            return handler.apply(message);
+        }, () -> message.fail(503, "Deadline exceeded"));
+        if (!scheduled) {
+            message.fail(503, "Too many requests queued");
+        }
+    }
+
+    /**
+     * @param message request.
+     * @return Whether or not the client which made the request has gone
+     * away.
+     */
+    private boolean isCancelled(Message<?> message) {
+        String requestId = message.headers().get("request-id");
+        return requestId != null
+                && cancelledRequests.getIfPresent(requestId) != null;
+    }
+
+    /**
+     * Whether or not rendering of an image region for a request should be
+     * abandoned; renders which other requests have joined are always
+     * completed.
+     * @param message request.
+     * @return See above.
+     */
+    private Predicate<String> cancelled(Message<?> message) {
+        return cacheKey ->
+                isCancelled(message) && !renders.hasFollowers(cacheKey);
     }
 
     /**
      * Render image region event handler.
-     * Responds with a <code>image/jpeg</code>
-     * body on success or a failure.
-     * @param message JSON encoded {@link ImageRegionCtx} object.
+     * Responds with the image region encoded in the requested format on
+     * success or a failure.  If the image region is in the disk
+     * tile cache the response is instead a {@link JsonObject} with the
+     * <code>path</code>, <code>offset</code> and <code>length</code> of the
+     * cached image region so that it can be sent straight from the file.
+     * Successful responses carry <code>ETag</code> and
+     * <code>Last-Modified</code> headers; if the request's
+     * <code>If-None-Match</code> or <code>If-Modified-Since</code> headers
+     * show that the client already has the image region the response has
+     * no body and no rendering takes place.  Requests for an image region
+     * which is already being rendered for another request share that
+     * request's outcome rather than rendering it again.  Rendered image
+     * regions are replied to as a {@link Buffer} passed by reference.
+     * No thread waits on the OMERO server; the request is completed on
+     * this verticle's context, or on a virtual thread if requests are run
+     * on virtual threads, once the server has replied.
+     * @param message {@link ImageRegionCtx} object.
+     * @return Future completed once the request has been responded to.
      */
-    private void renderImageRegion(Message<String> message) {
-        ObjectMapper mapper = new ObjectMapper();
-        ImageRegionCtx imageRegionCtx;
+    private CompletableFuture<Void> renderImageRegion(
+            Message<ImageRegionCtx> message) {
+        ImageRegionCtx imageRegionCtx = message.body();
+        if (!ImageEncoder.FORMATS.contains(imageRegionCtx.format)) {
+            String v = "Unsupported format: " + imageRegionCtx.format;
+            log.error(v);
+            message.fail(400, v);
+            return CompletableFuture.completedFuture(null);
+        }
+        log.debug("Render image region request with data: {}",
+                imageRegionCtx.cacheKey());
+        log.debug("Connecting to the server: {}, {}, {}",
+                  host, port, imageRegionCtx.omeroSessionKey);
+        OmeroSession session;
         try {
-            imageRegionCtx = mapper.readValue(
-                    message.body(), ImageRegionCtx.class);
+            session = sessionCache.acquire(imageRegionCtx.omeroSessionKey);
         } catch (Exception e) {
-            String v = "Illegal image region context";
-            log.error(v + ": {}", message.body(), e);
+            failRender(message, null, e);
+            return CompletableFuture.completedFuture(null);
+        }
+        ImageRegionRequestHandler requestHandler =
+                new ImageRegionRequestHandler(
+                        imageRegionCtx, enginePool, metadataCache,
+                        renderingMetadataCache, tileCache,
+                        localRendering, encoder, projector,
+                        cancelled(message));
+        omero.client client = session.getClient();
+        return requestHandler.getImageMetadata(client)
+            .thenComposeAsync(image -> renderImageRegion(
+                    message, requestHandler, client, image), contextExecutor)
+            .whenCompleteAsync((v, t) -> {
+                sessionCache.release(session);
+                if (t != null) {
+                    failRender(message, session, IceFutures.unwrap(t));
+                }
+            }, contextExecutor);
+    }
+
+    /**
+     * Responds to a render image region request once the session's access
+     * to the image has been checked; see
+     * {@link #renderImageRegion(Message)}.
+     * @param message {@link ImageRegionCtx} object.
+     * @param requestHandler handler of the request.
+     * @param client joined OMERO client of the request.
+     * @param image metadata of the {@link Image} or <code>null</code> if it
+     * does not exist.
+     * @return Future completed once the request has been responded to,
+     * which fails if it could not be.
+     */
+    private CompletableFuture<Void> renderImageRegion(
+            Message<ImageRegionCtx> message,
+            ImageRegionRequestHandler requestHandler, omero.client client,
+            ImageMetadata image) {
+        ImageRegionCtx imageRegionCtx = message.body();
+        if (image == null) {
+            message.fail(404, "Cannot find Image:" + imageRegionCtx.imageId);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (prefetcher != null) {
+            prefetcher.prefetch(
+                    imageRegionCtx, renderingMetadataCache
+                            .getCachedPyramidGeometry(image.pixelsId));
+        }
+        String cacheKey = requestHandler.getCacheKey(image);
+        String etag = ImageRegionRequestHandler.getETag(cacheKey);
+        DeliveryOptions options = new DeliveryOptions()
+                .addHeader("ETag", etag)
+                .addHeader("Last-Modified", formatHttpDate(
+                        image.lastModified));
+        if (isNotModified(message.headers(), etag, image.lastModified)) {
+            log.debug("Not modified: {}", etag);
+            message.reply(null, options);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (diskTileCache != null) {
+            DiskTileCache.Location location = diskTileCache.get(cacheKey);
+            if (location != null && message.headers().contains("inline")) {
+                // Sent by another node, which cannot read the cache's files
+                try {
+                    replyImageRegion(
+                            message, diskTileCache.read(location), options);
+                    return CompletableFuture.completedFuture(null);
+                } catch (IOException e) {
+                    log.error("Exception while reading image region", e);
+                }
+            } else if (location != null) {
+                message.reply(new JsonObject()
+                        .put("path", location.getPath())
+                        .put("offset", location.offset)
+                        .put("length", location.length), options);
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+        CompletableFuture<byte[]> inFlight = renders.join(cacheKey);
+        if (inFlight != null) {
+            // An identical image region is already being rendered for
+            // another request; this session's access has been checked
+            // above so its outcome can be shared.
+            log.debug("Joining in flight render: {}", cacheKey);
+            inFlight.whenComplete((imageRegion, t) -> {
+                if (t instanceof CancellationException) {
+                    // The request leading the render was cancelled;
+                    // start again, possibly as the leader
+                    schedule(message, this::renderImageRegion);
+                } else if (t != null) {
+                    String v = "Exception while retrieving image region";
+                    log.debug(v, t);
+                    message.fail(500, v);
+                } else if (imageRegion == null) {
+                    message.fail(404,
+                            "Cannot find Image:" + imageRegionCtx.imageId);
+                } else {
+                    replyImageRegion(message, imageRegion, options);
+                }
+            });
+            return CompletableFuture.completedFuture(null);
+        }
+        return render(requestHandler, client, image, cacheKey)
+            .thenAcceptAsync(imageRegion -> {
+                if (imageRegion == null) {
+                    message.fail(404,
+                            "Cannot find Image:" + imageRegionCtx.imageId);
+                    return;
+                }
+                replyImageRegion(message, imageRegion, options);
+                if (diskTileCache != null) {
+                    try {
+                        diskTileCache.put(cacheKey, imageRegion);
+                    } catch (IOException e) {
+                        log.error("Exception while caching image region", e);
+                    }
+                }
+            }, contextExecutor);
+    }
+
+    /**
+     * Fails a render image region request which could not be responded to.
+     * @param message request.
+     * @param session session of the request, if it was joined.
+     * @param t cause of the failure.
+     */
+    private void failRender(
+            Message<?> message, OmeroSession session, Throwable t) {
+        if (t instanceof PermissionDeniedException
+                || t instanceof CannotCreateSessionException) {
+            String v = "Permission denied";
+            log.debug(v);
+            message.fail(403, v);
+        } else if (t instanceof IllegalArgumentException) {
+            log.debug(
+                "Illegal argument received while retrieving image region", t);
+            message.fail(400, t.getMessage());
+        } else if (t instanceof CancellationException) {
+            String v = "Request cancelled";
+            log.debug(v);
+            message.fail(499, v);
+        } else if (session != null && OmeroSessionCache.isSessionExpired(t)) {
+            sessionCache.invalidate(session);
+            String v = "Session expired";
+            log.debug(v, t);
+            message.fail(403, v);
+        } else {
+            String v = "Exception while retrieving image region";
+            log.error(v, t);
+            message.fail(500, v);
+        }
+    }
+
+    /**
+     * Render image region batch event handler.
+     * Renders several tiles of the same plane of an image with the same
+     * settings so that the session, image metadata and rendering engine
+     * setup are paid for once.  Once the image has been found the request
+     * is replied to with the number of tiles and the tiles are then sent,
+     * in the order they were requested, to the address in the request's
+     * <code>stream-address</code> header as they are rendered.  Each tile
+     * message carries its position in the request in an <code>index</code>
+     * header and has an empty body if the tile could not be rendered.  A
+     * final message with an <code>end</code> header and no body follows the
+     * last tile; tiles are only left out if the request is cancelled or
+     * its session expires.
+     * @param message {@link ImageRegionCtx} object with the tiles, in the
+     * same form as the <code>tile</code> request parameter, in repeated
+     * <code>tile</code> headers.
+     */
+    private void renderImageRegionBatch(Message<ImageRegionCtx> message) {
+        String streamAddress = message.headers().get("stream-address");
+        List<ImageRegionCtx> tiles = new ArrayList<ImageRegionCtx>();
+        try {
+            for (String tile : message.headers().getAll("tile")) {
+                tiles.add(message.body().forTile(tile));
+            }
+        } catch (Exception e) {
+            String v = "Illegal image region batch";
+            log.error(v + ": {}", message.headers().getAll("tile"), e);
             message.fail(400, v);
             return;
         }
-        log.debug(
-            "Render image region request with data: {}", message.body());
-        log.debug("Connecting to the server: {}, {}, {}",
-                  host, port, imageRegionCtx.omeroSessionKey);
-        try (OmeroRequest<byte[]> request = new OmeroRequest<byte[]>(
-                 host, port, imageRegionCtx.omeroSessionKey))
-        {
-            byte[] imageRegion = request.execute(new ImageRegionRequestHandler(
-                    imageRegionCtx)::renderImageRegion);
-            if (imageRegion == null) {
-                message.fail(
-                        404, "Cannot find Image:" + imageRegionCtx.imageId);
-            } else {
-                message.reply(imageRegion);
+        if (streamAddress == null || tiles.isEmpty()
+                || tiles.size() > batchMaxTiles) {
+            message.fail(400, String.format(
+                    "Between 1 and %d tiles must be requested",
+                    batchMaxTiles));
+            return;
+        }
+        ImageRegionCtx first = tiles.get(0);
+        if (!ImageEncoder.FORMATS.contains(first.format)) {
+            String v = "Unsupported format: " + first.format;
+            log.error(v);
+            message.fail(400, v);
+            return;
+        }
+        log.debug("Render image region batch request with data: {} {}",
+                first.cacheKey(), message.headers().getAll("tile"));
+        OmeroSession session = null;
+        boolean streaming = false;
+        try {
+            session = sessionCache.acquire(first.omeroSessionKey);
+            omero.client client = session.getClient();
+            Predicate<String> cancelled = cancelled(message);
+            ImageMetadata image = IceFutures.await(
+                    new ImageRegionRequestHandler(
+                            first, enginePool, metadataCache,
+                            renderingMetadataCache, tileCache,
+                            localRendering, encoder, projector, cancelled)
+                                    .getImageMetadata(client));
+            if (image == null) {
+                message.fail(404, "Cannot find Image:" + first.imageId);
+                return;
+            }
+            message.reply(tiles.size());
+            streaming = true;
+            for (int index = 0; index < tiles.size(); index++) {
+                if (isCancelled(message)) {
+                    log.debug("Image region batch cancelled");
+                    break;
+                }
+                ImageRegionRequestHandler requestHandler =
+                        new ImageRegionRequestHandler(
+                                tiles.get(index), enginePool, metadataCache,
+                                renderingMetadataCache, tileCache,
+                                localRendering, encoder, projector, cancelled);
+                byte[] imageRegion;
+                try {
+                    imageRegion =
+                            getImageRegion(requestHandler, client, image);
+                } catch (CancellationException e) {
+                    log.debug("Image region batch cancelled");
+                    break;
+                } catch (Exception e) {
+                    if (!(e instanceof JoinedRenderException)
+                            && OmeroSessionCache.isSessionExpired(e)) {
+                        // None of the remaining tiles can be rendered
+                        throw e;
+                    }
+                    // A failed tile, including one whose render was led by
+                    // another request, is sent as an empty frame
+                    if (e instanceof IllegalArgumentException) {
+                        log.debug("Illegal tile in image region batch", e);
+                    } else {
+                        log.error("Exception while retrieving tile {} of "
+                                + "image region batch", index, e);
+                    }
+                    imageRegion = null;
+                }
+                vertx.eventBus().send(
+                        streamAddress,
+                        BufferReferenceCodec.wrap(imageRegion == null?
+                                new byte[0] : imageRegion),
+                        new DeliveryOptions()
+                                .setCodecName(BufferReferenceCodec.NAME)
+                                .addHeader("index", String.valueOf(index)));
             }
         } catch (PermissionDeniedException
                 | CannotCreateSessionException e) {
             String v = "Permission denied";
             log.debug(v);
             message.fail(403, v);
-        } catch (IllegalArgumentException e) {
-            log.debug(
-                "Illegal argument received while retrieving image region", e);
-            message.fail(400, e.getMessage());
         } catch (Exception e) {
-            String v = "Exception while retrieving image region";
-            log.error(v, e);
-            message.fail(500, v);
+            String v = "Exception while retrieving image region batch";
+            if (session != null && OmeroSessionCache.isSessionExpired(e)) {
+                sessionCache.invalidate(session);
+                log.debug(v, e);
+            } else {
+                log.error(v, e);
+            }
+            if (!streaming) {
+                message.fail(500, v);
+            }
+        } finally {
+            if (streaming) {
+                vertx.eventBus().send(
+                        streamAddress, null,
+                        new DeliveryOptions().addHeader("end", "true"));
+            }
+            if (session != null) {
+                sessionCache.release(session);
+            }
+        }
+    }
+
+    /**
+     * Replies with a rendered image region, passing it by reference rather
+     * than copying it.
+     * @param message message to reply to.
+     * @param imageRegion rendered image region.
+     * @param options reply headers.
+     */
+    private static void replyImageRegion(
+            Message<?> message, byte[] imageRegion, DeliveryOptions options) {
+        message.reply(
+                BufferReferenceCodec.wrap(imageRegion),
+                new DeliveryOptions(options)
+                        .setCodecName(BufferReferenceCodec.NAME));
+    }
+
+    /**
+     * Retrieves an image region from the disk tile cache, from a render of
+     * it already in flight or by rendering it, waiting for the outcome.
+     * Called once the session's access to the image has been checked.
+     * @param requestHandler handler of the request.
+     * @param client joined OMERO client of the request.
+     * @param image metadata of the {@link Image}.
+     * @return See {@link ImageRegionRequestHandler#renderImageRegion}.
+     * @throws JoinedRenderException If the render in flight this request
+     * joined failed.
+     * @throws Exception If the image region cannot be retrieved.
+     */
+    private byte[] getImageRegion(
+            ImageRegionRequestHandler requestHandler, omero.client client,
+            ImageMetadata image) throws Exception {
+        String cacheKey = requestHandler.getCacheKey(image);
+        if (diskTileCache != null) {
+            DiskTileCache.Location location = diskTileCache.get(cacheKey);
+            if (location != null) {
+                return diskTileCache.read(location);
+            }
         }
+        CompletableFuture<byte[]> inFlight = renders.join(cacheKey);
+        if (inFlight != null) {
+            try {
+                return inFlight.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof CancellationException) {
+                    // The request leading the render was cancelled
+                    return getImageRegion(requestHandler, client, image);
+                }
+                // Not this request's failure; its session, for instance,
+                // may still be valid when the leader's has expired
+                throw new JoinedRenderException(cause);
+            }
+        }
+        byte[] imageRegion = IceFutures.await(
+                render(requestHandler, client, image, cacheKey));
+        if (imageRegion != null && diskTileCache != null) {
+            diskTileCache.put(cacheKey, imageRegion);
+        }
+        return imageRegion;
+    }
+
+    /**
+     * Thrown when the render in flight a request joined failed, wrapping
+     * the failure of the request leading it.
+     */
+    static final class JoinedRenderException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        JoinedRenderException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Renders an image region on behalf of all requests for it which arrive
+     * while it is in flight.  The caller must have joined the render as
+     * its leader.
+     * @param requestHandler handler of the leading request.
+     * @param client joined OMERO client of the leading request.
+     * @param image metadata of the {@link Image}.
+     * @param cacheKey key under which the image region is cached.
+     * @return See {@link ImageRegionRequestHandler#renderImageRegion}.
+     */
+    private CompletableFuture<byte[]> render(
+            ImageRegionRequestHandler requestHandler, omero.client client,
+            ImageMetadata image, String cacheKey) {
+        return requestHandler.renderImageRegion(
+                    client, image, contextExecutor, localExecutor)
+            .whenComplete((imageRegion, t) -> {
+                if (t != null) {
+                    renders.fail(cacheKey, IceFutures.unwrap(t));
+                } else {
+                    renders.complete(cacheKey, imageRegion);
+                }
+            });
+    }
+
+    /**
+     * Renders a tile speculatively so that it is cached by the time it is
+     * requested.  Prefetches are scheduled as other requests are, so that
+     * they count towards the requests in flight, and are dropped if the
+     * scheduler rejects or sheds them.  Called on a prefetch thread, which
+     * waits for the prefetch to complete so that the prefetch threads
+     * bound the number of prefetches in flight.
+     * @param imageRegionCtx context of the tile to render.
+     */
+    private void prefetchImageRegion(ImageRegionCtx imageRegionCtx) {
+        CompletableFuture<Void> done = new CompletableFuture<Void>();
+        boolean scheduled = scheduler.scheduleAsync(
+                () -> prefetch(imageRegionCtx)
+                        .whenComplete((v, t) -> done.complete(null)),
+                () -> {
+                    log.debug("Prefetch shed; deadline exceeded");
+                    done.complete(null);
+                });
+        if (!scheduled) {
+            log.debug("Prefetch dropped; too many requests queued");
+            return;
+        }
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            // The prefetcher has been closed
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Never completed exceptionally
+        }
+    }
+
+    /**
+     * Renders a prefetched tile unless it is already cached or being
+     * rendered.  Called on a scheduler thread.
+     * @param imageRegionCtx context of the tile to render.
+     * @return Future completed once the tile has been rendered, or
+     * skipped, which fails if it could not be.
+     */
+    private CompletableFuture<Void> prefetch(ImageRegionCtx imageRegionCtx) {
+        OmeroSession session;
+        try {
+            session = sessionCache.acquire(imageRegionCtx.omeroSessionKey);
+        } catch (Exception e) {
+            log.debug("Exception while prefetching image region", e);
+            return CompletableFuture.completedFuture(null);
+        }
+        ImageRegionRequestHandler requestHandler =
+                new ImageRegionRequestHandler(
+                        imageRegionCtx, enginePool, metadataCache,
+                        renderingMetadataCache, tileCache,
+                        localRendering, encoder, projector,
+                        cacheKey -> false);
+        omero.client client = session.getClient();
+        return requestHandler.getImageMetadata(client)
+            .thenComposeAsync(image -> {
+                if (image == null) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                String cacheKey = requestHandler.getCacheKey(image);
+                if (tileCache.contains(cacheKey)
+                        || (diskTileCache != null
+                                && diskTileCache.get(cacheKey) != null)
+                        || renders.join(cacheKey) != null) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                log.debug("Prefetching {}", cacheKey);
+                return render(requestHandler, client, image, cacheKey)
+                    .thenAcceptAsync(imageRegion -> {
+                        if (imageRegion == null || diskTileCache == null) {
+                            return;
+                        }
+                        try {
+                            diskTileCache.put(cacheKey, imageRegion);
+                        } catch (IOException e) {
+                            log.error(
+                                "Exception while caching image region", e);
+                        }
+                    }, contextExecutor);
+            }, contextExecutor)
+            .whenCompleteAsync((v, t) -> {
+                sessionCache.release(session);
+                if (t == null) {
+                    return;
+                }
+                Throwable cause = IceFutures.unwrap(t);
+                if (OmeroSessionCache.isSessionExpired(cause)) {
+                    sessionCache.invalidate(session);
+                }
+                log.debug("Exception while prefetching image region", cause);
+            }, contextExecutor);
+    }
+
+    /**
+     * Whether or not the conditional request headers forwarded with a
+     * render image region event show that the client's copy of the image
+     * region is current.  As per RFC 7232 <code>If-Modified-Since</code> is
+     * only considered when <code>If-None-Match</code> is absent.
+     * @param headers headers of the event.
+     * @param etag entity tag of the image region.
+     * @param lastModified time in milliseconds the image region was last
+     * modified.
+     * @return See above.
+     */
+    static boolean isNotModified(
+            MultiMap headers, String etag, long lastModified) {
+        String ifNoneMatch = headers.get("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    // If-None-Match uses the weak comparison function
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = headers.get("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(
+                        ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli();
+                // HTTP dates have a resolution of one second
+                return lastModified / 1000 <= since / 1000;
+            } catch (DateTimeParseException e) {
+                log.debug("Invalid If-Modified-Since: {}", ifModifiedSince);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Formats a time as an HTTP date.
+     * @param time time in milliseconds since the epoch.
+     * @return See above.
+     */
+    static String formatHttpDate(long time) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC));
     }
 }
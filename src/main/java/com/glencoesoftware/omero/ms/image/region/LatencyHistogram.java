@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free histogram of durations.  Durations are counted in log-linear
+ * buckets: each power of two from 2^16 nanoseconds (about 66
+ * microseconds) to 2^36 nanoseconds (about 69 seconds) is split into
+ * {@link #SUB_BUCKETS} buckets of equal width, so that the upper bound of
+ * the bucket any duration falls in is at most 25% more than the duration
+ * whatever its magnitude.  Recording a duration is a few bit operations
+ * and two uncontended increments.
+ */
+public class LatencyHistogram {
+
+    /** Number of buckets each power of two is split into; a power of two */
+    static final int SUB_BUCKETS = 4;
+
+    /** Log base 2 of {@link #SUB_BUCKETS} */
+    private static final int SUB_BUCKET_BITS =
+            Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    /** Log base 2 of the upper bound of the first bucket in nanoseconds */
+    private static final int MIN_EXPONENT = 16;
+
+    /** Log base 2 of the largest bound in nanoseconds */
+    private static final int MAX_EXPONENT = 36;
+
+    /** Upper bounds of the buckets in nanoseconds, in ascending order */
+    static final long[] BOUNDS =
+            new long[1 + (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS];
+
+    static {
+        BOUNDS[0] = 1L << MIN_EXPONENT;
+        int i = 1;
+        for (int exponent = MIN_EXPONENT; exponent < MAX_EXPONENT;
+                exponent++) {
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            for (int sub = 1; sub <= SUB_BUCKETS; sub++) {
+                BOUNDS[i++] = (1L << exponent) + sub * width;
+            }
+        }
+    }
+
+    /**
+     * Count of durations in each bucket; the last counts durations longer
+     * than the largest bound
+     */
+    private final LongAdder[] counts = new LongAdder[BOUNDS.length + 1];
+
+    /** Sum of all durations in nanoseconds */
+    private final LongAdder sum = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration.
+     * @param nanos duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        counts[bucket(nanos)].increment();
+        sum.add(nanos);
+    }
+
+    /**
+     * Index of the bucket a duration falls in; the first bucket whose
+     * upper bound is at least the duration.
+     * @param nanos duration in nanoseconds.
+     * @return See above; {@link #BOUNDS}<code>.length</code> if the
+     * duration is longer than the largest bound.
+     */
+    static int bucket(long nanos) {
+        // Upper bounds are inclusive
+        long value = nanos - 1;
+        if (value < BOUNDS[0]) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BOUNDS.length;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+                & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return Number of durations less than or equal to each bound of
+     * {@link #BOUNDS}, followed by the total number of durations recorded.
+     * Counts are read independently so may be off by durations recorded
+     * concurrently.
+     */
+    public long[] cumulativeCounts() {
+        long[] cumulative = new long[counts.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i].sum();
+            cumulative[i] = total;
+        }
+        return cumulative;
+    }
+
+    /**
+     * @return Sum of all durations recorded in nanoseconds.
+     */
+    public long sum() {
+        return sum.sum();
+    }
+
+    /**
+     * Estimates a quantile of the durations recorded.
+     * @param quantile quantile between 0 and 1.
+     * @return Upper bound in nanoseconds of the bucket containing the
+     * quantile, {@link Long#MAX_VALUE} if it is beyond the largest bound or
+     * 0 if nothing has been recorded.
+     */
+    public long quantile(double quantile) {
+        long[] cumulative = cumulativeCounts();
+        long total = cumulative[cumulative.length - 1];
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        for (int i = 0; i < BOUNDS.length; i++) {
+            if (cumulative[i] >= rank) {
+                return BOUNDS[i];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import omero.ServerError;
+
+/**
+ * Renders image regions in process from raw pixel data rather than on the
+ * OMERO server.  Each active channel is windowed linearly into
+ * <code>[0, 255]</code> through a lookup table, colored and additively
+ * composited (<code>rgb</code> model) or, for the <code>greyscale</code>
+ * model, the first active channel is rendered alone.  Projections are
+ * reduced by {@link ZProjector} before windowing.  Encoding is left to
+ * {@link ImageEncoder}.  Only requests which
+ * fully specify the window and color of every active channel and the
+ * rendering model can be rendered in process as the settings of the
+ * rendering definition are not consulted; see
+ * {@link #canRender(ImageRegionCtx)}.
+ */
+public class LocalRenderer {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(LocalRenderer.class);
+
+    /**
+     * Lookup tables of recently used windows; a 16 bit table is as large
+     * as a tile and is shared by every tile rendered with the same window
+     */
+    private static final Cache<LookupTableKey, byte[]> lookupTables =
+            Caffeine.newBuilder().maximumSize(64).build();
+
+    /** Image Region Context */
+    private final ImageRegionCtx imageRegionCtx;
+
+    /**
+     * Projector of Z sections; <code>null</code> if projections cannot be
+     * rendered
+     */
+    private final ZProjector projector;
+
+    /** Number of Z sections of the image */
+    private final int sizeZ;
+
+    /**
+     * Constructor for renderers of single Z sections.
+     * @param imageRegionCtx {@link ImageRegionCtx} object
+     */
+    public LocalRenderer(ImageRegionCtx imageRegionCtx) {
+        this(imageRegionCtx, null, 1);
+    }
+
+    /**
+     * Default constructor.
+     * @param imageRegionCtx {@link ImageRegionCtx} object
+     * @param projector projector of Z sections
+     * @param sizeZ number of Z sections of the image
+     */
+    public LocalRenderer(
+            ImageRegionCtx imageRegionCtx, ZProjector projector, int sizeZ) {
+        this.imageRegionCtx = imageRegionCtx;
+        this.projector = projector;
+        this.sizeZ = sizeZ;
+    }
+
+    /**
+     * Whether or not an image region can be rendered in process; the
+     * rendering model and the window and color of every active channel
+     * must be specified.
+     * @param imageRegionCtx {@link ImageRegionCtx} object
+     * @return See above.
+     */
+    public static boolean canRender(ImageRegionCtx imageRegionCtx) {
+        ChannelSettings channels = imageRegionCtx.channels;
+        if (imageRegionCtx.m == null || channels == null) {
+            return false;
+        }
+        for (int idx = 0; idx < channels.size(); idx++) {
+            if (channels.channel(idx) <= 0) {
+                continue;
+            }
+            if (!channels.hasWindow(idx) || channels.rgba(idx) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Renders the requested image region.
+     * @param source raw pixel data of the image.
+     * @param sizeC number of channels of the image.
+     * @return Rendered image region.
+     * @throws IllegalArgumentException If the requested region is invalid.
+     * @throws ServerError If the raw pixel data cannot be read.
+     */
+    public BufferedImage render(PixelSource source, int sizeC)
+            throws IllegalArgumentException, ServerError {
+        int resolution = imageRegionCtx.resolution == null?
+                0 : imageRegionCtx.resolution;
+        if (resolution < 0 || resolution >= source.getResolutionLevels()) {
+            throw new IllegalArgumentException(
+                    "Invalid resolution level: " + resolution);
+        }
+        int[] region = getRegion(source, resolution);
+        ZProjector.Projection projection = null;
+        if (imageRegionCtx.projection != null) {
+            if (projector == null) {
+                throw new IllegalArgumentException(
+                        "Projections are not supported");
+            }
+            projection = ZProjector.Projection.parse(
+                    imageRegionCtx.projection, sizeZ);
+        }
+        log.debug("Rendering region {},{} {}x{} at resolution {} locally",
+                region[0], region[1], region[2], region[3], resolution);
+        int width = region[2];
+        int height = region[3];
+        BufferedImage image =
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] rgb = ((DataBufferInt) image.getRaster().getDataBuffer())
+                .getData();
+        boolean greyscale = "greyscale".equals(imageRegionCtx.m);
+        int byteWidth = source.getByteWidth();
+        boolean signed = source.isSigned();
+        boolean floatingPoint = source.isFloat();
+        StageTimer t0 = new StageTimer("LocalRenderer.render");
+        try {
+            for (Channel channel : getActiveChannels(sizeC)) {
+                int[] colorTable = greyscale?
+                        greyTable() : colorTable(channel.rgba);
+                if (projection != null) {
+                    double[] values = projector.project(
+                            source, projection, resolution, channel.index,
+                            imageRegionCtx.t, region[0], region[1],
+                            width, height);
+                    composite(
+                            values, channel.start, channel.end,
+                            colorTable, rgb);
+                } else {
+                    byte[] pixels = source.getRegion(
+                            resolution, imageRegionCtx.z, channel.index,
+                            imageRegionCtx.t, region[0], region[1],
+                            width, height);
+                    composite(
+                            pixels, byteWidth, signed, floatingPoint,
+                            channel.start, channel.end, colorTable, rgb);
+                }
+                if (greyscale) {
+                    // The greyscale model renders the first active channel
+                    break;
+                }
+            }
+        } finally {
+            t0.stop();
+        }
+        return image;
+    }
+
+    /**
+     * Determines the region to read, in pixels at the requested resolution
+     * level, truncated to the bounds of the image.
+     * @param source raw pixel data of the image.
+     * @param resolution resolution level; 0 is full resolution.
+     * @return X, Y, width and height of the region.
+     * @throws IllegalArgumentException If the region is outside the image.
+     * @throws ServerError If the geometry of the image cannot be retrieved.
+     */
+    private int[] getRegion(PixelSource source, int resolution)
+            throws IllegalArgumentException, ServerError {
+        int x, y, width, height;
+        if (imageRegionCtx.tile != null) {
+            int[] tileSize = source.getTileSize();
+            width = tileSize[0];
+            height = tileSize[1];
+            x = imageRegionCtx.tile.getX() * width;
+            y = imageRegionCtx.tile.getY() * height;
+        } else if (imageRegionCtx.region != null) {
+            x = imageRegionCtx.region.getX();
+            y = imageRegionCtx.region.getY();
+            width = imageRegionCtx.region.getWidth();
+            height = imageRegionCtx.region.getHeight();
+        } else {
+            throw new IllegalArgumentException(
+                    "Tile or region argument required.");
+        }
+        int[] size = source.getSize(resolution);
+        width = Math.min(width, size[0] - x);
+        height = Math.min(height, size[1] - y);
+        if (x < 0 || y < 0 || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(
+                    "Region outside of the image: " + x + "," + y);
+        }
+        return new int[] { x, y, width, height };
+    }
+
+    /**
+     * @param sizeC number of channels of the image.
+     * @return Settings of the active channels in channel order.
+     */
+    private List<Channel> getActiveChannels(int sizeC) {
+        List<Channel> active = new ArrayList<Channel>();
+        for (int c = 0; c < sizeC; c++) {
+            // index of windows/colors args
+            int idx = imageRegionCtx.channels.indexOf(c + 1);
+            if (idx >= 0) {
+                active.add(new Channel(
+                        c, imageRegionCtx.channels.windowStart(idx),
+                        imageRegionCtx.channels.windowEnd(idx),
+                        imageRegionCtx.channels.rgba(idx)));
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Maps windowed values to packed RGB for a colored channel.
+     * @param rgba red, green, blue and alpha components of the color.
+     * @return Packed RGB contribution of each windowed value.
+     */
+    static int[] colorTable(int[] rgba) {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            int scale = v * rgba[3];
+            table[v] = ((rgba[0] * scale / 65025) << 16)
+                    | ((rgba[1] * scale / 65025) << 8)
+                    | (rgba[2] * scale / 65025);
+        }
+        return table;
+    }
+
+    /**
+     * @return Packed RGB grey of each windowed value.
+     */
+    static int[] greyTable() {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; v++) {
+            table[v] = (v << 16) | (v << 8) | v;
+        }
+        return table;
+    }
+
+    /**
+     * Windows a value linearly into <code>[0, 255]</code>.
+     * @param value raw pixel value.
+     * @param start window start.
+     * @param end window end.
+     * @return See above.
+     */
+    static int quantize(double value, double start, double end) {
+        if (value <= start) {
+            return 0;
+        }
+        if (value >= end) {
+            return 255;
+        }
+        return (int) ((value - start) * 255 / (end - start) + 0.5);
+    }
+
+    /**
+     * Windows, colors and additively composites a channel's raw pixel data
+     * into a packed RGB image, saturating each component.  8 and 16 bit
+     * integer pixel data is windowed through a lookup table.
+     * @param pixels big endian raw pixel data.
+     * @param byteWidth number of bytes per pixel.
+     * @param signed whether or not pixel values are signed.
+     * @param floatingPoint whether or not pixel values are floating point.
+     * @param start window start.
+     * @param end window end.
+     * @param colorTable packed RGB contribution of each windowed value.
+     * @param rgb packed RGB image to composite into.
+     */
+    static void composite(
+            byte[] pixels, int byteWidth, boolean signed,
+            boolean floatingPoint, double start, double end,
+            int[] colorTable, int[] rgb) {
+        if (!floatingPoint && byteWidth <= 2) {
+            byte[] lut = lookupTable(byteWidth, signed, start, end);
+            if (byteWidth == 1) {
+                for (int i = 0; i < rgb.length; i++) {
+                    int index = pixels[i] & 0xFF;
+                    rgb[i] = add(rgb[i], colorTable[lut[index] & 0xFF]);
+                }
+            } else {
+                for (int i = 0, j = 0; i < rgb.length; i++, j += 2) {
+                    int index = ((pixels[j] & 0xFF) << 8)
+                            | (pixels[j + 1] & 0xFF);
+                    rgb[i] = add(rgb[i], colorTable[lut[index] & 0xFF]);
+                }
+            }
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pixels);
+        for (int i = 0; i < rgb.length; i++) {
+            double value;
+            if (floatingPoint) {
+                value = byteWidth == 4?
+                        buffer.getFloat(i * 4) : buffer.getDouble(i * 8);
+            } else {
+                int v = buffer.getInt(i * 4);
+                value = signed? v : v & 0xFFFFFFFFL;
+            }
+            rgb[i] = add(rgb[i], colorTable[quantize(value, start, end)]);
+        }
+    }
+
+    /**
+     * Windows, colors and additively composites a channel's projected
+     * pixel values into a packed RGB image, saturating each component.
+     * @param values projected pixel values.
+     * @param start window start.
+     * @param end window end.
+     * @param colorTable packed RGB contribution of each windowed value.
+     * @param rgb packed RGB image to composite into.
+     */
+    static void composite(
+            double[] values, double start, double end, int[] colorTable,
+            int[] rgb) {
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = add(
+                    rgb[i], colorTable[quantize(values[i], start, end)]);
+        }
+    }
+
+    /**
+     * Retrieves the lookup table windowing every possible 8 or 16 bit
+     * integer value, indexed by the value's unsigned bit pattern, from the
+     * cache or builds it if no recent tile has used the same window.
+     * @param byteWidth number of bytes per pixel; 1 or 2.
+     * @param signed whether or not pixel values are signed.
+     * @param start window start.
+     * @param end window end.
+     * @return See above; must not be modified.
+     */
+    private static byte[] lookupTable(
+            int byteWidth, boolean signed, double start, double end) {
+        return lookupTables.get(
+                new LookupTableKey(byteWidth, signed, start, end),
+                key -> buildLookupTable(byteWidth, signed, start, end));
+    }
+
+    /**
+     * Builds a lookup table; see
+     * {@link #lookupTable(int, boolean, double, double)}.
+     * @param byteWidth number of bytes per pixel; 1 or 2.
+     * @param signed whether or not pixel values are signed.
+     * @param start window start.
+     * @param end window end.
+     * @return See above.
+     */
+    private static byte[] buildLookupTable(
+            int byteWidth, boolean signed, double start, double end) {
+        int size = 1 << (8 * byteWidth);
+        byte[] lut = new byte[size];
+        for (int index = 0; index < size; index++) {
+            int value = index;
+            if (signed) {
+                value = byteWidth == 1? (byte) index : (short) index;
+            }
+            lut[index] = (byte) quantize(value, start, end);
+        }
+        return lut;
+    }
+
+    /**
+     * Adds two packed RGB values saturating each component at 255.
+     * @param a packed RGB value.
+     * @param b packed RGB value.
+     * @return See above.
+     */
+    private static int add(int a, int b) {
+        int red = Math.min(255, ((a >> 16) & 0xFF) + ((b >> 16) & 0xFF));
+        int green = Math.min(255, ((a >> 8) & 0xFF) + ((b >> 8) & 0xFF));
+        int blue = Math.min(255, (a & 0xFF) + (b & 0xFF));
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Lookup table cache key; the pixel type and the window.
+     */
+    private static final class LookupTableKey {
+
+        private final int byteWidth;
+
+        private final boolean signed;
+
+        private final double start;
+
+        private final double end;
+
+        LookupTableKey(
+                int byteWidth, boolean signed, double start, double end) {
+            this.byteWidth = byteWidth;
+            this.signed = signed;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof LookupTableKey)) {
+                return false;
+            }
+            LookupTableKey other = (LookupTableKey) o;
+            return byteWidth == other.byteWidth
+                    && signed == other.signed
+                    && Double.compare(start, other.start) == 0
+                    && Double.compare(end, other.end) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(byteWidth, signed, start, end);
+        }
+    }
+
+    /**
+     * Rendering settings of an active channel.
+     */
+    private static final class Channel {
+
+        private final int index;
+
+        private final double start;
+
+        private final double end;
+
+        private final int[] rgba;
+
+        Channel(int index, double start, double end, int[] rgba) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.rgba = rgba;
+        }
+    }
+}
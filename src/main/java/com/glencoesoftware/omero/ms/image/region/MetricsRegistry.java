@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * In process counters, gauges and latency histograms, written out in the
+ * Prometheus text exposition format.  Metrics are grouped in families of
+ * the same name, type and help text, distinguished by their labels.
+ * Counters and histograms are created on first use and shared thereafter;
+ * counters and gauges may also be backed by a function which is called
+ * when the metrics are written out.
+ */
+public class MetricsRegistry {
+
+    /** Registry shared by all verticles of the process */
+    public static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    /** Prefix of the names of all metrics of this microservice */
+    public static final String PREFIX = "omero_ms_image_region_";
+
+    /** Content type of the text exposition format */
+    public static final String CONTENT_TYPE =
+            "text/plain; version=0.0.4; charset=utf-8";
+
+    /** Name of the counter family of cache lookups */
+    private static final String CACHE_LOOKUPS =
+            PREFIX + "cache_lookups_total";
+
+    /** Help text of the counter family of cache lookups */
+    private static final String CACHE_LOOKUPS_HELP =
+            "Cache lookups by cache and result";
+
+    /** <code>le</code> label values of the histogram buckets */
+    private static final String[] BUCKET_LABELS =
+            new String[LatencyHistogram.BOUNDS.length + 1];
+
+    static {
+        for (int i = 0; i < LatencyHistogram.BOUNDS.length; i++) {
+            BUCKET_LABELS[i] = seconds(LatencyHistogram.BOUNDS[i]);
+        }
+        BUCKET_LABELS[LatencyHistogram.BOUNDS.length] = "+Inf";
+    }
+
+    /** Metric families by name */
+    private final ConcurrentMap<String, Family> families =
+            new ConcurrentSkipListMap<String, Family>();
+
+    /**
+     * Retrieves or creates a counter.
+     * @param name name of the counter family.
+     * @param help help text of the counter family.
+     * @param labels label names and values, alternately.
+     * @return See above.
+     */
+    public LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, "counter").metrics
+                .computeIfAbsent(labels(labels), k -> new LongAdder());
+    }
+
+    /**
+     * Registers a counter whose value is read from a function, replacing
+     * any counter previously registered with the same name and labels.
+     * @param name name of the counter family.
+     * @param help help text of the counter family.
+     * @param value function returning the value of the counter.
+     * @param labels label names and values, alternately.
+     */
+    public void counter(
+            String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "counter").metrics.put(labels(labels), value);
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge previously registered with
+     * the same name and labels.
+     * @param name name of the gauge family.
+     * @param help help text of the gauge family.
+     * @param value function returning the value of the gauge.
+     * @param labels label names and values, alternately.
+     */
+    public void gauge(
+            String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").metrics.put(labels(labels), value);
+    }
+
+    /**
+     * Retrieves or creates a latency histogram, written out in seconds.
+     * @param name name of the histogram family.
+     * @param help help text of the histogram family.
+     * @param labels label names and values, alternately.
+     * @return See above.
+     */
+    public LatencyHistogram histogram(
+            String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, "histogram").metrics
+                .computeIfAbsent(labels(labels), k -> new LatencyHistogram());
+    }
+
+    /**
+     * Counter of the lookups in one of the caches of this microservice.
+     * @param cache name of the cache.
+     * @param hit whether to count hits or misses.
+     * @return See above.
+     */
+    public LongAdder cacheLookups(String cache, boolean hit) {
+        return counter(
+                CACHE_LOOKUPS, CACHE_LOOKUPS_HELP,
+                "cache", cache, "result", hit? "hit" : "miss");
+    }
+
+    /**
+     * Registers a counter of the lookups in one of the caches of this
+     * microservice whose value is read from a function.
+     * @param cache name of the cache.
+     * @param hit whether the function counts hits or misses.
+     * @param value function returning the value of the counter.
+     */
+    public void cacheLookups(String cache, boolean hit, LongSupplier value) {
+        counter(CACHE_LOOKUPS, CACHE_LOOKUPS_HELP, value,
+                "cache", cache, "result", hit? "hit" : "miss");
+    }
+
+    /**
+     * @return All metrics in the Prometheus text exposition format.
+     */
+    public String scrape() {
+        StringBuilder sb = new StringBuilder(8192);
+        for (Family family : families.values()) {
+            sb.append("# HELP ").append(family.name).append(' ')
+                .append(family.help.replace("\\", "\\\\")
+                        .replace("\n", "\\n"))
+                .append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ')
+                .append(family.type).append('\n');
+            for (Map.Entry<String, Object> entry
+                    : family.metrics.entrySet()) {
+                write(sb, family.name, entry.getKey(), entry.getValue());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes out the samples of a metric.
+     * @param sb buffer to write to.
+     * @param name name of the metric family.
+     * @param labels labels of the metric.
+     * @param metric metric.
+     */
+    private void write(
+            StringBuilder sb, String name, String labels, Object metric) {
+        if (metric instanceof LatencyHistogram) {
+            LatencyHistogram histogram = (LatencyHistogram) metric;
+            long[] counts = histogram.cumulativeCounts();
+            String prefix = labels.isEmpty()? "" : labels + ",";
+            for (int i = 0; i < counts.length; i++) {
+                sb.append(name).append("_bucket{").append(prefix)
+                    .append("le=\"").append(BUCKET_LABELS[i]).append("\"} ")
+                    .append(counts[i]).append('\n');
+            }
+            sample(sb, name + "_sum", labels)
+                .append(seconds(histogram.sum())).append('\n');
+            sample(sb, name + "_count", labels)
+                .append(counts[counts.length - 1]).append('\n');
+            return;
+        }
+        sample(sb, name, labels);
+        if (metric instanceof LongAdder) {
+            sb.append(((LongAdder) metric).sum());
+        } else if (metric instanceof LongSupplier) {
+            sb.append(((LongSupplier) metric).getAsLong());
+        } else {
+            double value = ((DoubleSupplier) metric).getAsDouble();
+            if (value == (long) value) {
+                sb.append((long) value);
+            } else {
+                sb.append(value);
+            }
+        }
+        sb.append('\n');
+    }
+
+    /**
+     * Writes out the name and labels of a sample.
+     * @param sb buffer to write to.
+     * @param name name of the sample.
+     * @param labels labels of the sample.
+     * @return <code>sb</code>.
+     */
+    private StringBuilder sample(
+            StringBuilder sb, String name, String labels) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        return sb.append(' ');
+    }
+
+    /**
+     * Retrieves or creates a metric family.
+     * @param name name of the family.
+     * @param help help text of the family.
+     * @param type type of the family.
+     * @return See above.
+     * @throws IllegalArgumentException If a family of the same name but a
+     * different type exists.
+     */
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(
+                name, k -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(
+                    name + " is a " + family.type + " not a " + type);
+        }
+        return family;
+    }
+
+    /**
+     * Formats labels as they are written out, without the surrounding
+     * braces.
+     * @param labels label names and values, alternately.
+     * @return See above.
+     */
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException(
+                    "Labels must be name and value pairs");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"")
+                .append(labels[i + 1].replace("\\", "\\\\")
+                        .replace("\"", "\\\"").replace("\n", "\\n"))
+                .append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param nanos duration in nanoseconds.
+     * @return Duration in seconds without exponent or trailing zeros.
+     */
+    private static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros()
+                .toPlainString();
+    }
+
+    /**
+     * Metrics of the same name, type and help text.
+     */
+    private static final class Family {
+
+        final String name;
+
+        final String help;
+
+        final String type;
+
+        /**
+         * Metrics by their formatted labels; {@link LongAdder},
+         * {@link LongSupplier}, {@link DoubleSupplier} or
+         * {@link LatencyHistogram}
+         */
+        final ConcurrentMap<String, Object> metrics =
+                new ConcurrentSkipListMap<String, Object>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.slf4j.LoggerFactory;
+
+import Glacier2.CannotCreateSessionException;
+import Glacier2.PermissionDeniedException;
+import omero.ServerError;
+
+/**
+ * A joined OMERO session, shared by concurrent requests and reference
+ * counted by the {@link OmeroSessionCache} which owns it.  The session is
+ * joined lazily by the first request to acquire it and is only detached
+ * from once no requests are using it.  State is guarded by a
+ * {@link ReentrantLock} rather than a monitor as it is held while the
+ * session is joined; virtual threads which wait for a lock, unlike those
+ * which wait for a monitor, do not pin the platform thread carrying them.
+ */
+public class OmeroSession {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(OmeroSession.class);
+
+    /** OMERO session key */
+    public final String omeroSessionKey;
+
+    /** Guards the state of the session */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Creates the client with which the session is joined */
+    private final Supplier<omero.client> clientFactory;
+
+    /** Joined client; <code>null</code> until the first acquisition */
+    private omero.client client;
+
+    /** Number of requests currently using the session */
+    private int references = 0;
+
+    /** Time in milliseconds at which the session was last released */
+    private long lastReleased = System.currentTimeMillis();
+
+    /** Whether or not the session is to be closed once no longer in use */
+    private boolean invalid = false;
+
+    /** Whether or not the client has been closed */
+    private boolean closed = false;
+
+    /**
+     * Default constructor.
+     * @param omeroSessionKey OMERO session key.
+     * @param clientFactory creates the client with which the session is
+     * joined.
+     */
+    OmeroSession(
+            String omeroSessionKey, Supplier<omero.client> clientFactory) {
+        this.omeroSessionKey = omeroSessionKey;
+        this.clientFactory = clientFactory;
+    }
+
+    /**
+     * @return The joined client.  Only valid while the session is acquired.
+     */
+    public omero.client getClient() {
+        lock.lock();
+        try {
+            return client;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Acquires a reference to the session, joining it if this is the first
+     * acquisition.  Concurrent first acquisitions wait for a single join.
+     * @return <code>true</code> if the session was acquired or
+     * <code>false</code> if it has been invalidated or closed in the
+     * meantime and a new session must be created.
+     * @throws PermissionDeniedException If the session cannot be joined.
+     * @throws CannotCreateSessionException If the session cannot be joined.
+     * @throws ServerError If the session cannot be joined.
+     */
+    boolean acquire()
+            throws PermissionDeniedException, CannotCreateSessionException,
+                ServerError {
+        lock.lock();
+        try {
+            if (invalid || closed) {
+                return false;
+            }
+            if (client == null) {
+                join();
+            }
+            references++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a reference to the session.
+     * @return <code>true</code> if the session is invalid and this was the
+     * last reference to it, in which case the caller is responsible for
+     * closing it.
+     */
+    boolean release() {
+        lock.lock();
+        try {
+            references--;
+            lastReleased = System.currentTimeMillis();
+            return invalid && references == 0 && markClosed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the session as invalid, for example because it has expired on
+     * the server, so that it is no longer handed out.
+     * @return <code>true</code> if the session is not in use, in which case
+     * the caller is responsible for closing it.
+     */
+    boolean invalidate() {
+        lock.lock();
+        try {
+            invalid = true;
+            return references == 0 && markClosed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the session as closed if it has not been in use since the given
+     * time.
+     * @param cutoff time in milliseconds.
+     * @return <code>true</code> if the session has been idle since before
+     * <code>cutoff</code>, in which case the caller is responsible for
+     * closing it.
+     */
+    boolean closeIfIdleSince(long cutoff) {
+        lock.lock();
+        try {
+            return references == 0 && lastReleased < cutoff
+                    && markClosed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the session as closed regardless of whether it is in use.
+     * @return <code>true</code> if the session was not already closed, in
+     * which case the caller is responsible for closing it.
+     */
+    boolean closeNow() {
+        lock.lock();
+        try {
+            invalid = true;
+            return markClosed();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps the session alive on the server.
+     * @throws ServerError If the session could not be kept alive.
+     */
+    void keepAlive() throws ServerError {
+        omero.client client = getClient();
+        if (client == null) {
+            return;
+        }
+        client.getSession().keepAlive(null);
+    }
+
+    /**
+     * Detaches from the session.  The OMERO session itself is not destroyed
+     * as it belongs to OMERO.web.
+     */
+    void close() {
+        omero.client client = getClient();
+        if (client != null) {
+            log.debug("Detaching from session");
+            client.closeSession();
+        }
+    }
+
+    /**
+     * Marks the session as closed.
+     * @return <code>true</code> if the session was not already closed.
+     */
+    private boolean markClosed() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    /**
+     * Joins the session, detaching from rather than destroying it when the
+     * client is closed.
+     * @throws PermissionDeniedException If the session cannot be joined.
+     * @throws CannotCreateSessionException If the session cannot be joined.
+     * @throws ServerError If the session cannot be joined.
+     */
+    private void join()
+            throws PermissionDeniedException, CannotCreateSessionException,
+                ServerError {
+        log.debug("Joining session");
+        omero.client client = clientFactory.get();
+        StageTimer t0 = new StageTimer("joinSession");
+        try {
+            client.joinSession(omeroSessionKey).detachOnDestroy();
+        } catch (PermissionDeniedException | CannotCreateSessionException
+                | ServerError | RuntimeException e) {
+            invalid = true;
+            client.closeSession();
+            throw e;
+        } finally {
+            t0.stop();
+        }
+        this.client = client;
+    }
+}
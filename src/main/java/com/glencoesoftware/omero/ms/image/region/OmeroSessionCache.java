@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.LoggerFactory;
+
+import Glacier2.CannotCreateSessionException;
+import Glacier2.PermissionDeniedException;
+import omero.ServerError;
+
+/**
+ * Thread safe cache of joined OMERO sessions keyed by OMERO session key so
+ * that the session join handshake is only paid for once per session rather
+ * than once per request.  Sessions are kept alive while cached, detached
+ * from once they have been idle for longer than the idle timeout, and
+ * discarded as soon as a request reports that they have expired.
+ */
+public class OmeroSessionCache {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(OmeroSessionCache.class);
+
+    /** Creates the clients with which sessions are joined */
+    private final Supplier<omero.client> clientFactory;
+
+    /** Time in milliseconds after which an idle session is detached from */
+    private final long idleTimeout;
+
+    /**
+     * Called with each session's client before it is closed so that
+     * services created by that client can be cleaned up
+     */
+    private final Consumer<omero.client> closeListener;
+
+    /** Cached sessions by OMERO session key */
+    private final ConcurrentHashMap<String, OmeroSession> sessions =
+            new ConcurrentHashMap<String, OmeroSession>();
+
+    /**
+     * Default constructor.
+     * @param clientFactory Creates the clients with which sessions are
+     * joined.
+     * @param idleTimeout Time in milliseconds after which an idle session is
+     * detached from.
+     * @param closeListener Called with each session's client before it is
+     * closed.
+     */
+    public OmeroSessionCache(
+            Supplier<omero.client> clientFactory, long idleTimeout,
+            Consumer<omero.client> closeListener) {
+        this.clientFactory = clientFactory;
+        this.idleTimeout = idleTimeout;
+        this.closeListener = closeListener;
+    }
+
+    /**
+     * Acquires a joined session, joining it if it is not already cached.
+     * Every acquired session must be given back with
+     * {@link #release(OmeroSession)}.
+     * @param omeroSessionKey OMERO session key.
+     * @return See above.
+     * @throws PermissionDeniedException If the session cannot be joined.
+     * @throws CannotCreateSessionException If the session cannot be joined.
+     * @throws ServerError If the session cannot be joined.
+     */
+    public OmeroSession acquire(String omeroSessionKey)
+            throws PermissionDeniedException, CannotCreateSessionException,
+                ServerError {
+        while (true) {
+            OmeroSession session = sessions.computeIfAbsent(
+                    omeroSessionKey, k -> new OmeroSession(k, clientFactory));
+            boolean acquired = false;
+            try {
+                acquired = session.acquire();
+            } finally {
+                if (!acquired) {
+                    sessions.remove(omeroSessionKey, session);
+                }
+            }
+            if (acquired) {
+                return session;
+            }
+        }
+    }
+
+    /**
+     * Releases a session acquired with {@link #acquire(String)}.
+     * @param session Session to release.
+     */
+    public void release(OmeroSession session) {
+        if (session.release()) {
+            close(session);
+        }
+    }
+
+    /**
+     * Discards a session, for example because it has expired on the server.
+     * The session is detached from once it is no longer in use.
+     * @param session Session to discard.
+     */
+    public void invalidate(OmeroSession session) {
+        log.debug("Invalidating session");
+        sessions.remove(session.omeroSessionKey, session);
+        if (session.invalidate()) {
+            close(session);
+        }
+    }
+
+    /**
+     * Detaches from all sessions which have been idle for longer than the
+     * idle timeout.
+     */
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        for (OmeroSession session : sessions.values()) {
+            if (session.closeIfIdleSince(cutoff)) {
+                sessions.remove(session.omeroSessionKey, session);
+                close(session);
+            }
+        }
+    }
+
+    /**
+     * Keeps all cached sessions alive on the server, discarding those which
+     * can no longer be kept alive.
+     */
+    public void keepAlive() {
+        for (OmeroSession session : sessions.values()) {
+            try {
+                session.keepAlive();
+            } catch (Exception e) {
+                log.debug("Exception while keeping session alive", e);
+                invalidate(session);
+            }
+        }
+    }
+
+    /**
+     * Detaches from all sessions.
+     */
+    public void close() {
+        List<OmeroSession> toClose =
+                new ArrayList<OmeroSession>(sessions.values());
+        sessions.clear();
+        for (OmeroSession session : toClose) {
+            if (session.closeNow()) {
+                close(session);
+            }
+        }
+    }
+
+    /**
+     * @return Number of cached sessions.
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Whether or not an exception raised while using a session indicates
+     * that the session is no longer valid on the server.
+     * @param t Exception to inspect.
+     * @return See above.
+     */
+    public static boolean isSessionExpired(Throwable t) {
+        return t instanceof omero.SessionException
+                || t instanceof Ice.ObjectNotExistException
+                || t instanceof Ice.ConnectionLostException
+                || t instanceof Ice.CommunicatorDestroyedException;
+    }
+
+    /**
+     * Notifies the close listener and detaches from a session.
+     * @param session Session to close.
+     */
+    private void close(OmeroSession session) {
+        omero.client client = session.getClient();
+        if (client != null) {
+            try {
+                closeListener.accept(client);
+            } catch (Exception e) {
+                log.warn("Exception while cleaning up session", e);
+            }
+        }
+        session.close();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.vertx.core.Handler;
+import io.vertx.ext.web.Cookie;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Size and time bounded near-cache of the OMERO session key of each
+ * OMERO.web session, keyed by the Django <code>sessionid</code> cookie, so
+ * that the tiles requested by a viewer do not each look the OMERO.web
+ * session up in, and decode it from, the session store.  Entries are
+ * invalidated as soon as the OMERO server reports that their OMERO
+ * session has expired or been denied; a logout from OMERO.web, which
+ * closes the OMERO session, is therefore seen by the next request and a
+ * session otherwise removed from the store after at most the time to live.
+ */
+public class OmeroWebSessionCache {
+
+    /** Name of the cookie carrying the OMERO.web session id */
+    public static final String COOKIE_NAME = "sessionid";
+
+    /** Number of lookups which found a cached OMERO session key */
+    private static final LongAdder hits =
+            MetricsRegistry.DEFAULT.cacheLookups("omero-web-session", true);
+
+    /** Number of lookups which did not find a cached OMERO session key */
+    private static final LongAdder misses =
+            MetricsRegistry.DEFAULT.cacheLookups("omero-web-session", false);
+
+    /** OMERO session keys by OMERO.web session id */
+    private final Cache<String, String> cache;
+
+    /**
+     * Default constructor.
+     * @param maximumSize maximum number of entries
+     * @param timeToLive time in seconds after which an entry expires
+     */
+    public OmeroWebSessionCache(long maximumSize, long timeToLive) {
+        cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Retrieves a cached OMERO session key.
+     * @param sessionId OMERO.web session id
+     * @return OMERO session key or <code>null</code> if the session has
+     * not been looked up within the time to live.
+     */
+    public String get(String sessionId) {
+        String omeroSessionKey = cache.getIfPresent(sessionId);
+        (omeroSessionKey == null? misses : hits).increment();
+        return omeroSessionKey;
+    }
+
+    /**
+     * Caches the OMERO session key of a session looked up in the session
+     * store, unless it is already cached, so that the time to live runs
+     * from when the session was last looked up in the store.
+     * @param sessionId OMERO.web session id
+     * @param omeroSessionKey OMERO session key
+     */
+    public void put(String sessionId, String omeroSessionKey) {
+        cache.asMap().putIfAbsent(sessionId, omeroSessionKey);
+    }
+
+    /**
+     * Forgets a session, for example because its OMERO session has
+     * expired, so that it is looked up in the session store again.
+     * @param sessionId OMERO.web session id
+     */
+    public void invalidate(String sessionId) {
+        cache.invalidate(sessionId);
+    }
+
+    /**
+     * Forgets the session of a request.
+     * @param event routing context of the request.
+     */
+    public void invalidate(RoutingContext event) {
+        Cookie cookie = event.getCookie(COOKIE_NAME);
+        if (cookie != null) {
+            invalidate(cookie.getValue());
+        }
+    }
+
+    /**
+     * Wraps the handler which looks sessions up in the session store so
+     * that it is only called for sessions which are not cached.  The
+     * OMERO session key of cached sessions is put into the routing
+     * context as <code>omero.session_key</code> as it would have been by
+     * the wrapped handler; {@link #store(RoutingContext)} should follow so
+     * that the sessions it looks up are cached.
+     * @param sessionHandler handler which looks sessions up in the session
+     * store.
+     * @return See above.
+     */
+    public Handler<RoutingContext> lookup(
+            Handler<RoutingContext> sessionHandler) {
+        return event -> {
+            Cookie cookie = event.getCookie(COOKIE_NAME);
+            String omeroSessionKey =
+                    cookie == null? null : get(cookie.getValue());
+            if (omeroSessionKey == null) {
+                sessionHandler.handle(event);
+                return;
+            }
+            event.put("omero.session_key", omeroSessionKey);
+            event.next();
+        };
+    }
+
+    /**
+     * Caches the OMERO session key the session handler put into the
+     * routing context, then passes the request on to the next handler.
+     * @param event routing context of the request.
+     */
+    public void store(RoutingContext event) {
+        Cookie cookie = event.getCookie(COOKIE_NAME);
+        String omeroSessionKey = event.get("omero.session_key");
+        if (cookie != null && omeroSessionKey != null) {
+            put(cookie.getValue(), omeroSessionKey);
+        }
+        event.next();
+    }
+}
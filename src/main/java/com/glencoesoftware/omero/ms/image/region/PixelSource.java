@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import omero.ServerError;
+
+/**
+ * Source of raw pixel data for a single pixels set, organised as a pyramid
+ * of resolution levels, for rendering image regions in process.
+ */
+public interface PixelSource {
+
+    /**
+     * @return Number of resolution levels; 1 if the pixels set is not a
+     * pyramid.
+     */
+    int getResolutionLevels() throws ServerError;
+
+    /**
+     * Size of a resolution level.
+     * @param resolution resolution level; 0 is full resolution.
+     * @return Width and height of the resolution level in pixels.
+     */
+    int[] getSize(int resolution) throws ServerError;
+
+    /**
+     * @return Preferred width and height of a tile in pixels.
+     */
+    int[] getTileSize() throws ServerError;
+
+    /**
+     * @return Number of bytes per pixel.
+     */
+    int getByteWidth() throws ServerError;
+
+    /**
+     * @return Whether or not pixel values are signed.
+     */
+    boolean isSigned() throws ServerError;
+
+    /**
+     * @return Whether or not pixel values are floating point.
+     */
+    boolean isFloat() throws ServerError;
+
+    /**
+     * Reads a region of a single plane.
+     * @param resolution resolution level; 0 is full resolution.
+     * @param z Z section.
+     * @param c channel.
+     * @param t timepoint.
+     * @param x offset of the region along the X axis.
+     * @param y offset of the region along the Y axis.
+     * @param width width of the region.
+     * @param height height of the region.
+     * @return Big endian pixel values, row by row.
+     */
+    byte[] getRegion(
+            int resolution, int z, int c, int t,
+            int x, int y, int width, int height) throws ServerError;
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.Map;
+
+import org.slf4j.LoggerFactory;
+
+import omero.ServerError;
+import omero.api.RawPixelsStorePrx;
+import omero.api.RenderingEnginePrx;
+
+/**
+ * The stateful rendering services of a session for a single pixels set; a
+ * {@link RenderingEnginePrx} which has had its pixels set and rendering
+ * definition loaded and, for rendering in process, a
+ * {@link RawPixelsStorePrx} which has had its pixels set set.  Services are
+ * created when first used and can be borrowed from and returned to a
+ * {@link RenderingEnginePool} together.
+ */
+public class PooledRenderingEngine {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(PooledRenderingEngine.class);
+
+    /** Client whose session created the rendering engine */
+    public final omero.client client;
+
+    /** Pixels set the rendering engine has been loaded for */
+    public final long pixelsId;
+
+    /** The rendering engine itself; created when first used */
+    private RenderingEnginePrx renderingEngine;
+
+    /**
+     * Raw pixel data of the pixels set for rendering in process; created
+     * when first used
+     */
+    private RawPixelsStorePixelSource pixelSource;
+
+    /** Raw pixels store backing {@link #pixelSource} */
+    private RawPixelsStorePrx rawPixelsStore;
+
+    /**
+     * Whether or not the pixels set and rendering definition have been
+     * looked up and loaded.
+     */
+    private boolean loaded = false;
+
+    /** Rendering settings last applied to the engine */
+    private final RenderingEngineState state = new RenderingEngineState();
+
+    /** Time in milliseconds at which the engine was last returned */
+    private long lastReleased;
+
+    /**
+     * Default constructor.
+     * @param client Client whose session created the engine.
+     * @param pixelsId Pixels set the engine is to be loaded for.
+     */
+    PooledRenderingEngine(omero.client client, long pixelsId) {
+        this.client = client;
+        this.pixelsId = pixelsId;
+    }
+
+    /**
+     * @return The underlying rendering engine, created if this is its
+     * first use.
+     * @throws ServerError If the rendering engine cannot be created.
+     */
+    public RenderingEnginePrx getRenderingEngine() throws ServerError {
+        if (renderingEngine == null) {
+            log.debug("Creating rendering engine for Pixels:{}", pixelsId);
+            StageTimer t0 = new StageTimer("createRenderingEngine");
+            try {
+                renderingEngine =
+                        client.getSession().createRenderingEngine();
+            } finally {
+                t0.stop();
+            }
+        }
+        return renderingEngine;
+    }
+
+    /**
+     * @param ctx OMERO context (group)
+     * @return Raw pixel data of the pixels set, created and its pixels set
+     * set if this is its first use.
+     * @throws ServerError If the raw pixels store cannot be created.
+     */
+    public PixelSource getPixelSource(Map<String, String> ctx)
+            throws ServerError {
+        if (pixelSource == null) {
+            log.debug("Creating raw pixels store for Pixels:{}", pixelsId);
+            StageTimer t0 = new StageTimer("createRawPixelsStore");
+            try {
+                rawPixelsStore = client.getSession().createRawPixelsStore();
+                rawPixelsStore.setPixelsId(pixelsId, false, ctx);
+            } finally {
+                t0.stop();
+            }
+            pixelSource = new RawPixelsStorePixelSource(rawPixelsStore);
+        }
+        return pixelSource;
+    }
+
+    /**
+     * @return Rendering settings last applied to the engine.
+     */
+    public RenderingEngineState getState() {
+        return state;
+    }
+
+    /**
+     * @return Whether or not the pixels set and rendering definition of this
+     * rendering engine have already been looked up and loaded; that is,
+     * whether or not this engine is being reused.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Marks the pixels set and rendering definition as loaded.
+     */
+    public void setLoaded() {
+        loaded = true;
+    }
+
+    /**
+     * @return Whether or not any of the services are ready for use by
+     * another request and so worth returning to the pool.
+     */
+    public boolean isReusable() {
+        return loaded || pixelSource != null;
+    }
+
+    /**
+     * @return Time in milliseconds at which the engine was last returned to
+     * the pool.
+     */
+    long getLastReleased() {
+        return lastReleased;
+    }
+
+    /**
+     * Records the time at which the engine was returned to the pool.
+     * @param lastReleased Time in milliseconds.
+     */
+    void setLastReleased(long lastReleased) {
+        this.lastReleased = lastReleased;
+    }
+
+    /**
+     * Closes the rendering engine and raw pixels store.
+     */
+    void close() {
+        log.debug("Closing rendering services for Pixels:{}", pixelsId);
+        if (renderingEngine != null) {
+            try {
+                renderingEngine.close();
+            } catch (Exception e) {
+                log.warn("Exception while closing rendering engine", e);
+            }
+        }
+        if (rawPixelsStore != null) {
+            try {
+                rawPixelsStore.close();
+            } catch (Exception e) {
+                log.warn("Exception while closing raw pixels store", e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "PooledRenderingEngine(pixelsId=%d, loaded=%s, raw=%s)",
+                pixelsId, loaded, pixelSource != null);
+    }
+}
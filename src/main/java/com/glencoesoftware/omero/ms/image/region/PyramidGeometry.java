@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.List;
+
+import omero.api.ResolutionDescription;
+
+/**
+ * Immutable tile size and resolution levels of a Pixels set, which never
+ * change once the Pixels set has been created.
+ */
+public class PyramidGeometry {
+
+    /** Width of a tile in pixels */
+    public final int tileWidth;
+
+    /** Height of a tile in pixels */
+    public final int tileHeight;
+
+    /** Number of resolution levels; 1 if the Pixels set is not a pyramid */
+    public final int levels;
+
+    /** Width and height of each resolution level, full resolution first */
+    private final int[][] resolutionSizes;
+
+    /**
+     * Default constructor.
+     * @param tileSize width and height of a tile in pixels.
+     * @param levels number of resolution levels.
+     * @param descriptions descriptions of each resolution level, full
+     * resolution first.
+     */
+    public PyramidGeometry(
+            int[] tileSize, int levels,
+            List<ResolutionDescription> descriptions) {
+        tileWidth = tileSize[0];
+        tileHeight = tileSize[1];
+        this.levels = levels;
+        resolutionSizes = new int[descriptions.size()][];
+        for (int i = 0; i < resolutionSizes.length; i++) {
+            ResolutionDescription description = descriptions.get(i);
+            resolutionSizes[i] = new int[] {
+                    description.sizeX, description.sizeY };
+        }
+    }
+
+    /**
+     * Resolution level, as the rendering engine numbers them, of a
+     * resolution as requested.
+     * @param resolution resolution as requested; 0 is full resolution.
+     * @return See above; the lowest resolution is level 0.
+     */
+    public int level(int resolution) {
+        return levels - resolution - 1;
+    }
+
+    /**
+     * Size of a resolution level.
+     * @param resolution resolution as requested; 0 is full resolution.
+     * @return Width and height of the resolution level in pixels, which
+     * must not be modified.
+     */
+    public int[] resolutionSize(int resolution) {
+        return resolutionSizes[resolution];
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "PyramidGeometry(tile=%dx%d, levels=%d)",
+                tileWidth, tileHeight, levels);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.List;
+
+import omero.ServerError;
+import omero.api.RawPixelsStorePrx;
+import omero.api.ResolutionDescription;
+
+/**
+ * {@link PixelSource} backed by an OMERO raw pixels store which has had its
+ * pixels set set.  The pyramid geometry and pixel type are retrieved once
+ * and the store's resolution level is only changed when required.  Not
+ * thread safe; owned by the {@link PooledRenderingEngine} it belongs to.
+ */
+public class RawPixelsStorePixelSource implements PixelSource {
+
+    /** The raw pixels store itself */
+    private final RawPixelsStorePrx rawPixelsStore;
+
+    /** Width and height of each resolution level, full resolution first */
+    private int[][] sizes;
+
+    /** Preferred tile width and height */
+    private int[] tileSize;
+
+    /** Number of bytes per pixel */
+    private Integer byteWidth;
+
+    /** Whether or not pixel values are signed */
+    private Boolean signed;
+
+    /** Whether or not pixel values are floating point */
+    private Boolean floatingPoint;
+
+    /** Resolution level currently set on the store; 0 is full resolution */
+    private int resolution = 0;
+
+    /**
+     * Default constructor.
+     * @param rawPixelsStore raw pixels store with its pixels set set.
+     */
+    public RawPixelsStorePixelSource(RawPixelsStorePrx rawPixelsStore) {
+        this.rawPixelsStore = rawPixelsStore;
+    }
+
+    @Override
+    public int getResolutionLevels() throws ServerError {
+        return getSizes().length;
+    }
+
+    @Override
+    public int[] getSize(int resolution) throws ServerError {
+        return getSizes()[resolution];
+    }
+
+    @Override
+    public int[] getTileSize() throws ServerError {
+        if (tileSize == null) {
+            tileSize = rawPixelsStore.getTileSize();
+        }
+        return tileSize;
+    }
+
+    @Override
+    public int getByteWidth() throws ServerError {
+        if (byteWidth == null) {
+            byteWidth = rawPixelsStore.getByteWidth();
+        }
+        return byteWidth;
+    }
+
+    @Override
+    public boolean isSigned() throws ServerError {
+        if (signed == null) {
+            signed = rawPixelsStore.isSigned();
+        }
+        return signed;
+    }
+
+    @Override
+    public boolean isFloat() throws ServerError {
+        if (floatingPoint == null) {
+            floatingPoint = rawPixelsStore.isFloat();
+        }
+        return floatingPoint;
+    }
+
+    @Override
+    public byte[] getRegion(
+            int resolution, int z, int c, int t,
+            int x, int y, int width, int height) throws ServerError {
+        if (resolution != this.resolution) {
+            // The store numbers its levels from the lowest resolution
+            rawPixelsStore.setResolutionLevel(
+                    getResolutionLevels() - resolution - 1);
+            this.resolution = resolution;
+        }
+        StageTimer t0 = new StageTimer("RawPixelsStore.getTile");
+        try {
+            return rawPixelsStore.getTile(z, c, t, x, y, width, height);
+        } finally {
+            t0.stop();
+        }
+    }
+
+    /**
+     * @return Width and height of each resolution level, full resolution
+     * first.
+     * @throws ServerError If the geometry cannot be retrieved.
+     */
+    private int[][] getSizes() throws ServerError {
+        if (sizes == null) {
+            List<ResolutionDescription> descriptions =
+                    rawPixelsStore.getResolutionDescriptions();
+            int[][] sizes = new int[descriptions.size()][];
+            for (int i = 0; i < sizes.length; i++) {
+                ResolutionDescription description = descriptions.get(i);
+                sizes[i] = new int[] {
+                        description.sizeX, description.sizeY };
+            }
+            this.sizes = sizes;
+        }
+        return sizes;
+    }
+}
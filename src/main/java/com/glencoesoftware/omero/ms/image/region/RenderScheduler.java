@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.Supplier;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs requests against an OMERO server with bounded concurrency.  Requests
+ * which cannot run immediately wait, first come first served, in a queue of
+ * bounded length.  Requests are shed rather than queued once the queue is
+ * full, and rather than run once they have waited longer than their
+ * deadline, so that latency stays predictable under load.  Requests may
+ * be asynchronous, in which case a thread only starts them and the number
+ * of requests in flight is bounded separately from the number of threads.
+ * Requests are run either by a fixed pool of platform threads or, on JDKs
+ * which support them, each on a virtual thread of its own.
+ */
+public class RenderScheduler {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(RenderScheduler.class);
+
+    /** Executor running the requests */
+    private final ExecutorService executor;
+
+    /**
+     * Pool of platform threads running the requests or <code>null</code>
+     * if each request runs on a virtual thread
+     */
+    private final ThreadPoolExecutor pool;
+
+    /** Maximum number of requests waiting to run */
+    private final int maxQueued;
+
+    /** Number of requests waiting to run */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** Maximum time in milliseconds a request may wait before it is run */
+    private final long deadline;
+
+    /** Maximum number of requests in flight */
+    private final int maxInFlight;
+
+    /** Permits of the requests in flight */
+    private final Semaphore inFlight;
+
+    /** Number of requests run */
+    private final AtomicLong started = new AtomicLong();
+
+    /** Number of requests shed because the queue was full */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Number of requests shed because their deadline had passed */
+    private final AtomicLong expired = new AtomicLong();
+
+    /** Total time in milliseconds requests have waited */
+    private final AtomicLong totalWait = new AtomicLong();
+
+    /** Longest time in milliseconds a request has waited */
+    private final LongAccumulator maxWait =
+            new LongAccumulator(Math::max, 0L);
+
+    /**
+     * Creates a scheduler which runs as many requests at once as it has
+     * threads.
+     * @param concurrency maximum number of requests run at once.
+     * @param maxQueued maximum number of requests waiting to run.
+     * @param deadline maximum time in milliseconds a request may wait
+     * before it is run.
+     */
+    public RenderScheduler(int concurrency, int maxQueued, long deadline) {
+        this(concurrency, maxQueued, deadline, concurrency);
+    }
+
+    /**
+     * Default constructor.
+     * @param concurrency number of threads starting requests.
+     * @param maxQueued maximum number of requests waiting to run.
+     * @param deadline maximum time in milliseconds a request may wait
+     * before it is run.
+     * @param maxInFlight maximum number of requests run at once, including
+     * asynchronous requests which have been started but not completed.
+     */
+    public RenderScheduler(
+            int concurrency, int maxQueued, long deadline, int maxInFlight) {
+        this(concurrency, maxQueued, deadline, maxInFlight, false);
+    }
+
+    /**
+     * Creates a scheduler which, if <code>virtualThreads</code> is set and
+     * the JDK supports them, runs each request on a virtual thread of its
+     * own rather than on a pool of <code>concurrency</code> threads.
+     * Requests run on virtual threads may block on the OMERO server
+     * without tying up a thread of the pool; the number of requests in
+     * flight is still bounded by <code>maxInFlight</code>.
+     * @param concurrency number of threads starting requests if they are
+     * not run on virtual threads.
+     * @param maxQueued maximum number of requests waiting to run.
+     * @param deadline maximum time in milliseconds a request may wait
+     * before it is run.
+     * @param maxInFlight maximum number of requests run at once, including
+     * asynchronous requests which have been started but not completed.
+     * @param virtualThreads whether to run requests on virtual threads.
+     */
+    public RenderScheduler(
+            int concurrency, int maxQueued, long deadline, int maxInFlight,
+            boolean virtualThreads) {
+        this.deadline = deadline;
+        this.maxQueued = maxQueued;
+        this.maxInFlight = maxInFlight;
+        inFlight = new Semaphore(maxInFlight, true);
+        ExecutorService virtualExecutor = null;
+        if (virtualThreads) {
+            virtualExecutor =
+                    VirtualThreads.newThreadPerTaskExecutor("render-");
+            if (virtualExecutor == null) {
+                log.warn("Virtual threads are not supported by this JDK; "
+                        + "running requests on {} platform threads",
+                        concurrency);
+            }
+        }
+        if (virtualExecutor != null) {
+            pool = null;
+            executor = virtualExecutor;
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(
+                    runnable,
+                    "render-scheduler-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        pool = new ThreadPoolExecutor(
+                concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued), threadFactory);
+        executor = pool;
+    }
+
+    /**
+     * Schedules a request.
+     * @param request request to run.
+     * @param shed run instead of the request if the request's deadline
+     * passes, or the scheduler is closed, before it can be run.
+     * @return <code>false</code> if the queue is full, in which case
+     * neither <code>request</code> nor <code>shed</code> will be run.
+     */
+    public boolean schedule(Runnable request, Runnable shed) {
+        return scheduleAsync(() -> {
+            request.run();
+            return CompletableFuture.completedFuture(null);
+        }, shed);
+    }
+
+    /**
+     * Schedules an asynchronous request, which is in flight from when it is
+     * started until the stage it returns completes.
+     * @param request starts the request.
+     * @param shed run instead of the request if the request's deadline
+     * passes, waiting either in the queue or for a request in flight to
+     * complete, or the scheduler is closed, before it can be started.
+     * @return <code>false</code> if the queue is full, in which case
+     * neither <code>request</code> nor <code>shed</code> will be run.
+     */
+    public boolean scheduleAsync(
+            Supplier<? extends CompletionStage<?>> request, Runnable shed) {
+        long queuedAt = System.currentTimeMillis();
+        // Bounded by the pool's queue or, for virtual threads, which are
+        // started immediately and wait for a permit, by the count alone
+        if (queued.incrementAndGet() > maxQueued && pool == null) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            log.debug("Request rejected; {} queued", maxQueued);
+            return false;
+        }
+        try {
+            executor.execute(new ScheduledRequest(request, shed, queuedAt));
+            return true;
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            log.debug("Request rejected; {} queued", queued());
+            return false;
+        }
+    }
+
+    /**
+     * Request waiting for a permit to be started, for at most its deadline.
+     */
+    private final class ScheduledRequest implements Runnable {
+
+        /** Starts the request */
+        private final Supplier<? extends CompletionStage<?>> request;
+
+        /** Run instead of the request if it is not started */
+        private final Runnable shed;
+
+        /** Time in milliseconds the request was scheduled */
+        private final long queuedAt;
+
+        /** Times the wait of the request */
+        private final StageTimer t0 = new StageTimer("RenderScheduler.wait");
+
+        ScheduledRequest(
+                Supplier<? extends CompletionStage<?>> request,
+                Runnable shed, long queuedAt) {
+            this.request = request;
+            this.shed = shed;
+            this.queuedAt = queuedAt;
+        }
+
+        @Override
+        public void run() {
+            boolean acquired;
+            try {
+                long remaining =
+                        deadline - (System.currentTimeMillis() - queuedAt);
+                acquired = remaining > 0
+                        && inFlight.tryAcquire(
+                                remaining, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Closed while waiting for a permit; the request still
+                // has to be responded to
+                queued.decrementAndGet();
+                log.debug("Request shed as the scheduler is closed");
+                shed.run();
+                Thread.currentThread().interrupt();
+                return;
+            }
+            queued.decrementAndGet();
+            t0.stop();
+            long wait = System.currentTimeMillis() - queuedAt;
+            totalWait.addAndGet(wait);
+            maxWait.accumulate(wait);
+            if (!acquired) {
+                expired.incrementAndGet();
+                log.debug("Request expired after {}ms", wait);
+                shed.run();
+                return;
+            }
+            started.incrementAndGet();
+            CompletionStage<?> stage;
+            try {
+                stage = request.get();
+            } catch (Throwable t) {
+                inFlight.release();
+                throw t;
+            }
+            stage.whenComplete((result, t) -> inFlight.release());
+        }
+
+        /**
+         * Sheds the request, which will never be run, as the scheduler has
+         * been closed.
+         */
+        void discard() {
+            queued.decrementAndGet();
+            log.debug("Request shed as the scheduler is closed");
+            shed.run();
+        }
+    }
+
+    /**
+     * @return Number of requests waiting to run.
+     */
+    public int queued() {
+        return queued.get();
+    }
+
+    /**
+     * @return Number of threads starting, or running, requests.
+     */
+    public int active() {
+        return pool == null? inFlight() : pool.getActiveCount();
+    }
+
+    /**
+     * @return Whether requests are run on virtual threads.
+     */
+    public boolean isVirtual() {
+        return pool == null;
+    }
+
+    /**
+     * @return Number of requests in flight.
+     */
+    public int inFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * @return Number of requests run.
+     */
+    public long started() {
+        return started.get();
+    }
+
+    /**
+     * @return Number of requests shed because the queue was full.
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return Number of requests shed because their deadline had passed.
+     */
+    public long expired() {
+        return expired.get();
+    }
+
+    /**
+     * @return Total time in milliseconds requests have waited to run.
+     */
+    public long totalWait() {
+        return totalWait.get();
+    }
+
+    /**
+     * Stops running requests; queued requests are shed.
+     */
+    public void close() {
+        for (Runnable discarded : executor.shutdownNow()) {
+            ((ScheduledRequest) discarded).discard();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long dequeued = started.get() + expired.get();
+        return String.format(
+                "RenderScheduler(virtual=%b, active=%d, inFlight=%d, "
+                + "queued=%d, started=%d, rejected=%d, expired=%d, "
+                + "meanWait=%.1fms, maxWait=%dms)",
+                isVirtual(), active(), inFlight(), queued(), started.get(),
+                rejected.get(), expired.get(),
+                dequeued == 0? 0.0 : (double) totalWait.get() / dequeued,
+                maxWait.get());
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of idle, loaded rendering engines keyed by OMERO session
+ * (the joined client which created them) and pixels set.  An engine is
+ * exclusively owned by a single request while it is borrowed; idle engines
+ * are closed when they have been idle for longer than the idle timeout or
+ * when the pool grows beyond its maximum size, least recently returned
+ * first.
+ */
+public class RenderingEnginePool {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(RenderingEnginePool.class);
+
+    /** Number of borrows which reused an idle rendering engine */
+    private static final LongAdder hits =
+            MetricsRegistry.DEFAULT.cacheLookups("rendering-engine", true);
+
+    /** Number of borrows which created a new rendering engine */
+    private static final LongAdder misses =
+            MetricsRegistry.DEFAULT.cacheLookups("rendering-engine", false);
+
+    /** Maximum number of idle rendering engines */
+    private final int maxIdle;
+
+    /** Time in milliseconds after which an idle rendering engine is closed */
+    private final long idleTimeout;
+
+    /** Idle rendering engines by session and pixels set */
+    private final Map<Key, Deque<PooledRenderingEngine>> idle =
+            new HashMap<Key, Deque<PooledRenderingEngine>>();
+
+    /** All idle rendering engines, least recently returned first */
+    private final LinkedHashSet<PooledRenderingEngine> idleOrder =
+            new LinkedHashSet<PooledRenderingEngine>();
+
+    /** Whether or not the pool has been closed */
+    private boolean closed = false;
+
+    /**
+     * Default constructor.
+     * @param maxIdle Maximum number of idle rendering engines to retain.
+     * @param idleTimeout Time in milliseconds after which an idle rendering
+     * engine is closed.
+     */
+    public RenderingEnginePool(int maxIdle, long idleTimeout) {
+        this.maxIdle = maxIdle;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Borrows a rendering engine for the given session and pixels set.  If
+     * an idle, already loaded engine is available it is returned, otherwise
+     * a new engine is returned whose services are created using the
+     * session's client when first used.  Callers are responsible for looking
+     * up the pixels set and loading the rendering definition of engines
+     * which are not yet {@link PooledRenderingEngine#isLoaded() loaded}.
+     * Every
+     * borrowed engine must be given back with either
+     * {@link #release(PooledRenderingEngine)} or
+     * {@link #invalidate(PooledRenderingEngine)}.
+     * @param client Joined client of the OMERO session.
+     * @param pixelsId Pixels set identifier.
+     * @return See above.
+     */
+    public PooledRenderingEngine borrow(omero.client client, long pixelsId) {
+        Key key = new Key(client, pixelsId);
+        synchronized (this) {
+            Deque<PooledRenderingEngine> engines = idle.get(key);
+            if (engines != null) {
+                PooledRenderingEngine engine = engines.pollLast();
+                if (engines.isEmpty()) {
+                    idle.remove(key);
+                }
+                if (engine != null) {
+                    idleOrder.remove(engine);
+                    log.debug("Reusing {}", engine);
+                    hits.increment();
+                    return engine;
+                }
+            }
+        }
+        log.debug("New rendering services for Pixels:{}", pixelsId);
+        misses.increment();
+        return new PooledRenderingEngine(client, pixelsId);
+    }
+
+    /**
+     * Returns a borrowed rendering engine to the pool, closing the least
+     * recently returned engine if the pool is full.
+     * @param engine Rendering engine to return.
+     */
+    public void release(PooledRenderingEngine engine) {
+        if (!engine.isReusable()) {
+            invalidate(engine);
+            return;
+        }
+        List<PooledRenderingEngine> toClose =
+                new ArrayList<PooledRenderingEngine>();
+        synchronized (this) {
+            if (closed) {
+                toClose.add(engine);
+            } else {
+                engine.setLastReleased(System.currentTimeMillis());
+                idle.computeIfAbsent(
+                    new Key(engine.client, engine.pixelsId),
+                    k -> new ArrayDeque<PooledRenderingEngine>()
+                ).addLast(engine);
+                idleOrder.add(engine);
+                while (idleOrder.size() > maxIdle) {
+                    toClose.add(removeEldest());
+                }
+            }
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Closes a borrowed rendering engine rather than returning it to the
+     * pool; for use when the engine's state is unknown, such as after an
+     * exception.
+     * @param engine Rendering engine to close.
+     */
+    public void invalidate(PooledRenderingEngine engine) {
+        engine.close();
+    }
+
+    /**
+     * Closes all rendering engines which have been idle for longer than the
+     * idle timeout.
+     */
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        List<PooledRenderingEngine> toClose =
+                new ArrayList<PooledRenderingEngine>();
+        synchronized (this) {
+            Iterator<PooledRenderingEngine> i = idleOrder.iterator();
+            while (i.hasNext()) {
+                PooledRenderingEngine engine = i.next();
+                if (engine.getLastReleased() > cutoff) {
+                    break;
+                }
+                i.remove();
+                removeFromIdle(engine);
+                toClose.add(engine);
+            }
+        }
+        if (!toClose.isEmpty()) {
+            log.debug("Evicting {} idle rendering engines", toClose.size());
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Closes all idle rendering engines created by a client; for use before
+     * the client's session is detached from.
+     * @param client Client whose rendering engines are to be closed.
+     */
+    public void invalidateClient(omero.client client) {
+        List<PooledRenderingEngine> toClose =
+                new ArrayList<PooledRenderingEngine>();
+        synchronized (this) {
+            Iterator<PooledRenderingEngine> i = idleOrder.iterator();
+            while (i.hasNext()) {
+                PooledRenderingEngine engine = i.next();
+                if (engine.client == client) {
+                    i.remove();
+                    removeFromIdle(engine);
+                    toClose.add(engine);
+                }
+            }
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * Closes all idle rendering engines and any engines subsequently
+     * returned to the pool.
+     */
+    public void close() {
+        List<PooledRenderingEngine> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<PooledRenderingEngine>(idleOrder);
+            idleOrder.clear();
+            idle.clear();
+        }
+        closeAll(toClose);
+    }
+
+    /**
+     * @return Number of idle rendering engines currently in the pool.
+     */
+    public synchronized int size() {
+        return idleOrder.size();
+    }
+
+    /**
+     * Removes the least recently returned idle rendering engine.
+     * @return See above.
+     */
+    private PooledRenderingEngine removeEldest() {
+        Iterator<PooledRenderingEngine> i = idleOrder.iterator();
+        PooledRenderingEngine engine = i.next();
+        i.remove();
+        removeFromIdle(engine);
+        return engine;
+    }
+
+    /**
+     * Removes an idle rendering engine from the per key index.
+     * @param engine Rendering engine to remove.
+     */
+    private void removeFromIdle(PooledRenderingEngine engine) {
+        Key key = new Key(engine.client, engine.pixelsId);
+        Deque<PooledRenderingEngine> engines = idle.get(key);
+        if (engines != null) {
+            engines.remove(engine);
+            if (engines.isEmpty()) {
+                idle.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Closes rendering engines outside of the pool's lock.
+     * @param engines Rendering engines to close.
+     */
+    private void closeAll(List<PooledRenderingEngine> engines) {
+        for (PooledRenderingEngine engine : engines) {
+            engine.close();
+        }
+    }
+
+    /**
+     * Pool key; joined client of the OMERO session, compared by identity so
+     * that engines are never shared across joins of the same session, and
+     * pixels set identifier.
+     */
+    private static final class Key {
+
+        private final omero.client client;
+
+        private final long pixelsId;
+
+        Key(omero.client client, long pixelsId) {
+            this.client = client;
+            this.pixelsId = pixelsId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return pixelsId == other.pixelsId && client == other.client;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(client)
+                    + Long.hashCode(pixelsId);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.Arrays;
+
+/**
+ * Rendering settings last applied to a pooled rendering engine by a
+ * request.  Settings which have not been applied since the rendering
+ * definition was last loaded are unknown (<code>null</code>) and must be
+ * sent to the engine; settings which match the last applied value need not
+ * be sent again.  Only accessed by the request which has borrowed the
+ * engine.
+ */
+public class RenderingEngineState {
+
+    /** Whether or not each channel is active */
+    private Boolean[] active = new Boolean[0];
+
+    /** Window start and end of each channel */
+    private double[][] windows = new double[0][];
+
+    /** Red, green, blue and alpha components of each channel's color */
+    private int[][] colors = new int[0][];
+
+    /** Rendering model value */
+    private String model;
+
+    /** Resolution level as requested; 0 is full resolution */
+    private Integer resolution;
+
+    /** Compression quality */
+    private Float compressionQuality;
+
+    /**
+     * Forgets all applied settings; for use after the rendering definition
+     * has been (re)loaded.
+     * @param sizeC number of channels of the pixels set.
+     */
+    public void reset(int sizeC) {
+        active = new Boolean[sizeC];
+        windows = new double[sizeC][];
+        colors = new int[sizeC][];
+        model = null;
+        resolution = null;
+        compressionQuality = null;
+    }
+
+    /**
+     * Records whether or not a channel is active.
+     * @param c channel index.
+     * @param value whether or not the channel is active.
+     * @return <code>true</code> if the value differs from the last applied
+     * value and must be sent to the rendering engine.
+     */
+    public boolean setActive(int c, boolean value) {
+        if (Boolean.valueOf(value).equals(active[c])) {
+            return false;
+        }
+        active[c] = value;
+        return true;
+    }
+
+    /**
+     * Records the window of a channel.
+     * @param c channel index.
+     * @param start window start.
+     * @param end window end.
+     * @return <code>true</code> if the value differs from the last applied
+     * value and must be sent to the rendering engine.
+     */
+    public boolean setChannelWindow(int c, double start, double end) {
+        double[] window = new double[] { start, end };
+        if (Arrays.equals(window, windows[c])) {
+            return false;
+        }
+        windows[c] = window;
+        return true;
+    }
+
+    /**
+     * Records the color of a channel.
+     * @param c channel index.
+     * @param rgba red, green, blue and alpha components.
+     * @return <code>true</code> if the value differs from the last applied
+     * value and must be sent to the rendering engine.
+     */
+    public boolean setRGBA(int c, int[] rgba) {
+        if (Arrays.equals(rgba, colors[c])) {
+            return false;
+        }
+        colors[c] = rgba.clone();
+        return true;
+    }
+
+    /**
+     * Records the rendering model.
+     * @param value rendering model value.
+     * @return <code>true</code> if the value differs from the last applied
+     * value and must be sent to the rendering engine.
+     */
+    public boolean setModel(String value) {
+        if (value.equals(model)) {
+            return false;
+        }
+        model = value;
+        return true;
+    }
+
+    /**
+     * @return Whether or not a rendering model has been applied since the
+     * rendering definition was last loaded.
+     */
+    public boolean hasModel() {
+        return model != null;
+    }
+
+    /**
+     * Records the resolution level.
+     * @param value resolution level as requested; 0 is full resolution.
+     * @return <code>true</code> if the value differs from the last applied
+     * value and must be sent to the rendering engine.
+     */
+    public boolean setResolution(int value) {
+        if (Integer.valueOf(value).equals(resolution)) {
+            return false;
+        }
+        resolution = value;
+        return true;
+    }
+
+    /**
+     * Records the compression quality.
+     * @param value compression quality.
+     * @return <code>true</code> if the value differs from the last applied
+     * value and must be sent to the rendering engine.
+     */
+    public boolean setCompressionQuality(float value) {
+        if (Float.valueOf(value).equals(compressionQuality)) {
+            return false;
+        }
+        compressionQuality = value;
+        return true;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import static omero.rtypes.unwrap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import omero.ServerError;
+import omero.api.RenderingEnginePrx;
+import omero.api.ResolutionDescription;
+import omero.model.IObject;
+import omero.model.RenderingModel;
+
+/**
+ * Cache of the rendering metadata which never changes: the rendering
+ * models of the server and the {@link PyramidGeometry} of each Pixels set.
+ * Neither is sensitive, so unlike {@link ImageMetadataCache} entries are
+ * shared by all sessions; they are only ever looked up once the session
+ * has loaded a rendering engine for the Pixels set, which checks its
+ * access.
+ */
+public class RenderingMetadataCache {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(RenderingMetadataCache.class);
+
+    /** Number of lookups which found cached geometry */
+    private static final LongAdder hits =
+            MetricsRegistry.DEFAULT.cacheLookups("pyramid-geometry", true);
+
+    /** Number of lookups which did not find cached geometry */
+    private static final LongAdder misses =
+            MetricsRegistry.DEFAULT.cacheLookups("pyramid-geometry", false);
+
+    /** Pyramid geometry by Pixels Id */
+    private final Cache<Long, PyramidGeometry> geometries;
+
+    /**
+     * Rendering models of the server by value; <code>null</code> until
+     * first retrieved
+     */
+    private volatile Map<String, RenderingModel> renderingModels;
+
+    /**
+     * Default constructor.
+     * @param maximumSize maximum number of Pixels sets whose geometry is
+     * cached
+     */
+    public RenderingMetadataCache(long maximumSize) {
+        geometries = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    /**
+     * Retrieves a rendering model of the server, from the server if the
+     * models have not yet been retrieved.
+     * @param renderingEngine rendering engine to retrieve the models with.
+     * @param value value of the rendering model: "rgb" or "greyscale".
+     * @return Future rendering model, <code>null</code> if the server has
+     * no such rendering model, which fails if the models cannot be
+     * retrieved.
+     */
+    public CompletableFuture<RenderingModel> getRenderingModel(
+            RenderingEnginePrx renderingEngine, String value) {
+        Map<String, RenderingModel> models = renderingModels;
+        if (models != null) {
+            return CompletableFuture.completedFuture(models.get(value));
+        }
+        return IceFutures.call(
+                "RenderingEngine.getAvailableModels",
+                renderingEngine::begin_getAvailableModels,
+                renderingEngine::end_getAvailableModels)
+            .thenApply(available -> {
+                Map<String, RenderingModel> byValue =
+                        new HashMap<String, RenderingModel>();
+                for (IObject model : available) {
+                    RenderingModel renderingModel = (RenderingModel) model;
+                    byValue.put(
+                            (String) unwrap(renderingModel.getValue()),
+                            renderingModel);
+                }
+                byValue = Collections.unmodifiableMap(byValue);
+                log.debug("Rendering models: {}", byValue.keySet());
+                renderingModels = byValue;
+                return byValue.get(value);
+            });
+    }
+
+    /**
+     * Retrieves the geometry of a Pixels set, from the server if it is not
+     * cached.
+     * @param renderingEngine rendering engine loaded for the Pixels set to
+     * retrieve the geometry with.
+     * @param pixelsId Pixels Id.
+     * @return Future geometry which fails if the geometry cannot be
+     * retrieved.
+     */
+    public CompletableFuture<PyramidGeometry> getPyramidGeometry(
+            RenderingEnginePrx renderingEngine, long pixelsId) {
+        PyramidGeometry geometry = geometries.getIfPresent(pixelsId);
+        if (geometry != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(geometry);
+        }
+        misses.increment();
+        // Retrieved concurrently so that a miss costs a single round trip
+        StageTimer t0 = new StageTimer("RenderingEngine.getPyramidGeometry");
+        CompletableFuture<int[]> tileSize = IceFutures.call(
+                "RenderingEngine.getTileSize",
+                renderingEngine::begin_getTileSize,
+                renderingEngine::end_getTileSize);
+        CompletableFuture<Integer> levels = IceFutures.call(
+                "RenderingEngine.getResolutionLevels",
+                renderingEngine::begin_getResolutionLevels,
+                renderingEngine::end_getResolutionLevels);
+        CompletableFuture<List<ResolutionDescription>> descriptions =
+                IceFutures.call(
+                        "RenderingEngine.getResolutionDescriptions",
+                        renderingEngine::begin_getResolutionDescriptions,
+                        renderingEngine::end_getResolutionDescriptions);
+        return CompletableFuture.allOf(tileSize, levels, descriptions)
+            .thenApply(v -> {
+                t0.stop();
+                PyramidGeometry retrieved = new PyramidGeometry(
+                        tileSize.join(), levels.join(), descriptions.join());
+                log.debug("Pixels:{} {}", pixelsId, retrieved);
+                geometries.put(pixelsId, retrieved);
+                return retrieved;
+            });
+    }
+
+    /**
+     * Retrieves the geometry of a Pixels set from the raw pixel data being
+     * rendered in process if it is not cached.
+     * @param source raw pixel data of the Pixels set.
+     * @param pixelsId Pixels Id.
+     * @return See above.
+     * @throws ServerError If the geometry cannot be retrieved.
+     */
+    public PyramidGeometry getPyramidGeometry(
+            PixelSource source, long pixelsId) throws ServerError {
+        PyramidGeometry geometry = geometries.getIfPresent(pixelsId);
+        if (geometry != null) {
+            hits.increment();
+            return geometry;
+        }
+        misses.increment();
+        int levels = source.getResolutionLevels();
+        List<ResolutionDescription> descriptions =
+                new ArrayList<ResolutionDescription>();
+        for (int resolution = 0; resolution < levels; resolution++) {
+            int[] size = source.getSize(resolution);
+            ResolutionDescription description = new ResolutionDescription();
+            description.sizeX = size[0];
+            description.sizeY = size[1];
+            descriptions.add(description);
+        }
+        geometry = new PyramidGeometry(
+                source.getTileSize(), levels, descriptions);
+        log.debug("Pixels:{} {}", pixelsId, geometry);
+        geometries.put(pixelsId, geometry);
+        return geometry;
+    }
+
+    /**
+     * Retrieves the geometry of a Pixels set if it is cached; for uses,
+     * such as prefetching, which can do without it.
+     * @param pixelsId Pixels Id.
+     * @return See above; <code>null</code> if the geometry is not cached.
+     */
+    public PyramidGeometry getCachedPyramidGeometry(long pixelsId) {
+        return geometries.getIfPresent(pixelsId);
+    }
+
+    /**
+     * @return Number of Pixels sets whose geometry is cached.
+     */
+    public long size() {
+        return geometries.estimatedSize();
+    }
+}
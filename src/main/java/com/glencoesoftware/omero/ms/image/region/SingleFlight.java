@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coalesces concurrent identical operations so that only the first caller
+ * for a given key (the leader) performs the operation and all callers
+ * which arrive while it is in flight (the followers) share its outcome.
+ * @param <K> key type
+ * @param <V> result type
+ */
+public class SingleFlight<K, V> {
+
+    /** Operations currently in flight by key */
+    private final ConcurrentHashMap<K, Flight<V>> inFlight =
+            new ConcurrentHashMap<K, Flight<V>>();
+
+    /**
+     * Joins the operation in flight for a key or, if there is none, makes
+     * the caller its leader.  The leader must finish the operation with
+     * either {@link #complete(Object, Object)} or
+     * {@link #fail(Object, Throwable)}.
+     * @param key operation key
+     * @return Future outcome of the operation already in flight or
+     * <code>null</code> if the caller is now the leader.
+     */
+    public CompletableFuture<V> join(K key) {
+        Flight<V> flight = inFlight.putIfAbsent(key, new Flight<V>());
+        if (flight == null) {
+            return null;
+        }
+        flight.joined = true;
+        return flight.future;
+    }
+
+    /**
+     * Whether or not any caller has joined the operation in flight for a
+     * key as a follower.
+     * @param key operation key
+     * @return See above.
+     */
+    public boolean hasFollowers(K key) {
+        Flight<V> flight = inFlight.get(key);
+        return flight != null && flight.joined;
+    }
+
+    /**
+     * Completes the operation led by the caller, sharing its result with
+     * all followers.
+     * @param key operation key
+     * @param value result of the operation
+     */
+    public void complete(K key, V value) {
+        Flight<V> flight = inFlight.remove(key);
+        if (flight != null) {
+            flight.future.complete(value);
+        }
+    }
+
+    /**
+     * Fails the operation led by the caller, sharing the failure with all
+     * followers.
+     * @param key operation key
+     * @param t cause of the failure
+     */
+    public void fail(K key, Throwable t) {
+        Flight<V> flight = inFlight.remove(key);
+        if (flight != null) {
+            flight.future.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * @return Number of operations currently in flight.
+     */
+    public int size() {
+        return inFlight.size();
+    }
+
+    /**
+     * An operation in flight.
+     * @param <V> result type
+     */
+    private static final class Flight<V> {
+
+        /** Outcome of the operation */
+        private final CompletableFuture<V> future =
+                new CompletableFuture<V>();
+
+        /** Whether or not any follower has joined the operation */
+        private volatile boolean joined;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Times one stage of handling a request, such as a call to the OMERO
+ * server, into the stage's histogram of the default
+ * {@link MetricsRegistry}.  Started on construction.
+ */
+public class StageTimer {
+
+    /** Name of the histogram family of all stages */
+    public static final String NAME =
+            MetricsRegistry.PREFIX + "stage_duration_seconds";
+
+    /** Histograms by stage, saving a registry lookup per stage timed */
+    private static final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /** Histogram of the stage being timed */
+    private final LatencyHistogram histogram;
+
+    /** Time at which the stage started, in nanoseconds */
+    private final long start;
+
+    /**
+     * Default constructor.
+     * @param stage name of the stage.
+     */
+    public StageTimer(String stage) {
+        histogram = histograms.computeIfAbsent(
+                stage, k -> MetricsRegistry.DEFAULT.histogram(
+                        NAME, "Duration of request handling stages",
+                        "stage", k));
+        start = System.nanoTime();
+    }
+
+    /**
+     * Stops timing and records the duration of the stage.
+     * @return Duration of the stage in nanoseconds.
+     */
+    public long stop() {
+        long elapsed = System.nanoTime() - start;
+        histogram.record(elapsed);
+        return elapsed;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * Memory bounded cache of rendered image regions keyed by
+ * {@link ImageRegionCtx#cacheKey()}.  Eviction is W-TinyLFU by weight where
+ * the weight of an entry is the size of its rendered bytes and key.  The
+ * cache is not aware of sessions; callers must ensure that the requesting
+ * session has access to the image before returning a cached region.
+ */
+public class TileCache {
+
+    /** Approximate per entry overhead in bytes beyond the key and value */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** Underlying cache */
+    private final Cache<String, byte[]> cache;
+
+    /** Maximum size of the cache in bytes */
+    private final long maximumBytes;
+
+    /**
+     * Default constructor.
+     * @param maximumBytes memory budget of the cache in bytes
+     */
+    public TileCache(long maximumBytes) {
+        this.maximumBytes = maximumBytes;
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maximumBytes)
+                .<String, byte[]>weigher((key, value) ->
+                        ENTRY_OVERHEAD + 2 * key.length() + value.length)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Retrieves a cached image region.
+     * @param key canonical rendering parameters
+     * @return Rendered image region or <code>null</code> if it is not
+     * cached.
+     */
+    public byte[] get(String key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * Whether or not an image region is cached without affecting the
+     * cache's statistics or eviction order.
+     * @param key canonical rendering parameters
+     * @return See above.
+     */
+    public boolean contains(String key) {
+        return cache.asMap().containsKey(key);
+    }
+
+    /**
+     * Caches a rendered image region.
+     * @param key canonical rendering parameters
+     * @param imageRegion rendered image region
+     */
+    public void put(String key, byte[] imageRegion) {
+        cache.put(key, imageRegion);
+    }
+
+    /**
+     * @return Fraction of lookups which have been hits.
+     */
+    public double hitRate() {
+        return cache.stats().hitRate();
+    }
+
+    /**
+     * @return Hit, miss and eviction statistics.
+     */
+    public CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * @return Approximate number of bytes used by cached image regions.
+     */
+    public long bytesUsed() {
+        return cache.policy().eviction()
+                .map(eviction -> eviction.weightedSize().orElse(0L))
+                .orElse(0L);
+    }
+
+    /**
+     * @return Memory budget of the cache in bytes.
+     */
+    public long maximumBytes() {
+        return maximumBytes;
+    }
+
+    /**
+     * @return Approximate number of cached image regions.
+     */
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public String toString() {
+        CacheStats stats = cache.stats();
+        return String.format(
+                "TileCache(entries=%d, bytes=%d/%d, hits=%d, misses=%d, "
+                + "hitRate=%.3f, evictions=%d)",
+                size(), bytesUsed(), maximumBytes, stats.hitCount(),
+                stats.missCount(), stats.hitRate(), stats.evictionCount());
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Speculatively renders the tiles a viewer is likely to request next; the
+ * eight neighbours of each requested tile and the matching tiles one
+ * resolution level up and down, all with the same rendering settings.
+ * Prefetches run on a small pool of low priority threads, most recently
+ * queued first, so that they never hold up foreground requests.  Each
+ * session may only have a limited number of prefetches pending and
+ * prefetches are abandoned once the session's viewer has moved away from
+ * the tile they were queued for.
+ */
+public class TilePrefetcher {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(TilePrefetcher.class);
+
+    /** Renders a prefetched tile */
+    private final Consumer<ImageRegionCtx> render;
+
+    /** Maximum number of pending prefetches per session */
+    private final int maxPerSession;
+
+    /**
+     * Maximum distance, in tiles, between a prefetch and the session's
+     * most recently requested tile at which the prefetch is still run
+     */
+    private final int radius;
+
+    /** Executor running the prefetches */
+    private final ThreadPoolExecutor executor;
+
+    /** Prefetch state by OMERO session key */
+    private final ConcurrentHashMap<String, SessionState> sessions =
+            new ConcurrentHashMap<String, SessionState>();
+
+    /** Prefetch sequence; prefetches with higher sequences run first */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Default constructor.
+     * @param threads number of threads to run prefetches on.
+     * @param maxPerSession maximum number of pending prefetches per
+     * session.
+     * @param radius maximum distance, in tiles, from the session's most
+     * recently requested tile at which a prefetch is still run.
+     * @param render renders a prefetched tile; called on a prefetch
+     * thread.
+     */
+    public TilePrefetcher(
+            int threads, int maxPerSession, int radius,
+            Consumer<ImageRegionCtx> render) {
+        this.maxPerSession = maxPerSession;
+        this.radius = radius;
+        this.render = render;
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(
+                    runnable,
+                    "tile-prefetch-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    /**
+     * Records that a tile has been requested and queues prefetches of its
+     * neighbours within the session's budget.
+     * @param imageRegionCtx context of the requested tile.
+     * @param geometry geometry of the requested tile's Pixels set or
+     * <code>null</code> if it is not known, in which case no prefetches
+     * are queued.
+     */
+    public void prefetch(
+            ImageRegionCtx imageRegionCtx, PyramidGeometry geometry) {
+        if (imageRegionCtx.tile == null
+                || imageRegionCtx.tileWidth == null
+                || imageRegionCtx.tileHeight == null
+                || imageRegionCtx.tileWidth <= 0
+                || imageRegionCtx.tileHeight <= 0) {
+            // Without the tile size the neighbours cannot be determined
+            return;
+        }
+        Position position = new Position(imageRegionCtx);
+        List<ImageRegionCtx> candidates = geometry == null?
+                new ArrayList<ImageRegionCtx>()
+                : neighbours(imageRegionCtx, geometry);
+        int[] accepted = new int[1];
+        sessions.compute(imageRegionCtx.omeroSessionKey, (key, state) -> {
+            if (state == null) {
+                state = new SessionState();
+            }
+            state.position = position;
+            accepted[0] = Math.max(0, Math.min(
+                    candidates.size(), maxPerSession - state.pending));
+            state.pending += accepted[0];
+            return state.pending == 0? null : state;
+        });
+        long first = sequence.addAndGet(accepted[0]);
+        for (int i = 0; i < accepted[0]; i++) {
+            // Candidates are in order of preference
+            executor.execute(new Prefetch(first - i, candidates.get(i)));
+        }
+        if (accepted[0] < candidates.size()) {
+            log.debug("Prefetch budget exhausted; dropped {} of {} tiles",
+                    candidates.size() - accepted[0], candidates.size());
+        }
+    }
+
+    /**
+     * Abandons all queued prefetches and stops the prefetch threads.
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return Number of prefetches queued but not yet started.
+     */
+    public int queued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Determines the tiles to prefetch for a requested tile in order of
+     * preference; the neighbours at the same resolution level, the tile one
+     * level up and the tiles one level down, excluding those outside of
+     * the image.  Tiles of other levels are those covering the requested
+     * tile's region, scaled by the ratio of the sizes of the levels, so
+     * that levels need not halve in size.
+     * @param imageRegionCtx context of the requested tile.
+     * @param geometry geometry of the requested tile's Pixels set.
+     * @return See above.
+     */
+    static List<ImageRegionCtx> neighbours(
+            ImageRegionCtx imageRegionCtx, PyramidGeometry geometry) {
+        List<ImageRegionCtx> neighbours = new ArrayList<ImageRegionCtx>();
+        int tileWidth = imageRegionCtx.tileWidth;
+        int tileHeight = imageRegionCtx.tileHeight;
+        int resolution = imageRegionCtx.resolution == null?
+                0 : imageRegionCtx.resolution;
+        if (resolution < 0 || resolution >= geometry.levels) {
+            return neighbours;
+        }
+        int x = imageRegionCtx.tile.getX();
+        int y = imageRegionCtx.tile.getY();
+        int[] size = geometry.resolutionSize(resolution);
+        int columns = tiles(size[0], tileWidth);
+        int rows = tiles(size[1], tileHeight);
+        if (x >= columns || y >= rows) {
+            return neighbours;
+        }
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                if ((dx != 0 || dy != 0)
+                        && x + dx >= 0 && x + dx < columns
+                        && y + dy >= 0 && y + dy < rows) {
+                    neighbours.add(imageRegionCtx.forTile(
+                            resolution, x + dx, y + dy));
+                }
+            }
+        }
+        // Region of the requested tile, truncated to the level
+        long x0 = (long) x * tileWidth;
+        long y0 = (long) y * tileHeight;
+        long x1 = Math.min(x0 + tileWidth, size[0]);
+        long y1 = Math.min(y0 + tileHeight, size[1]);
+        for (int level : new int[] { resolution + 1, resolution - 1 }) {
+            if (level < 0 || level >= geometry.levels) {
+                continue;
+            }
+            int[] levelSize = geometry.resolutionSize(level);
+            int firstColumn = (int) (x0 * levelSize[0] / size[0] / tileWidth);
+            int firstRow = (int) (y0 * levelSize[1] / size[1] / tileHeight);
+            int lastColumn = Math.min(
+                    (int) ((x1 * levelSize[0] - 1) / size[0] / tileWidth),
+                    tiles(levelSize[0], tileWidth) - 1);
+            int lastRow = Math.min(
+                    (int) ((y1 * levelSize[1] - 1) / size[1] / tileHeight),
+                    tiles(levelSize[1], tileHeight) - 1);
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int column = firstColumn; column <= lastColumn;
+                        column++) {
+                    neighbours.add(imageRegionCtx.forTile(level, column, row));
+                }
+            }
+        }
+        return neighbours;
+    }
+
+    /**
+     * Number of tiles spanning a dimension of a resolution level.
+     * @param size size of the dimension at the resolution level.
+     * @param tileSize size of a tile along the dimension.
+     * @return See above.
+     */
+    private static int tiles(int size, int tileSize) {
+        return (int) (((long) size + tileSize - 1) / tileSize);
+    }
+
+    /**
+     * Releases a session's budget for a finished prefetch.
+     * @param omeroSessionKey OMERO session key.
+     */
+    private void finished(String omeroSessionKey) {
+        sessions.computeIfPresent(omeroSessionKey, (key, state) -> {
+            state.pending--;
+            return state.pending == 0? null : state;
+        });
+    }
+
+    /**
+     * Location of a tile within a pyramid.
+     */
+    static final class Position {
+
+        final long imageId;
+
+        final int z;
+
+        final int t;
+
+        final int resolution;
+
+        final int x;
+
+        final int y;
+
+        Position(ImageRegionCtx imageRegionCtx) {
+            imageId = imageRegionCtx.imageId;
+            z = imageRegionCtx.z;
+            t = imageRegionCtx.t;
+            resolution = imageRegionCtx.resolution == null?
+                    0 : imageRegionCtx.resolution;
+            x = imageRegionCtx.tile.getX();
+            y = imageRegionCtx.tile.getY();
+        }
+
+        /**
+         * Whether or not another tile of the same plane is within a number
+         * of tiles of this one, compared at the coarser of their resolution
+         * levels which must be at most one level apart.
+         * @param other tile to compare to.
+         * @param radius maximum distance in tiles.
+         * @return See above.
+         */
+        boolean isNear(Position other, int radius) {
+            if (imageId != other.imageId || z != other.z || t != other.t
+                    || Math.abs(resolution - other.resolution) > 1) {
+                return false;
+            }
+            int level = Math.max(resolution, other.resolution);
+            int dx = (x >> (level - resolution))
+                    - (other.x >> (level - other.resolution));
+            int dy = (y >> (level - resolution))
+                    - (other.y >> (level - other.resolution));
+            return Math.abs(dx) <= radius && Math.abs(dy) <= radius;
+        }
+    }
+
+    /**
+     * Per session prefetch state; only modified while holding the session's
+     * map entry.
+     */
+    private static final class SessionState {
+
+        /** Most recently requested tile */
+        private volatile Position position;
+
+        /** Number of queued or running prefetches */
+        private int pending;
+    }
+
+    /**
+     * Queued prefetch of a single tile.
+     */
+    private final class Prefetch implements Runnable, Comparable<Prefetch> {
+
+        private final long sequence;
+
+        private final ImageRegionCtx imageRegionCtx;
+
+        Prefetch(long sequence, ImageRegionCtx imageRegionCtx) {
+            this.sequence = sequence;
+            this.imageRegionCtx = imageRegionCtx;
+        }
+
+        @Override
+        public void run() {
+            String omeroSessionKey = imageRegionCtx.omeroSessionKey;
+            try {
+                SessionState state = sessions.get(omeroSessionKey);
+                Position current = state == null? null : state.position;
+                if (current == null || !current.isNear(
+                        new Position(imageRegionCtx), radius)) {
+                    log.debug("Viewer moved; abandoning prefetch of {}",
+                            imageRegionCtx.cacheKey());
+                    return;
+                }
+                render.accept(imageRegionCtx);
+            } catch (Exception e) {
+                log.debug("Exception while prefetching tile", e);
+            } finally {
+                finished(omeroSessionKey);
+            }
+        }
+
+        @Override
+        public int compareTo(Prefetch other) {
+            // Most recently queued first
+            return Long.compare(other.sequence, sequence);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import org.slf4j.LoggerFactory;
+
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpServerResponse;
+
+/**
+ * Writes the tiles of an image region batch, as they are streamed to a
+ * per request event bus address, to the chunked body of the response.
+ * Each tile is framed by its position in the request and its length, both
+ * big endian 32 bit integers; a tile with an empty body has a length of
+ * zero.  The response is ended by the message with an <code>end</code>
+ * header.  Delivery of tiles is paused while the response's write queue
+ * is full so that a slow client does not buffer the whole batch in the
+ * response.
+ */
+public class TileStreamWriter implements Handler<Message<Buffer>> {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(TileStreamWriter.class);
+
+    /** Consumer of the per request address the tiles are streamed to */
+    private final MessageConsumer<Buffer> consumer;
+
+    /** Response the tiles are written to */
+    private final HttpServerResponse response;
+
+    /**
+     * Default constructor.
+     * @param consumer consumer of the address the tiles are streamed to;
+     * it is unregistered once the response has been ended.
+     * @param maxTiles number of tiles requested; the consumer buffers up
+     * to this many tiles while paused.
+     * @param response response the tiles are written to.
+     */
+    public TileStreamWriter(
+            MessageConsumer<Buffer> consumer, int maxTiles,
+            HttpServerResponse response) {
+        this.consumer = consumer;
+        this.response = response;
+        // The end message as well as every tile may be buffered
+        consumer.setMaxBufferedMessages(maxTiles + 1);
+    }
+
+    @Override
+    public void handle(Message<Buffer> message) {
+        if (message.headers().contains("end")) {
+            consumer.unregister();
+            if (!response.closed()) {
+                response.end();
+                log.debug("Response ended");
+            }
+            return;
+        }
+        if (response.closed()) {
+            return;
+        }
+        Buffer tile = message.body();
+        response.write(Buffer.buffer(8)
+                .appendInt(Integer.parseInt(message.headers().get("index")))
+                .appendInt(tile == null? 0 : tile.length()));
+        if (tile != null) {
+            response.write(tile);
+        }
+        if (response.writeQueueFull()) {
+            log.debug("Write queue full; pausing tile stream");
+            consumer.pause();
+            response.drainHandler(v -> consumer.resume());
+        }
+    }
+
+    /**
+     * Resumes delivery of tiles, which are then dropped, once the client
+     * has gone away as the response will never drain.
+     */
+    public void close() {
+        consumer.resume();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates virtual threads on JDKs which support them, JDK 21 and later,
+ * while this microservice continues to be built for, and to run on, Java
+ * 8.  The virtual thread API is therefore looked up reflectively.
+ */
+final class VirtualThreads {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(VirtualThreads.class);
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Creates an executor which runs each task on a new virtual thread.
+     * @param name prefix of the names of the threads, which are numbered.
+     * @return See above or <code>null</code> if the JDK does not support
+     * virtual threads.
+     */
+    static ExecutorService newThreadPerTaskExecutor(String name) {
+        try {
+            Class<?> ofVirtual =
+                    Class.forName("java.lang.Thread$Builder$OfVirtual");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = ofVirtual.getMethod("name", String.class, long.class)
+                    .invoke(builder, name, 0L);
+            ThreadFactory factory = (ThreadFactory)
+                    ofVirtual.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            log.debug("Virtual threads are not supported", e);
+            return null;
+        }
+    }
+}
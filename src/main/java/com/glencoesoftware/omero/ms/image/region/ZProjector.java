@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.LoggerFactory;
+
+import omero.ServerError;
+
+/**
+ * Projects a region of a channel along the Z axis.  The Z sections are
+ * read one after another by the calling thread, as a {@link PixelSource}
+ * is backed by a single stateful raw pixels store and is not thread safe.
+ * Each chunk of Z sections read is reduced on a {@link ForkJoinPool}
+ * while the next is being read and its partial result is combined into
+ * the projection as soon as it is reduced.  Reading waits for the oldest
+ * chunk once as many chunks are being reduced as the pool has threads,
+ * so that memory use does not grow with the number of Z sections.
+ */
+public class ZProjector {
+
+    private static final org.slf4j.Logger log =
+            LoggerFactory.getLogger(ZProjector.class);
+
+    /** Maximum number of Z sections reduced by a single task */
+    static final int SECTIONS_PER_TASK = 4;
+
+    /** Projection algorithms */
+    public enum Algorithm {
+
+        /** Maximum intensity */
+        INTMAX,
+
+        /** Mean intensity */
+        INTMEAN,
+
+        /** Summed intensity */
+        INTSUM
+    }
+
+    /** Pool the reductions run on */
+    private final ForkJoinPool pool;
+
+    /**
+     * Default constructor.
+     * @param parallelism maximum number of Z section chunks reduced at
+     * once
+     */
+    public ZProjector(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * A parsed projection request.
+     */
+    public static final class Projection {
+
+        /** Projection algorithm */
+        public final Algorithm algorithm;
+
+        /** First Z section to project */
+        public final int start;
+
+        /** Last Z section to project, inclusive */
+        public final int end;
+
+        Projection(Algorithm algorithm, int start, int end) {
+            this.algorithm = algorithm;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Parses a projection as specified by the <code>p</code> request
+         * parameter; all Z sections are projected unless a range is given.
+         * @param projection "intmax", "intmean" or "intsum" optionally
+         * followed by the inclusive range of Z sections: "intmax|5:25".
+         * @param sizeZ number of Z sections of the image.
+         * @return See above.
+         * @throws IllegalArgumentException If the projection is invalid.
+         */
+        public static Projection parse(String projection, int sizeZ)
+                throws IllegalArgumentException {
+            String[] projectionSplit = projection.split("\\|", -1);
+            Algorithm algorithm;
+            try {
+                algorithm = Algorithm.valueOf(
+                        projectionSplit[0].toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                        "Unsupported projection: " + projection);
+            }
+            int start = 0;
+            int end = sizeZ - 1;
+            if (projectionSplit.length > 1) {
+                String[] range = projectionSplit[1].split(":", -1);
+                if (range.length != 2) {
+                    throw new IllegalArgumentException(
+                            "Invalid projection range: " + projection);
+                }
+                start = Integer.parseInt(range[0]);
+                end = Integer.parseInt(range[1]);
+            }
+            if (start < 0 || end >= sizeZ || start > end) {
+                throw new IllegalArgumentException(
+                        "Projection range outside of the image: "
+                        + projection);
+            }
+            return new Projection(algorithm, start, end);
+        }
+    }
+
+    /**
+     * Projects a region of a channel.
+     * @param source raw pixel data of the image.
+     * @param projection projection to perform.
+     * @param resolution resolution level; 0 is full resolution.
+     * @param c channel.
+     * @param t timepoint.
+     * @param x offset of the region along the X axis.
+     * @param y offset of the region along the Y axis.
+     * @param width width of the region.
+     * @param height height of the region.
+     * @return Projected pixel values, row by row.
+     * @throws ServerError If the raw pixel data cannot be read.
+     */
+    public double[] project(
+            PixelSource source, Projection projection, int resolution,
+            int c, int t, int x, int y, int width, int height)
+                    throws ServerError {
+        StageTimer t0 = new StageTimer("ZProjector.project");
+        try {
+            // Pixel type is read up front rather than by each task
+            PixelType type = new PixelType(
+                    source.getByteWidth(), source.isSigned(),
+                    source.isFloat());
+            // Chunks being reduced, oldest first; bounded so that only as
+            // many chunks as can be reduced at once are held in memory
+            Deque<ForkJoinTask<double[]>> chunks =
+                    new ArrayDeque<ForkJoinTask<double[]>>();
+            int maxChunks = pool.getParallelism();
+            double[] values = null;
+            for (int start = projection.start; start <= projection.end;
+                    start += SECTIONS_PER_TASK) {
+                while (!chunks.isEmpty() && (chunks.peekFirst().isDone()
+                        || chunks.size() >= maxChunks)) {
+                    values = fold(
+                            projection.algorithm, values,
+                            chunks.removeFirst().join());
+                }
+                int end = Math.min(
+                        start + SECTIONS_PER_TASK - 1, projection.end);
+                byte[][] sections = new byte[end - start + 1][];
+                for (int z = start; z <= end; z++) {
+                    log.debug("Reading Z section {} of channel {}", z, c);
+                    sections[z - start] = source.getRegion(
+                            resolution, z, c, t, x, y, width, height);
+                }
+                chunks.addLast(pool.submit(new Reduction(
+                        type, projection.algorithm, sections,
+                        width * height)));
+            }
+            while (!chunks.isEmpty()) {
+                values = fold(
+                        projection.algorithm, values,
+                        chunks.removeFirst().join());
+            }
+            if (projection.algorithm == Algorithm.INTMEAN) {
+                int count = projection.end - projection.start + 1;
+                for (int i = 0; i < values.length; i++) {
+                    values[i] /= count;
+                }
+            }
+            return values;
+        } catch (RuntimeException e) {
+            // Exceptions thrown by tasks on other threads may be rethrown
+            // wrapped; unwrap the server's error if there is one.
+            for (Throwable cause = e; cause != null;
+                    cause = cause.getCause()) {
+                if (cause instanceof ServerError) {
+                    throw (ServerError) cause;
+                }
+            }
+            throw e;
+        } finally {
+            t0.stop();
+        }
+    }
+
+    /**
+     * Shuts down the pool the reductions run on.
+     */
+    public void close() {
+        pool.shutdown();
+    }
+
+    /**
+     * Accumulates a Z section into a partial projection.
+     * @param algorithm projection algorithm.
+     * @param pixels big endian raw pixel data of the Z section.
+     * @param byteWidth number of bytes per pixel.
+     * @param signed whether or not pixel values are signed.
+     * @param floatingPoint whether or not pixel values are floating point.
+     * @param accumulator partial projection to accumulate into.
+     * @param first whether or not this is the first Z section accumulated.
+     */
+    static void accumulate(
+            Algorithm algorithm, byte[] pixels, int byteWidth,
+            boolean signed, boolean floatingPoint, double[] accumulator,
+            boolean first) {
+        boolean max = algorithm == Algorithm.INTMAX;
+        ByteBuffer buffer = ByteBuffer.wrap(pixels);
+        for (int i = 0; i < accumulator.length; i++) {
+            double value;
+            if (floatingPoint) {
+                value = byteWidth == 4?
+                        buffer.getFloat(i * 4) : buffer.getDouble(i * 8);
+            } else if (byteWidth == 1) {
+                value = signed? pixels[i] : pixels[i] & 0xFF;
+            } else if (byteWidth == 2) {
+                short v = buffer.getShort(i * 2);
+                value = signed? v : v & 0xFFFF;
+            } else {
+                int v = buffer.getInt(i * 4);
+                value = signed? v : v & 0xFFFFFFFFL;
+            }
+            if (first) {
+                accumulator[i] = value;
+            } else if (max) {
+                accumulator[i] = Math.max(accumulator[i], value);
+            } else {
+                accumulator[i] += value;
+            }
+        }
+    }
+
+    /**
+     * Folds the partial projection of a chunk into the projection so far.
+     * @param algorithm projection algorithm.
+     * @param values projection so far, <code>null</code> if no chunk has
+     * been folded yet.
+     * @param partial partial projection of a chunk.
+     * @return Projection so far including <code>partial</code>.
+     */
+    private static double[] fold(
+            Algorithm algorithm, double[] values, double[] partial) {
+        if (values == null) {
+            return partial;
+        }
+        combine(algorithm, values, partial);
+        return values;
+    }
+
+    /**
+     * Combines two partial projections.
+     * @param algorithm projection algorithm.
+     * @param a partial projection to combine into.
+     * @param b partial projection.
+     */
+    static void combine(Algorithm algorithm, double[] a, double[] b) {
+        if (algorithm == Algorithm.INTMAX) {
+            for (int i = 0; i < a.length; i++) {
+                a[i] = Math.max(a[i], b[i]);
+            }
+        } else {
+            for (int i = 0; i < a.length; i++) {
+                a[i] += b[i];
+            }
+        }
+    }
+
+    /**
+     * Reduces a chunk of Z sections which have already been read.  Mean
+     * projections are summed; the caller divides by the number of Z
+     * sections.
+     */
+    private static final class Reduction extends RecursiveTask<double[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PixelType type;
+
+        private final Algorithm algorithm;
+
+        /**
+         * Raw pixel data of each Z section of the chunk; released once
+         * reduced
+         */
+        private byte[][] sections;
+
+        /** Number of pixels in the region */
+        private final int size;
+
+        Reduction(
+                PixelType type, Algorithm algorithm, byte[][] sections,
+                int size) {
+            this.type = type;
+            this.algorithm = algorithm;
+            this.sections = sections;
+            this.size = size;
+        }
+
+        @Override
+        protected double[] compute() {
+            double[] accumulator = new double[size];
+            for (int i = 0; i < sections.length; i++) {
+                accumulate(
+                        algorithm, sections[i], type.byteWidth,
+                        type.signed, type.floatingPoint, accumulator,
+                        i == 0);
+            }
+            sections = null;
+            return accumulator;
+        }
+    }
+
+    /**
+     * Type of the raw pixel data.
+     */
+    private static final class PixelType {
+
+        private final int byteWidth;
+
+        private final boolean signed;
+
+        private final boolean floatingPoint;
+
+        PixelType(int byteWidth, boolean signed, boolean floatingPoint) {
+            this.byteWidth = byteWidth;
+            this.signed = signed;
+            this.floatingPoint = floatingPoint;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ChannelSettingsTest {
+
+    @Test
+    public void testParse() {
+        ChannelSettings settings = ChannelSettings.parse(
+                "-1|0:65535$0000FF,2|1755.5:51199$0f0,3,4$FF000080");
+        Assert.assertEquals(settings.size(), 4);
+        Assert.assertEquals(settings.channel(0), -1);
+        Assert.assertEquals(settings.channel(1), 2);
+        Assert.assertEquals(settings.windowStart(0), 0f);
+        Assert.assertEquals(settings.windowEnd(0), 65535f);
+        Assert.assertEquals(settings.windowStart(1), 1755.5f);
+        Assert.assertEquals(
+                settings.rgba(1), new int[] {0x00, 0xFF, 0x00, 0xFF});
+        Assert.assertFalse(settings.hasWindow(2));
+        Assert.assertNull(settings.rgba(2));
+        Assert.assertFalse(settings.hasWindow(3));
+        Assert.assertEquals(
+                settings.rgba(3), new int[] {0xFF, 0x00, 0x00, 0x80});
+        Assert.assertEquals(settings.indexOf(3), 2);
+        Assert.assertEquals(settings.indexOf(1), -1);
+    }
+
+    @Test
+    public void testParseCached() {
+        String spec = "1|0:255$FF0000,2|0:255$00FF00";
+        Assert.assertSame(
+                ChannelSettings.parse(spec),
+                ChannelSettings.parse(new String(spec)));
+        Assert.assertNull(ChannelSettings.parse(null));
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void testParseMalformed() {
+        ChannelSettings.parse("1|0:255$FF0000,x|0:255");
+    }
+
+    @Test
+    public void testCacheKey() {
+        Assert.assertEquals(
+                ChannelSettings.parse("-1|0:1$FF0000,3|0:2$fff,2$00ff00")
+                        .cacheKey(),
+                "2|$00FF00FF,3|0.0:2.0$FFFFFFFF,");
+    }
+
+    @Test
+    public void testSplitHTMLColor() {
+        Assert.assertEquals(
+                ChannelSettings.splitHTMLColor("abc"),
+                new int[] {0xAA, 0xBB, 0xCC, 0xFF});
+        Assert.assertEquals(
+                ChannelSettings.splitHTMLColor("abcd"),
+                new int[] {0xAA, 0xBB, 0xCC, 0xDD});
+        Assert.assertEquals(
+                ChannelSettings.splitHTMLColor("abbccd"),
+                new int[] {0xAB, 0xBC, 0xCD, 0xFF});
+        Assert.assertEquals(
+                ChannelSettings.splitHTMLColor("abbccdde"),
+                new int[] {0xAB, 0xBC, 0xCD, 0xDE});
+        Assert.assertNull(ChannelSettings.splitHTMLColor("abbcc"));
+        Assert.assertNull(ChannelSettings.splitHTMLColor("gggggg"));
+    }
+
+    @Test
+    public void testParseInt() {
+        Assert.assertEquals(ChannelSettings.parseInt("a,-12,b", 2, 5), -12);
+        Assert.assertEquals(
+                ChannelSettings.parseInt("2147483647", 0, 10),
+                Integer.MAX_VALUE);
+        Assert.assertEquals(
+                ChannelSettings.parseInt("-2147483648", 0, 11),
+                Integer.MIN_VALUE);
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void testParseIntOverflow() {
+        ChannelSettings.parseInt("2147483648", 0, 10);
+    }
+
+    @Test(expectedExceptions = NumberFormatException.class)
+    public void testParseIntEmpty() {
+        ChannelSettings.parseInt("1,,2", 2, 2);
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
+
+public class ClusterRouterTest {
+
+    private static final String ADDRESS = "omero.render_image_region";
+
+    private static final long HEARTBEAT_INTERVAL = 50;
+
+    private Vertx vertx;
+
+    private List<Node> nodes;
+
+    /**
+     * Node of a cluster sharing the event bus of a single Vert.x instance
+     * which replies to requests with its id, followed by
+     * <code>:inline</code> if the request carries an <code>inline</code>
+     * header.
+     */
+    private static final class Node extends AbstractVerticle {
+
+        private final String nodeId;
+
+        private final long nodeTimeout;
+
+        /** Whether or not to leave the cluster cleanly when undeployed */
+        private final boolean leave;
+
+        private ClusterRouter router;
+
+        private String deploymentId;
+
+        Node(String nodeId, long nodeTimeout, boolean leave) {
+            this.nodeId = nodeId;
+            this.nodeTimeout = nodeTimeout;
+            this.leave = leave;
+        }
+
+        @Override
+        public void start(Future<Void> future) {
+            router = new ClusterRouter(
+                    vertx, nodeId, 16, HEARTBEAT_INTERVAL, nodeTimeout);
+            vertx.eventBus().<Object>consumer(
+                    ClusterRouter.address(ADDRESS, nodeId), message -> {
+                        message.reply(nodeId + (message.headers()
+                                .contains("inline")? ":inline" : ""));
+                    }).completionHandler(result -> {
+                        router.start();
+                        future.complete();
+                    });
+        }
+
+        @Override
+        public void stop() {
+            // Otherwise the node leaves as if it had crashed; its timers
+            // and consumers are removed with the deployment
+            if (leave) {
+                router.stop();
+            }
+        }
+    }
+
+    @BeforeMethod
+    public void setUp() {
+        vertx = Vertx.vertx();
+        nodes = new ArrayList<Node>();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        vertx.close();
+    }
+
+    /**
+     * Deploys three nodes and waits until each of them knows the others.
+     */
+    private void deploy(long nodeTimeout, boolean leave) throws Exception {
+        for (String nodeId : new String[] { "a", "b", "c" }) {
+            Node node = new Node(nodeId, nodeTimeout, leave);
+            CompletableFuture<String> deployed =
+                    new CompletableFuture<String>();
+            vertx.deployVerticle(node, result -> {
+                if (result.succeeded()) {
+                    deployed.complete(result.result());
+                } else {
+                    deployed.completeExceptionally(result.cause());
+                }
+            });
+            node.deploymentId = deployed.get(10, TimeUnit.SECONDS);
+            nodes.add(node);
+        }
+        await(() -> nodes.stream().allMatch(n -> n.router.size() == 3));
+    }
+
+    private void undeploy(Node node) throws Exception {
+        CompletableFuture<Void> undeployed = new CompletableFuture<Void>();
+        vertx.undeploy(node.deploymentId, result -> undeployed.complete(null));
+        undeployed.get(10, TimeUnit.SECONDS);
+    }
+
+    private static void await(BooleanSupplier condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                Assert.fail("Timed out");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return Id of an image owned by <code>owner</code> according to
+     * <code>router</code>.
+     */
+    private static long imageOwnedBy(ClusterRouter router, String owner) {
+        for (long imageId = 1; ; imageId++) {
+            if (router.owner(imageId).equals(owner)) {
+                return imageId;
+            }
+        }
+    }
+
+    private static String send(ClusterRouter router, long imageId)
+            throws Exception {
+        CompletableFuture<String> reply = new CompletableFuture<String>();
+        router.<String>send(
+                ADDRESS, imageId, "request", new DeliveryOptions(),
+                result -> {
+                    if (result.succeeded()) {
+                        reply.complete(result.result().body());
+                    } else {
+                        reply.completeExceptionally(result.cause());
+                    }
+                });
+        return reply.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testRoutesToOwner() throws Exception {
+        deploy(60000, true);
+        ClusterRouter router = nodes.get(0).router;
+        Assert.assertEquals(send(router, imageOwnedBy(router, "a")), "a");
+        Assert.assertEquals(
+                send(router, imageOwnedBy(router, "b")), "b:inline");
+        Assert.assertEquals(
+                send(router, imageOwnedBy(router, "c")), "c:inline");
+        // Every node agrees on the owner of an image
+        for (long imageId = 1; imageId < 100; imageId++) {
+            for (Node node : nodes) {
+                Assert.assertEquals(
+                        node.router.owner(imageId), router.owner(imageId));
+            }
+        }
+    }
+
+    @Test
+    public void testLeave() throws Exception {
+        deploy(60000, true);
+        ClusterRouter router = nodes.get(0).router;
+        long imageId = imageOwnedBy(router, "b");
+        undeploy(nodes.get(1));
+        await(() -> router.size() == 2 && nodes.get(2).router.size() == 2);
+        Assert.assertNotEquals(router.owner(imageId), "b");
+        Assert.assertNotEquals(send(router, imageId), "b:inline");
+    }
+
+    @Test
+    public void testHeartbeatExpiry() throws Exception {
+        deploy(HEARTBEAT_INTERVAL * 4, false);
+        ClusterRouter router = nodes.get(0).router;
+        long imageId = imageOwnedBy(router, "b");
+        undeploy(nodes.get(1));
+        // No requests are sent; the node is removed once it times out
+        await(() -> router.size() == 2 && nodes.get(2).router.size() == 2);
+        Assert.assertNotEquals(router.owner(imageId), "b");
+    }
+
+    @Test
+    public void testNoHandlersRendersLocally() throws Exception {
+        // Long enough a timeout for the node not to expire first
+        deploy(60000, false);
+        ClusterRouter router = nodes.get(0).router;
+        long imageId = imageOwnedBy(router, "b");
+        undeploy(nodes.get(1));
+        Assert.assertEquals(router.size(), 3);
+        // The request finds no handler on the owner and is re-sent to
+        // this node, without the inline header
+        Assert.assertEquals(send(router, imageId), "a");
+        Assert.assertEquals(router.size(), 2);
+        Assert.assertNotEquals(router.owner(imageId), "b");
+        Assert.assertEquals(nodes.get(2).router.size(), 3);
+    }
+
+    @Test
+    public void testOtherFailuresKeepNode() throws Exception {
+        deploy(60000, true);
+        ClusterRouter router = nodes.get(0).router;
+        Assert.assertFalse(router.failed(
+                "b", new ReplyException(ReplyFailure.TIMEOUT)));
+        Assert.assertFalse(router.failed(
+                "b", new ReplyException(ReplyFailure.RECIPIENT_FAILURE)));
+        Assert.assertFalse(router.failed(
+                "a", new ReplyException(ReplyFailure.NO_HANDLERS)));
+        Assert.assertEquals(router.size(), 3);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ConsistentHashRingTest {
+
+    private static final int KEYS = 10000;
+
+    private ConsistentHashRing ring(String... nodes) {
+        ConsistentHashRing ring = new ConsistentHashRing(128);
+        for (String node : nodes) {
+            Assert.assertTrue(ring.add(node));
+        }
+        return ring;
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertNull(new ConsistentHashRing(128).owner(1L));
+    }
+
+    @Test
+    public void testSingleNode() {
+        ConsistentHashRing ring = ring("a");
+        Assert.assertFalse(ring.add("a"));
+        for (long key = 0; key < 100; key++) {
+            Assert.assertEquals(ring.owner(key), "a");
+        }
+    }
+
+    @Test
+    public void testOrderIndependent() {
+        ConsistentHashRing first = ring("a", "b", "c");
+        ConsistentHashRing second = ring("c", "a", "b");
+        for (long key = 0; key < KEYS; key++) {
+            Assert.assertEquals(first.owner(key), second.owner(key));
+        }
+    }
+
+    @Test
+    public void testBalanced() {
+        ConsistentHashRing ring = ring("a", "b", "c", "d");
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (long key = 0; key < KEYS; key++) {
+            counts.merge(ring.owner(key), 1, Integer::sum);
+        }
+        Assert.assertEquals(counts.size(), 4);
+        for (int count : counts.values()) {
+            Assert.assertTrue(count > KEYS / 4 * 0.7, counts.toString());
+            Assert.assertTrue(count < KEYS / 4 * 1.3, counts.toString());
+        }
+    }
+
+    @Test
+    public void testRemoveMovesOnlyRemovedKeys() {
+        ConsistentHashRing ring = ring("a", "b", "c");
+        String[] owners = new String[KEYS];
+        for (int key = 0; key < KEYS; key++) {
+            owners[key] = ring.owner(key);
+        }
+        Assert.assertTrue(ring.remove("b"));
+        Assert.assertFalse(ring.remove("b"));
+        Assert.assertEquals(ring.nodes().toString(), "[a, c]");
+        for (int key = 0; key < KEYS; key++) {
+            if (owners[key].equals("b")) {
+                Assert.assertNotEquals(ring.owner(key), "b");
+            } else {
+                Assert.assertEquals(ring.owner(key), owners[key]);
+            }
+        }
+        // Rejoining restores the original assignment
+        ring.add("b");
+        for (int key = 0; key < KEYS; key++) {
+            Assert.assertEquals(ring.owner(key), owners[key]);
+        }
+    }
+}
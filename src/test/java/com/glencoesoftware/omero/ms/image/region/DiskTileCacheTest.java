@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class DiskTileCacheTest {
+
+    private Path directory;
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("disk-tile-cache");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder())
+                .forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private byte[] region(int length, int value) {
+        byte[] region = new byte[length];
+        Arrays.fill(region, (byte) value);
+        return region;
+    }
+
+    @Test
+    public void testPutGet() throws IOException {
+        DiskTileCache cache = new DiskTileCache(directory, 1 << 20, 1 << 16);
+        Assert.assertNull(cache.get("a"));
+        cache.put("a", region(100, 1));
+        cache.put("b", region(200, 2));
+        DiskTileCache.Location location = cache.get("b");
+        Assert.assertNotNull(location);
+        Assert.assertEquals(location.length, 200);
+        Assert.assertEquals(cache.read(location), region(200, 2));
+        Assert.assertEquals(cache.read(cache.get("a")), region(100, 1));
+        cache.close();
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        DiskTileCache cache = new DiskTileCache(directory, 1 << 20, 1 << 10);
+        for (int i = 0; i < 20; i++) {
+            cache.put("key" + i, region(100, i));
+        }
+        cache.close();
+
+        cache = new DiskTileCache(directory, 1 << 20, 1 << 10);
+        Assert.assertEquals(cache.size(), 20);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(
+                    cache.read(cache.get("key" + i)), region(100, i));
+        }
+        cache.close();
+    }
+
+    @Test
+    public void testRecoveryTruncatesPartialRecord() throws IOException {
+        DiskTileCache cache = new DiskTileCache(directory, 1 << 20, 1 << 20);
+        cache.put("a", region(100, 1));
+        cache.put("b", region(100, 2));
+        String path = cache.get("b").getPath();
+        cache.close();
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+
+        cache = new DiskTileCache(directory, 1 << 20, 1 << 20);
+        Assert.assertEquals(cache.size(), 1);
+        Assert.assertNull(cache.get("b"));
+        cache.put("b", region(100, 3));
+        Assert.assertEquals(cache.read(cache.get("a")), region(100, 1));
+        Assert.assertEquals(cache.read(cache.get("b")), region(100, 3));
+        cache.close();
+    }
+
+    @Test
+    public void testEvictsOldestSegment() throws IOException {
+        DiskTileCache cache = new DiskTileCache(directory, 2048, 512);
+        for (int i = 0; i < 40; i++) {
+            cache.put("key" + i, region(100, i));
+        }
+        Assert.assertTrue(cache.bytesUsed() <= 2048);
+        Assert.assertNull(cache.get("key0"));
+        Assert.assertEquals(
+                cache.read(cache.get("key39")), region(100, 39));
+        cache.close();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class ImageEncoderTest {
+
+    private static final int WIDTH = 37;
+
+    private static final int HEIGHT = 11;
+
+    private int[] pixels() {
+        Random random = new Random(42);
+        int[] rgb = new int[WIDTH * HEIGHT];
+        for (int i = 0; i < rgb.length; i++) {
+            // Mix of noise and smooth gradients to exercise every filter
+            rgb[i] = i % 3 == 0? random.nextInt() : i * 0x010203;
+            rgb[i] &= 0xFFFFFF;
+        }
+        return rgb;
+    }
+
+    private BufferedImage decode(byte[] encoded) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(encoded));
+    }
+
+    @Test
+    public void testJpeg() throws Exception {
+        ImageEncoder encoder = new ImageEncoder(
+                new PngEncoder(1, PngEncoder.Filter.SUB));
+        BufferedImage decoded = decode(encoder.encode(
+                ImageEncoder.JPEG, pixels(), WIDTH, HEIGHT, 0.9f));
+        Assert.assertEquals(decoded.getWidth(), WIDTH);
+        Assert.assertEquals(decoded.getHeight(), HEIGHT);
+    }
+
+    @Test
+    public void testPngIsLossless() throws Exception {
+        int[] rgb = pixels();
+        for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+            for (int level : new int[] { 0, 1, 9 }) {
+                ImageEncoder encoder =
+                        new ImageEncoder(new PngEncoder(level, filter));
+                BufferedImage decoded = decode(encoder.encode(
+                        ImageEncoder.PNG, rgb, WIDTH, HEIGHT, 0.9f));
+                Assert.assertEquals(decoded.getWidth(), WIDTH);
+                Assert.assertEquals(decoded.getHeight(), HEIGHT);
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        Assert.assertEquals(
+                                decoded.getRGB(x, y) & 0xFFFFFF,
+                                rgb[y * WIDTH + x],
+                                filter + " at " + x + "," + y);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRaw() {
+        byte[] raw = ImageEncoder.encodeRaw(
+                new int[] { 0x102030, 0xA0B0C0 }, 2, 1);
+        Assert.assertEquals(raw, new byte[] {
+                0, 0, 0, 2, 0, 0, 0, 1,
+                0x10, 0x20, 0x30, (byte) 0xFF,
+                (byte) 0xA0, (byte) 0xB0, (byte) 0xC0, (byte) 0xFF });
+    }
+
+    @Test
+    public void testContentType() {
+        Assert.assertEquals(
+                ImageEncoder.getContentType(ImageEncoder.JPEG), "image/jpeg");
+        Assert.assertEquals(
+                ImageEncoder.getContentType(ImageEncoder.PNG), "image/png");
+        Assert.assertEquals(
+                ImageEncoder.getContentType(ImageEncoder.RAW),
+                "application/octet-stream");
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+
+public class ImageRegionCtxCodecTest {
+
+    private final ImageRegionCtxCodec codec = new ImageRegionCtxCodec();
+
+    private ImageRegionCtx roundTrip(ImageRegionCtx ctx) {
+        // Messages on the wire are preceded by other data
+        Buffer buffer = Buffer.buffer().appendString("header");
+        codec.encodeToWire(buffer, ctx);
+        return codec.decodeFromWire(6, buffer);
+    }
+
+    private MultiMap params() {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "123");
+        params.add("z", "1");
+        params.add("t", "2");
+        params.add("c", "-1|0:65535$0000FF,2|1755:51199$00ff00,3");
+        params.add("m", "c");
+        return params;
+    }
+
+    @Test
+    public void testTile() {
+        MultiMap params = params();
+        params.add("tile", "1,2,3,512,256");
+        params.add("q", "0.8");
+        params.add("format", "png");
+        params.add("p", "intmax|0:4");
+        ImageRegionCtx ctx = new ImageRegionCtx(params, "session");
+        ImageRegionCtx decoded = roundTrip(ctx);
+        Assert.assertEquals(decoded.omeroSessionKey, "session");
+        Assert.assertEquals(decoded.cacheKey(), ctx.cacheKey());
+        Assert.assertEquals(decoded.tileWidth, Integer.valueOf(512));
+        Assert.assertEquals(decoded.tileHeight, Integer.valueOf(256));
+        Assert.assertNull(decoded.region);
+        Assert.assertEquals(decoded.channels, ctx.channels);
+        Assert.assertEquals(decoded.channels.rgba(0), ctx.channels.rgba(0));
+        Assert.assertEquals(
+                decoded.channels.windowEnd(1), ctx.channels.windowEnd(1));
+        Assert.assertFalse(decoded.channels.hasWindow(2));
+    }
+
+    @Test
+    public void testRegion() {
+        MultiMap params = params();
+        params.add("region", "1,2,3,4");
+        params.add("ia", "1");
+        ImageRegionCtx ctx = new ImageRegionCtx(params, null);
+        ImageRegionCtx decoded = roundTrip(ctx);
+        Assert.assertNull(decoded.omeroSessionKey);
+        Assert.assertNull(decoded.tile);
+        Assert.assertNull(decoded.resolution);
+        Assert.assertNull(decoded.compressionQuality);
+        Assert.assertEquals(decoded.region.getWidth(), 3);
+        Assert.assertEquals(decoded.cacheKey(), ctx.cacheKey());
+    }
+
+    @Test
+    public void testNoChannels() {
+        MultiMap params = params();
+        params.remove("c");
+        ImageRegionCtx ctx = new ImageRegionCtx(params, "session");
+        ImageRegionCtx decoded = roundTrip(ctx);
+        Assert.assertNull(decoded.channels);
+        Assert.assertEquals(decoded.cacheKey(), ctx.cacheKey());
+    }
+
+    @Test
+    public void testTransformPassesByReference() {
+        ImageRegionCtx ctx = new ImageRegionCtx(params(), "session");
+        Assert.assertSame(codec.transform(ctx), ctx);
+    }
+}
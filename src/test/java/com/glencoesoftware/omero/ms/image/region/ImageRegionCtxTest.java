@@ -91,23 +91,24 @@ public class ImageRegionCtxTest {
     }
 
     private void checkChannelInfo(ImageRegionCtx imageCtx) {
-        Assert.assertEquals(imageCtx.colors.size(), 3);
-        Assert.assertEquals(imageCtx.windows.size(), 3);
         Assert.assertEquals(imageCtx.channels.size(), 3);
-        Assert.assertEquals(imageCtx.colors.get(0), color0);
-        Assert.assertEquals(imageCtx.colors.get(1), color1);
-        Assert.assertEquals(imageCtx.colors.get(2), color2);
-
-        Assert.assertEquals((int) imageCtx.channels.get(0), channel0);
-        Assert.assertEquals((int) imageCtx.channels.get(1), channel1);
-        Assert.assertEquals((int) imageCtx.channels.get(2), channel2);
-
-        Assert.assertEquals(imageCtx.windows.get(0)[0], window0[0]);
-        Assert.assertEquals(imageCtx.windows.get(0)[1], window0[1]);
-        Assert.assertEquals(imageCtx.windows.get(1)[0], window1[0]);
-        Assert.assertEquals(imageCtx.windows.get(1)[1], window1[1]);
-        Assert.assertEquals(imageCtx.windows.get(2)[0], window2[0]);
-        Assert.assertEquals(imageCtx.windows.get(2)[1], window2[1]);
+        Assert.assertEquals(
+                imageCtx.channels.rgba(0), new int[] {0x00, 0x00, 0xFF, 0xFF});
+        Assert.assertEquals(
+                imageCtx.channels.rgba(1), new int[] {0x00, 0xFF, 0x00, 0xFF});
+        Assert.assertEquals(
+                imageCtx.channels.rgba(2), new int[] {0xFF, 0x00, 0x00, 0xFF});
+
+        Assert.assertEquals(imageCtx.channels.channel(0), channel0);
+        Assert.assertEquals(imageCtx.channels.channel(1), channel1);
+        Assert.assertEquals(imageCtx.channels.channel(2), channel2);
+
+        Assert.assertEquals(imageCtx.channels.windowStart(0), window0[0]);
+        Assert.assertEquals(imageCtx.channels.windowEnd(0), window0[1]);
+        Assert.assertEquals(imageCtx.channels.windowStart(1), window1[0]);
+        Assert.assertEquals(imageCtx.channels.windowEnd(1), window1[1]);
+        Assert.assertEquals(imageCtx.channels.windowStart(2), window2[0]);
+        Assert.assertEquals(imageCtx.channels.windowEnd(2), window2[1]);
     }
 
     @Test
@@ -149,4 +150,53 @@ public class ImageRegionCtxTest {
         checkChannelInfo(imageCtxDecoded);
     }
 
+    @Test
+    public void testCacheKeyIgnoresSession() {
+        ImageRegionCtx a = new ImageRegionCtx(paramsTile, "session-a");
+        ImageRegionCtx b = new ImageRegionCtx(paramsTile, "session-b");
+        Assert.assertEquals(a.cacheKey(), b.cacheKey());
+    }
+
+    @Test
+    public void testCacheKeyCanonicalChannels() {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.addAll(paramsTile);
+        params.set("c", String.format(
+                "%d|%f:%f$%s,%d|%f:%f$%s",
+                channel1, window1[0], window1[1], color1.toLowerCase(),
+                channel0, window0[0], window0[1], color0));
+        ImageRegionCtx a = new ImageRegionCtx(paramsTile, "");
+        ImageRegionCtx b = new ImageRegionCtx(params, "");
+        Assert.assertEquals(a.cacheKey(), b.cacheKey());
+    }
+
+    @Test
+    public void testCacheKeyDistinguishesTiles() {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.addAll(paramsTile);
+        params.set("tile", String.format(
+                "%d,%d,%d,1024,1024", resolution, tileX + 1, tileY));
+        ImageRegionCtx a = new ImageRegionCtx(paramsTile, "");
+        ImageRegionCtx b = new ImageRegionCtx(params, "");
+        Assert.assertNotEquals(a.cacheKey(), b.cacheKey());
+        Assert.assertNotEquals(
+                a.cacheKey(), new ImageRegionCtx(paramsRegion, "").cacheKey());
+    }
+
+    @Test
+    public void testForTile() {
+        ImageRegionCtx a = new ImageRegionCtx(paramsTile, "session");
+        ImageRegionCtx b = a.forTile("1,2,3");
+        Assert.assertEquals(b.omeroSessionKey, "session");
+        Assert.assertEquals((int) b.resolution, 1);
+        Assert.assertEquals(b.tile.getX(), 2);
+        Assert.assertEquals(b.tile.getY(), 3);
+        Assert.assertNull(b.tileWidth);
+        checkChannelInfo(b);
+        Assert.assertEquals(
+                b.cacheKey(),
+                new ImageRegionCtx(paramsTile, "").forTile(1, 2, 3)
+                        .cacheKey());
+    }
+
 }
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.vertx.core.MultiMap;
+import omero.SecurityViolation;
+import omero.ServerError;
+import omero.api.RenderingEnginePrx;
+import omero.api.ResolutionDescription;
+import omero.api.ServiceFactoryPrx;
+
+public class ImageRegionRequestHandlerTest {
+
+    /** Metadata of the same image as retrieved by two users */
+    private final ImageMetadata user1 =
+            new ImageMetadata(1L, 2L, 1024, 1024, 1, 2, 3L, 4L, 0L, 1L);
+
+    private final ImageMetadata user2 =
+            new ImageMetadata(1L, 2L, 1024, 1024, 1, 2, 3L, 4L, 0L, 2L);
+
+    /**
+     * OMERO client whose session creates rendering engines, answered in
+     * process, which record the operations called on them and complete
+     * asynchronous calls immediately.
+     */
+    private static final class RecordingClient extends omero.client {
+
+        /** Operations called on the rendering engines, in order */
+        final List<String> operations =
+                Collections.synchronizedList(new ArrayList<String>());
+
+        /** Failure of rendering, if any */
+        volatile ServerError renderFailure;
+
+        private final ServiceFactoryPrx session;
+
+        RecordingClient() {
+            super("localhost", 4064);
+            session = proxy(ServiceFactoryPrx.class, (name, args) ->
+                    name.equals("createRenderingEngine")?
+                            proxy(RenderingEnginePrx.class, this::render)
+                            : null);
+        }
+
+        @Override
+        public ServiceFactoryPrx getSession() {
+            return session;
+        }
+
+        private Object render(String name, Object[] args)
+                throws ServerError {
+            if (name.startsWith("begin_")) {
+                String operation = name.substring("begin_".length());
+                operations.add(operation);
+                Ice.AsyncResult result = proxy(
+                        Ice.AsyncResult.class, (method, a) ->
+                                method.equals("getOperation")?
+                                        operation : null);
+                ((Ice.Callback) args[args.length - 1]).__completed(result);
+                return result;
+            }
+            switch (name.substring("end_".length())) {
+                case "renderCompressed":
+                    if (renderFailure != null) {
+                        throw renderFailure;
+                    }
+                    return new byte[] { 1 };
+                case "getTileSize":
+                    return new int[] { 512, 512 };
+                case "getResolutionLevels":
+                    return 1;
+                case "getResolutionDescriptions":
+                    ResolutionDescription description =
+                            new ResolutionDescription();
+                    description.sizeX = 1024;
+                    description.sizeY = 1024;
+                    return new ArrayList<ResolutionDescription>(
+                            Arrays.asList(description));
+                case "getAvailableModels":
+                    return new ArrayList<Object>();
+                case "lookupRenderingDef":
+                    return true;
+                default:
+                    return null;
+            }
+        }
+
+        private interface Answer {
+            Object answer(String name, Object[] args) throws ServerError;
+        }
+
+        private static <T> T proxy(Class<T> type, Answer answer) {
+            return type.cast(Proxy.newProxyInstance(
+                    RecordingClient.class.getClassLoader(),
+                    new Class<?>[] { type }, (proxy, method, args) -> {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.getName().equals("equals")?
+                                    proxy == args[0]
+                                    : System.identityHashCode(proxy);
+                        }
+                        Object value = answer.answer(method.getName(), args);
+                        if (value == null
+                                && method.getReturnType() == boolean.class) {
+                            return false;
+                        }
+                        return value;
+                    }));
+        }
+    }
+
+    private static ImageRegionCtx imageRegionCtx(String c, String m) {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "1");
+        params.add("z", "0");
+        params.add("t", "0");
+        params.add("tile", "0,0,0,512,512");
+        params.add("format", "jpeg");
+        if (c != null) {
+            params.add("c", c);
+        }
+        if (m != null) {
+            params.add("m", m);
+        }
+        return new ImageRegionCtx(params, "session");
+    }
+
+    /**
+     * Renders an image region on the server.
+     * @return Operations called on the rendering engine while rendering.
+     */
+    private static List<String> render(
+            RecordingClient client, RenderingEnginePool enginePool,
+            RenderingMetadataCache renderingMetadataCache,
+            ImageRegionCtx imageRegionCtx, ImageMetadata image)
+                    throws Exception {
+        client.operations.clear();
+        Assert.assertNotNull(render(
+                client, enginePool, renderingMetadataCache, imageRegionCtx,
+                image, new TileCache(0)));
+        return new ArrayList<String>(client.operations);
+    }
+
+    /**
+     * Renders an image region on the server.
+     * @return Rendered image region.
+     */
+    private static byte[] render(
+            RecordingClient client, RenderingEnginePool enginePool,
+            RenderingMetadataCache renderingMetadataCache,
+            ImageRegionCtx imageRegionCtx, ImageMetadata image,
+            TileCache tileCache) throws Exception {
+        return IceFutures.await(new ImageRegionRequestHandler(
+                imageRegionCtx, enginePool, null, renderingMetadataCache,
+                tileCache, false, null, null, cacheKey -> false)
+                        .renderImageRegion(
+                                client, image, Runnable::run, Runnable::run));
+    }
+
+    private String cacheKey(String c, String m, ImageMetadata image) {
+        return cacheKey(c, m, image, true);
+    }
+
+    private String cacheKey(
+            String c, String m, ImageMetadata image, boolean localRendering) {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "1");
+        params.add("z", "0");
+        params.add("t", "0");
+        params.add("tile", "0,0,0,512,512");
+        if (c != null) {
+            params.add("c", c);
+        }
+        if (m != null) {
+            params.add("m", m);
+        }
+        return new ImageRegionRequestHandler(
+                new ImageRegionCtx(params, "session"), null, null, null,
+                null, localRendering, null, null, cacheKey -> false)
+                        .getCacheKey(image);
+    }
+
+    @Test
+    public void testCompleteSettingsAreShared() {
+        String c = "1|0:255$FF0000,-2|0:255$00FF00";
+        Assert.assertEquals(
+                cacheKey(c, "c", user1), cacheKey(c, "c", user2));
+    }
+
+    @Test
+    public void testRenderingDefSettingsAreNotShared() {
+        // Each user's rendering definition supplies what is left out
+        Assert.assertNotEquals(
+                cacheKey(null, "c", user1), cacheKey(null, "c", user2));
+        Assert.assertNotEquals(
+                cacheKey("1|0:255$FF0000", null, user1),
+                cacheKey("1|0:255$FF0000", null, user2));
+        Assert.assertNotEquals(
+                cacheKey("1|0:255", "c", user1),
+                cacheKey("1|0:255", "c", user2));
+        Assert.assertNotEquals(
+                cacheKey("1$FF0000", "c", user1),
+                cacheKey("1$FF0000", "c", user2));
+        Assert.assertEquals(
+                cacheKey(null, "c", user1), cacheKey(null, "c", user1));
+    }
+
+    @Test
+    public void testServerRenderedSettingsAreNotShared() {
+        // The server applies the rest of the user's rendering definition
+        String c = "1|0:255$FF0000,-2|0:255$00FF00";
+        Assert.assertNotEquals(
+                cacheKey(c, "c", user1, false),
+                cacheKey(c, "c", user2, false));
+    }
+
+    @Test
+    public void testReusedEngineResetsWindows() throws Exception {
+        RecordingClient client = new RecordingClient();
+        RenderingEnginePool enginePool = new RenderingEnginePool(8, 60000L);
+        RenderingMetadataCache renderingMetadataCache =
+                new RenderingMetadataCache(100);
+        String c = "1|0:255$FF0000,-2|0:255$00FF00";
+        Assert.assertTrue(render(
+                client, enginePool, renderingMetadataCache,
+                imageRegionCtx(c, "c"), user1).contains("load"));
+        // Every setting is specified; the engine is reused as it is
+        Assert.assertFalse(render(
+                client, enginePool, renderingMetadataCache,
+                imageRegionCtx(c, "c"), user1).contains("load"));
+        // The window of the first channel is the rendering definition's
+        Assert.assertTrue(render(
+                client, enginePool, renderingMetadataCache,
+                imageRegionCtx("1$FF0000,-2$00FF00", "c"), user1)
+                        .contains("load"));
+    }
+
+    @Test
+    public void testRenderingDefModel() throws Exception {
+        RecordingClient client = new RecordingClient();
+        RenderingEnginePool enginePool = new RenderingEnginePool(8, 60000L);
+        RenderingMetadataCache renderingMetadataCache =
+                new RenderingMetadataCache(100);
+        String c = "1|0:255$FF0000,-2|0:255$00FF00";
+        List<String> operations = render(
+                client, enginePool, renderingMetadataCache,
+                imageRegionCtx(c, null), user1);
+        Assert.assertFalse(operations.contains("getAvailableModels"));
+        Assert.assertFalse(operations.contains("setModel"));
+        Assert.assertFalse(render(
+                client, enginePool, renderingMetadataCache,
+                imageRegionCtx(c, null), user1).contains("load"));
+        render(client, enginePool, renderingMetadataCache,
+                imageRegionCtx(c, "g"), user1);
+        // The model of the rendering definition is restored
+        Assert.assertTrue(render(
+                client, enginePool, renderingMetadataCache,
+                imageRegionCtx(c, null), user1).contains("load"));
+    }
+
+    @Test
+    public void testServerErrorIsPropagated() throws Exception {
+        RecordingClient client = new RecordingClient();
+        client.renderFailure = new ServerError();
+        try {
+            render(client, new RenderingEnginePool(8, 60000L),
+                    new RenderingMetadataCache(100),
+                    imageRegionCtx("1|0:255$FF0000", "c"), user1,
+                    new TileCache(0));
+            Assert.fail("Server error not propagated");
+        } catch (ServerError e) {
+            Assert.assertSame(e, client.renderFailure);
+        }
+    }
+
+    @Test
+    public void testSecurityViolationIsNotFound() throws Exception {
+        RecordingClient client = new RecordingClient();
+        client.renderFailure = new SecurityViolation();
+        Assert.assertNull(render(
+                client, new RenderingEnginePool(8, 60000L),
+                new RenderingMetadataCache(100),
+                imageRegionCtx("1|0:255$FF0000", "c"), user1,
+                new TileCache(0)));
+    }
+}
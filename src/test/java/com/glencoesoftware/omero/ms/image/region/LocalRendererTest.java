@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.awt.image.BufferedImage;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.vertx.core.MultiMap;
+
+public class LocalRendererTest {
+
+    /**
+     * Single resolution, unsigned 16 bit, 3 x 3 pixel stub where the value
+     * of each pixel is <code>(c + 1) * 100 * (x + 1)</code>.
+     */
+    private final PixelSource source = new PixelSource() {
+
+        @Override
+        public int getResolutionLevels() {
+            return 1;
+        }
+
+        @Override
+        public int[] getSize(int resolution) {
+            return new int[] { 3, 3 };
+        }
+
+        @Override
+        public int[] getTileSize() {
+            return new int[] { 2, 2 };
+        }
+
+        @Override
+        public int getByteWidth() {
+            return 2;
+        }
+
+        @Override
+        public boolean isSigned() {
+            return false;
+        }
+
+        @Override
+        public boolean isFloat() {
+            return false;
+        }
+
+        @Override
+        public byte[] getRegion(
+                int resolution, int z, int c, int t,
+                int x, int y, int width, int height) {
+            byte[] region = new byte[width * height * 2];
+            for (int row = 0; row < height; row++) {
+                for (int column = 0; column < width; column++) {
+                    int value = (c + 1) * 100 * (x + column + 1);
+                    int i = (row * width + column) * 2;
+                    region[i] = (byte) (value >> 8);
+                    region[i + 1] = (byte) value;
+                }
+            }
+            return region;
+        }
+    };
+
+    private ImageRegionCtx ctx(String tile, String c, String m) {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "1");
+        params.add("z", "0");
+        params.add("t", "0");
+        params.add("tile", tile);
+        params.add("c", c);
+        params.add("m", m);
+        return new ImageRegionCtx(params, "");
+    }
+
+    @Test
+    public void testCanRender() {
+        Assert.assertTrue(LocalRenderer.canRender(
+                ctx("0,0,0", "1|0:255$FF0000,-2|0:255$00FF00", "c")));
+        Assert.assertTrue(LocalRenderer.canRender(
+                ctx("0,0,0", "1|0:255$FF0000,-2", "c")));
+        Assert.assertFalse(LocalRenderer.canRender(
+                ctx("0,0,0", "1|0:255$FF0000,2", "c")));
+        Assert.assertFalse(LocalRenderer.canRender(
+                ctx("0,0,0", "1|0:255$FF0000", null)));
+    }
+
+    @Test
+    public void testRgb() throws Exception {
+        BufferedImage image = new LocalRenderer(
+                ctx("0,0,0", "1|0:510$FF0000,2|0:510$00FF00", "c"))
+                .render(source, 2);
+        Assert.assertEquals(image.getWidth(), 2);
+        Assert.assertEquals(image.getHeight(), 2);
+        // Channel 1 is 100 and channel 2 is 200 at x = 0
+        Assert.assertEquals(image.getRGB(0, 0) & 0xFFFFFF, 0x3264 << 8);
+        // Channel 1 is 200 and channel 2 is 400 at x = 1
+        Assert.assertEquals(image.getRGB(1, 1) & 0xFFFFFF, 0x64C8 << 8);
+    }
+
+    @Test
+    public void testGreyscaleRendersFirstActiveChannel() throws Exception {
+        BufferedImage image = new LocalRenderer(
+                ctx("0,0,0", "-1|0:510$FF0000,2|0:510$00FF00", "g"))
+                .render(source, 2);
+        Assert.assertEquals(image.getRGB(0, 0) & 0xFFFFFF, 0x646464);
+    }
+
+    @Test
+    public void testWindowSaturates() throws Exception {
+        BufferedImage image = new LocalRenderer(
+                ctx("0,0,0", "1|150:200$FFFFFF", "c"))
+                .render(source, 1);
+        Assert.assertEquals(image.getRGB(0, 0) & 0xFFFFFF, 0x000000);
+        Assert.assertEquals(image.getRGB(1, 0) & 0xFFFFFF, 0xFFFFFF);
+    }
+
+    @Test
+    public void testLookupTablesAreKeyedByWindow() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            // Rendered alternately with a cached table for each window
+            BufferedImage image = new LocalRenderer(
+                    ctx("0,0,0", "1|0:510$FF0000", "c")).render(source, 1);
+            Assert.assertEquals(image.getRGB(0, 0) & 0xFFFFFF, 0x320000);
+            image = new LocalRenderer(
+                    ctx("0,0,0", "1|0:255$FF0000", "c")).render(source, 1);
+            Assert.assertEquals(image.getRGB(0, 0) & 0xFFFFFF, 0x640000);
+        }
+    }
+
+    @Test
+    public void testEdgeTileIsTruncated() throws Exception {
+        BufferedImage image = new LocalRenderer(
+                ctx("0,1,1", "1|0:510$FF0000", "c"))
+                .render(source, 1);
+        Assert.assertEquals(image.getWidth(), 1);
+        Assert.assertEquals(image.getHeight(), 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTileOutsideImage() throws Exception {
+        new LocalRenderer(ctx("0,2,0", "1|0:510$FF0000", "c"))
+                .render(source, 1);
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        ImageRegionCtx imageRegionCtx = ctx("0,0,0", "1|0:510$FF0000", "c");
+        imageRegionCtx.projection = "intsum|0:1";
+        ZProjector projector = new ZProjector(1);
+        try {
+            BufferedImage image = new LocalRenderer(
+                    imageRegionCtx, projector, 2).render(source, 1);
+            // Channel 1 is 100 at x = 0 in both Z sections
+            Assert.assertEquals(image.getRGB(0, 0) & 0xFFFFFF, 0x640000);
+            Assert.assertEquals(image.getRGB(1, 0) & 0xFFFFFF, 0xC80000);
+        } finally {
+            projector.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testProjectionWithoutProjector() throws Exception {
+        ImageRegionCtx imageRegionCtx = ctx("0,0,0", "1|0:510$FF0000", "c");
+        imageRegionCtx.projection = "intmax";
+        new LocalRenderer(imageRegionCtx).render(source, 1);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class MetricsRegistryTest {
+
+    private List<String> lines(MetricsRegistry metrics) {
+        return Arrays.asList(metrics.scrape().split("\n"));
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(50000L);          // 50us
+        histogram.record(65536L);          // on the first bound
+        histogram.record(65537L);          // just above it
+        histogram.record(3000000L);        // 3ms
+        histogram.record(120000000000L);   // 2 minutes
+        long[] counts = histogram.cumulativeCounts();
+        Assert.assertEquals(counts.length, LatencyHistogram.BOUNDS.length + 1);
+        Assert.assertEquals(LatencyHistogram.BOUNDS[0], 65536L);
+        Assert.assertEquals(LatencyHistogram.BOUNDS[1], 81920L);
+        Assert.assertEquals(counts[0], 2);
+        Assert.assertEquals(counts[1], 3);
+        int bucket = LatencyHistogram.bucket(3000000L);
+        Assert.assertEquals(LatencyHistogram.BOUNDS[bucket], 3145728L);
+        Assert.assertEquals(counts[bucket - 1], 3);
+        Assert.assertEquals(counts[bucket], 4);
+        Assert.assertEquals(counts[counts.length - 2], 4);
+        Assert.assertEquals(counts[counts.length - 1], 5);
+        Assert.assertEquals(histogram.sum(), 120003181073L);
+    }
+
+    @Test
+    public void testHistogramBucketBounds() {
+        long[] bounds = LatencyHistogram.BOUNDS;
+        for (int i = 0; i < bounds.length; i++) {
+            Assert.assertEquals(LatencyHistogram.bucket(bounds[i]), i);
+            Assert.assertEquals(LatencyHistogram.bucket(bounds[i] + 1), i + 1);
+        }
+        for (long nanos = bounds[0] + 1; nanos <= bounds[bounds.length - 1];
+                nanos += nanos / 7 + 1) {
+            long bound = bounds[LatencyHistogram.bucket(nanos)];
+            Assert.assertTrue(bound >= nanos);
+            Assert.assertTrue(bound <= nanos * 1.25, String.valueOf(nanos));
+        }
+    }
+
+    @Test
+    public void testQuantile() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(histogram.quantile(0.5), 0);
+        for (int i = 0; i < 99; i++) {
+            histogram.record(2000000L);
+        }
+        histogram.record(700000000L);
+        Assert.assertEquals(histogram.quantile(0.5), 2097152L);
+        Assert.assertEquals(histogram.quantile(0.99), 2097152L);
+        Assert.assertEquals(histogram.quantile(0.999), 805306368L);
+    }
+
+    @Test
+    public void testCounter() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("requests_total", "Requests", "code", "200")
+            .increment();
+        metrics.counter("requests_total", "Requests", "code", "200")
+            .increment();
+        metrics.counter("requests_total", "Requests", () -> 7L,
+                "code", "404");
+        List<String> lines = lines(metrics);
+        Assert.assertEquals(lines.get(0), "# HELP requests_total Requests");
+        Assert.assertEquals(lines.get(1), "# TYPE requests_total counter");
+        Assert.assertEquals(lines.get(2), "requests_total{code=\"200\"} 2");
+        Assert.assertEquals(lines.get(3), "requests_total{code=\"404\"} 7");
+    }
+
+    @Test
+    public void testGauge() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.gauge("queued", "Queued", () -> 3);
+        metrics.gauge("ratio", "Ratio", () -> 0.25);
+        List<String> lines = lines(metrics);
+        Assert.assertTrue(lines.contains("# TYPE queued gauge"));
+        Assert.assertTrue(lines.contains("queued 3"));
+        Assert.assertTrue(lines.contains("ratio 0.25"));
+    }
+
+    @Test
+    public void testHistogram() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.histogram("duration_seconds", "Duration", "stage", "load")
+            .record(1500000000L);
+        List<String> lines = lines(metrics);
+        Assert.assertTrue(lines.contains("# TYPE duration_seconds histogram"));
+        Assert.assertTrue(lines.contains(
+                "duration_seconds_bucket{stage=\"load\","
+                + "le=\"0.000065536\"} 0"));
+        Assert.assertTrue(lines.contains(
+                "duration_seconds_bucket{stage=\"load\",le=\"1.34217728\"} 0"));
+        Assert.assertTrue(lines.contains(
+                "duration_seconds_bucket{stage=\"load\","
+                + "le=\"1.610612736\"} 1"));
+        Assert.assertTrue(lines.contains(
+                "duration_seconds_bucket{stage=\"load\",le=\"+Inf\"} 1"));
+        Assert.assertTrue(lines.contains(
+                "duration_seconds_sum{stage=\"load\"} 1.5"));
+        Assert.assertTrue(lines.contains(
+                "duration_seconds_count{stage=\"load\"} 1"));
+    }
+
+    @Test
+    public void testLabelEscaping() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("c_total", "C", "l", "a\"b\\c").increment();
+        Assert.assertTrue(lines(metrics).contains(
+                "c_total{l=\"a\\\"b\\\\c\"} 1"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testTypeMismatch() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("m", "M");
+        metrics.histogram("m", "M");
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class OmeroWebSessionCacheTest {
+
+    @Test
+    public void testGet() {
+        OmeroWebSessionCache cache = new OmeroWebSessionCache(10, 60);
+        Assert.assertNull(cache.get("django"));
+        cache.put("django", "omero");
+        Assert.assertEquals(cache.get("django"), "omero");
+        Assert.assertNull(cache.get("other"));
+    }
+
+    @Test
+    public void testPutKeepsCachedKey() {
+        OmeroWebSessionCache cache = new OmeroWebSessionCache(10, 60);
+        cache.put("django", "omero");
+        cache.put("django", "other");
+        Assert.assertEquals(cache.get("django"), "omero");
+    }
+
+    @Test
+    public void testInvalidate() {
+        OmeroWebSessionCache cache = new OmeroWebSessionCache(10, 60);
+        cache.put("django", "omero");
+        cache.invalidate("django");
+        Assert.assertNull(cache.get("django"));
+        cache.put("django", "renewed");
+        Assert.assertEquals(cache.get("django"), "renewed");
+    }
+
+    @Test
+    public void testExpires() {
+        OmeroWebSessionCache cache = new OmeroWebSessionCache(10, 0);
+        cache.put("django", "omero");
+        Assert.assertNull(cache.get("django"));
+    }
+}
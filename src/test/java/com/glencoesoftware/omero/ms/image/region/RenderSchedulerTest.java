@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RenderSchedulerTest {
+
+    private Runnable await(CountDownLatch latch) {
+        return () -> {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+    }
+
+    @Test
+    public void testRuns() throws InterruptedException {
+        RenderScheduler scheduler = new RenderScheduler(2, 4, 10000);
+        CountDownLatch done = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(scheduler.schedule(
+                    done::countDown, () -> Assert.fail("Shed")));
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(scheduler.started(), 3);
+        scheduler.close();
+    }
+
+    @Test
+    public void testRejectsWhenQueueIsFull() throws InterruptedException {
+        RenderScheduler scheduler = new RenderScheduler(1, 2, 10000);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+        Assert.assertTrue(scheduler.schedule(() -> {
+            running.countDown();
+            await(release).run();
+        }, () -> {}));
+        Assert.assertTrue(running.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(scheduler.schedule(() -> {}, () -> {}));
+        Assert.assertTrue(scheduler.schedule(() -> {}, () -> {}));
+        Assert.assertEquals(scheduler.queued(), 2);
+        Assert.assertFalse(scheduler.schedule(() -> {}, () -> {}));
+        Assert.assertEquals(scheduler.rejected(), 1);
+        release.countDown();
+        scheduler.close();
+    }
+
+    @Test
+    public void testShedsExpired() throws InterruptedException {
+        RenderScheduler scheduler = new RenderScheduler(1, 2, 50);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch shed = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        scheduler.schedule(await(release), () -> {});
+        scheduler.schedule(ran::incrementAndGet, shed::countDown);
+        Thread.sleep(100);
+        release.countDown();
+        Assert.assertTrue(shed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(ran.get(), 0);
+        Assert.assertEquals(scheduler.expired(), 1);
+        scheduler.close();
+    }
+
+    @Test
+    public void testBoundsRequestsInFlight() throws InterruptedException {
+        RenderScheduler scheduler = new RenderScheduler(1, 4, 10000, 2);
+        CompletableFuture<Void> first = new CompletableFuture<Void>();
+        CompletableFuture<Void> second = new CompletableFuture<Void>();
+        CountDownLatch third = new CountDownLatch(1);
+        scheduler.scheduleAsync(() -> first, () -> {});
+        scheduler.scheduleAsync(() -> second, () -> {});
+        scheduler.schedule(third::countDown, () -> {});
+        // A single thread has started both asynchronous requests
+        Assert.assertFalse(third.await(100, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(scheduler.inFlight(), 2);
+        Assert.assertEquals(scheduler.started(), 2);
+        first.complete(null);
+        Assert.assertTrue(third.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(scheduler.started(), 3);
+        second.complete(null);
+        scheduler.close();
+    }
+
+    @Test
+    public void testShedsWaitingWhenClosed() throws InterruptedException {
+        RenderScheduler scheduler = new RenderScheduler(2, 4, 10000, 1);
+        CountDownLatch shed = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        scheduler.scheduleAsync(
+                () -> new CompletableFuture<Void>(), () -> {});
+        scheduler.schedule(ran::incrementAndGet, shed::countDown);
+        // The second request is waiting on a thread of its own for the
+        // permit held by the first
+        Thread.sleep(100);
+        Assert.assertEquals(scheduler.inFlight(), 1);
+        scheduler.close();
+        Assert.assertTrue(shed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(ran.get(), 0);
+    }
+
+    @Test
+    public void testShedsExpiredWaitingForPermit()
+            throws InterruptedException {
+        RenderScheduler scheduler = new RenderScheduler(2, 4, 100, 1);
+        CompletableFuture<Void> first = new CompletableFuture<Void>();
+        CountDownLatch shed = new CountDownLatch(1);
+        AtomicInteger ran = new AtomicInteger();
+        scheduler.scheduleAsync(() -> first, () -> {});
+        scheduler.schedule(ran::incrementAndGet, shed::countDown);
+        // Shed once its deadline passes although the permit is still held
+        Assert.assertTrue(shed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(ran.get(), 0);
+        Assert.assertEquals(scheduler.expired(), 1);
+        Assert.assertEquals(scheduler.queued(), 0);
+        first.complete(null);
+        scheduler.close();
+    }
+
+    @Test
+    public void testShedsQueuedWhenClosed() throws InterruptedException {
+        RenderScheduler scheduler = new RenderScheduler(1, 4, 10000);
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch shed = new CountDownLatch(2);
+        AtomicInteger ran = new AtomicInteger();
+        scheduler.schedule(() -> {
+            running.countDown();
+            await(new CountDownLatch(1)).run();
+        }, () -> {});
+        Assert.assertTrue(running.await(5, TimeUnit.SECONDS));
+        // Both requests are in the queue of the only thread
+        scheduler.schedule(ran::incrementAndGet, shed::countDown);
+        scheduler.schedule(ran::incrementAndGet, shed::countDown);
+        Assert.assertEquals(scheduler.queued(), 2);
+        scheduler.close();
+        Assert.assertTrue(shed.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(ran.get(), 0);
+        Assert.assertEquals(scheduler.queued(), 0);
+    }
+
+    @Test
+    public void testVirtualThreads() throws InterruptedException {
+        // Falls back to platform threads on JDKs without virtual threads
+        RenderScheduler scheduler =
+                new RenderScheduler(1, 1, 10000, 1, true);
+        CompletableFuture<Void> first = new CompletableFuture<Void>();
+        CountDownLatch second = new CountDownLatch(1);
+        Assert.assertTrue(scheduler.scheduleAsync(() -> first, () -> {}));
+        Assert.assertTrue(scheduler.schedule(second::countDown, () -> {}));
+        Assert.assertFalse(second.await(100, TimeUnit.MILLISECONDS));
+        if (scheduler.isVirtual()) {
+            // Waiting for a permit on a virtual thread of its own
+            Assert.assertEquals(scheduler.queued(), 1);
+            Assert.assertFalse(scheduler.schedule(() -> {}, () -> {}));
+            Assert.assertEquals(scheduler.rejected(), 1);
+        }
+        first.complete(null);
+        Assert.assertTrue(second.await(5, TimeUnit.SECONDS));
+        scheduler.close();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class RenderingEngineStateTest {
+
+    @Test
+    public void testOnlyChangesAreApplied() {
+        RenderingEngineState state = new RenderingEngineState();
+        state.reset(2);
+        Assert.assertTrue(state.setActive(0, true));
+        Assert.assertTrue(state.setActive(1, false));
+        Assert.assertTrue(state.setChannelWindow(0, 0, 255));
+        Assert.assertTrue(state.setRGBA(0, new int[] { 255, 0, 0, 255 }));
+        Assert.assertTrue(state.setModel("rgb"));
+
+        Assert.assertFalse(state.setActive(0, true));
+        Assert.assertFalse(state.setActive(1, false));
+        Assert.assertFalse(state.setChannelWindow(0, 0, 255));
+        Assert.assertFalse(state.setRGBA(0, new int[] { 255, 0, 0, 255 }));
+        Assert.assertFalse(state.setModel("rgb"));
+
+        Assert.assertTrue(state.setActive(1, true));
+        Assert.assertTrue(state.setChannelWindow(0, 0, 1024));
+        Assert.assertTrue(state.setRGBA(0, new int[] { 0, 255, 0, 255 }));
+        Assert.assertTrue(state.setModel("greyscale"));
+    }
+
+    @Test
+    public void testResetForgetsAppliedSettings() {
+        RenderingEngineState state = new RenderingEngineState();
+        state.reset(1);
+        state.setActive(0, true);
+        state.setResolution(0);
+        state.setCompressionQuality(0.9f);
+        state.setModel("rgb");
+        Assert.assertTrue(state.hasModel());
+        state.reset(1);
+        Assert.assertFalse(state.hasModel());
+        Assert.assertTrue(state.setActive(0, true));
+        Assert.assertTrue(state.setResolution(0));
+        Assert.assertTrue(state.setCompressionQuality(0.9f));
+    }
+}
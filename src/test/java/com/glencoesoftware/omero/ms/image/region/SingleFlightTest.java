@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class SingleFlightTest {
+
+    @Test
+    public void testFollowersShareResult() {
+        SingleFlight<String, byte[]> renders = new SingleFlight<>();
+        Assert.assertNull(renders.join("a"));
+        CompletableFuture<byte[]> follower = renders.join("a");
+        Assert.assertNotNull(follower);
+        Assert.assertNull(renders.join("b"));
+        Assert.assertEquals(renders.size(), 2);
+
+        byte[] imageRegion = new byte[] { 1, 2, 3 };
+        renders.complete("a", imageRegion);
+        Assert.assertSame(follower.join(), imageRegion);
+        Assert.assertEquals(renders.size(), 1);
+        // Once complete the next caller leads a new operation
+        Assert.assertNull(renders.join("a"));
+    }
+
+    @Test
+    public void testFollowersShareFailure() {
+        SingleFlight<String, byte[]> renders = new SingleFlight<>();
+        Assert.assertNull(renders.join("a"));
+        CompletableFuture<byte[]> follower = renders.join("a");
+        renders.fail("a", new IllegalStateException());
+        Assert.assertTrue(follower.isCompletedExceptionally());
+        Assert.assertEquals(renders.size(), 0);
+    }
+
+    @Test
+    public void testHasFollowers() {
+        SingleFlight<String, byte[]> renders = new SingleFlight<>();
+        Assert.assertFalse(renders.hasFollowers("a"));
+        Assert.assertNull(renders.join("a"));
+        Assert.assertFalse(renders.hasFollowers("a"));
+        renders.join("a");
+        Assert.assertTrue(renders.hasFollowers("a"));
+        renders.complete("a", new byte[0]);
+        Assert.assertFalse(renders.hasFollowers("a"));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import io.vertx.core.MultiMap;
+import omero.api.ResolutionDescription;
+
+public class TilePrefetcherTest {
+
+    /**
+     * 2500 x 1500 image whose resolution levels halve in size; 3 x 2
+     * tiles of 1024 x 1024 at full resolution
+     */
+    private final PyramidGeometry image =
+            geometry(2500, 1500, 1250, 750, 625, 375);
+
+    /**
+     * 3000 x 2000 image whose resolution levels are a third of the size of
+     * the next; 3 x 2 tiles of 1024 x 1024 at full resolution, a single
+     * tile at the next level
+     */
+    private final PyramidGeometry thirds =
+            geometry(3000, 2000, 1000, 667);
+
+    /**
+     * @param sizes width and height of each resolution level, full
+     * resolution first.
+     */
+    private static PyramidGeometry geometry(int... sizes) {
+        List<ResolutionDescription> descriptions =
+                new ArrayList<ResolutionDescription>();
+        for (int i = 0; i < sizes.length; i += 2) {
+            ResolutionDescription description = new ResolutionDescription();
+            description.sizeX = sizes[i];
+            description.sizeY = sizes[i + 1];
+            descriptions.add(description);
+        }
+        return new PyramidGeometry(
+                new int[] { 256, 256 }, descriptions.size(), descriptions);
+    }
+
+    private ImageRegionCtx tile(int resolution, int x, int y) {
+        MultiMap params = MultiMap.caseInsensitiveMultiMap();
+        params.add("imageId", "1");
+        params.add("z", "0");
+        params.add("t", "0");
+        params.add("tile", String.format(
+                "%d,%d,%d,1024,1024", resolution, x, y));
+        return new ImageRegionCtx(params, "session");
+    }
+
+    private List<String> positions(List<ImageRegionCtx> neighbours) {
+        return neighbours.stream()
+                .map(ctx -> String.format("%d,%d,%d",
+                        ctx.resolution, ctx.tile.getX(), ctx.tile.getY()))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testNeighboursAtFullResolution() {
+        List<ImageRegionCtx> neighbours =
+                TilePrefetcher.neighbours(tile(0, 0, 0), image);
+        Assert.assertEquals(
+                positions(neighbours),
+                Arrays.asList("0,1,0", "0,0,1", "0,1,1", "1,0,0"));
+        Assert.assertEquals(neighbours.get(0).omeroSessionKey, "session");
+        Assert.assertEquals((int) neighbours.get(0).tileWidth, 1024);
+    }
+
+    @Test
+    public void testNeighboursIncludeFinerLevel() {
+        // 2 x 1 tiles at resolution level 1 and a single tile at level 2
+        List<String> positions = positions(
+                TilePrefetcher.neighbours(tile(1, 1, 0), image));
+        Assert.assertEquals(
+                positions,
+                Arrays.asList("1,0,0", "2,0,0", "0,2,0", "0,2,1"));
+    }
+
+    @Test
+    public void testNeighboursOfUnevenLevels() {
+        // A level which halved would have a second column
+        Assert.assertEquals(
+                positions(TilePrefetcher.neighbours(tile(0, 2, 1), thirds)),
+                Arrays.asList("0,1,0", "0,2,0", "0,1,1", "1,0,0"));
+        // The single tile of level 1 covers all 3 x 2 tiles of level 0
+        Assert.assertEquals(
+                positions(TilePrefetcher.neighbours(tile(1, 0, 0), thirds)),
+                Arrays.asList(
+                        "0,0,0", "0,1,0", "0,2,0", "0,0,1", "0,1,1", "0,2,1"));
+    }
+
+    @Test
+    public void testNoNeighboursOutsideImage() {
+        Assert.assertTrue(
+                TilePrefetcher.neighbours(tile(0, 3, 0), image).isEmpty());
+        Assert.assertTrue(
+                TilePrefetcher.neighbours(tile(3, 0, 0), image).isEmpty());
+    }
+
+    @Test
+    public void testIsNear() {
+        TilePrefetcher.Position position =
+                new TilePrefetcher.Position(tile(1, 4, 4));
+        Assert.assertTrue(position.isNear(
+                new TilePrefetcher.Position(tile(1, 6, 2)), 2));
+        Assert.assertFalse(position.isNear(
+                new TilePrefetcher.Position(tile(1, 7, 4)), 2));
+        Assert.assertTrue(position.isNear(
+                new TilePrefetcher.Position(tile(0, 9, 9)), 0));
+        Assert.assertTrue(position.isNear(
+                new TilePrefetcher.Position(tile(2, 2, 2)), 0));
+        Assert.assertFalse(position.isNear(
+                new TilePrefetcher.Position(tile(3, 1, 1)), 2));
+    }
+}
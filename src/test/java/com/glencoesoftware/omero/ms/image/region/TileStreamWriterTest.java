@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerResponse;
+
+public class TileStreamWriterTest {
+
+    private Vertx vertx;
+
+    private HttpServer server;
+
+    /** Streams the tiles of the current test to a response */
+    private volatile BiConsumer<String, HttpServerResponse> streamer;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        vertx = Vertx.vertx();
+        vertx.eventBus().registerCodec(new BufferReferenceCodec());
+        CompletableFuture<HttpServer> listening =
+                new CompletableFuture<HttpServer>();
+        vertx.createHttpServer().requestHandler(request -> {
+            HttpServerResponse response = request.response();
+            response.setChunked(true);
+            String streamAddress = UUID.randomUUID().toString();
+            MessageConsumer<Buffer> consumer =
+                    vertx.eventBus().consumer(streamAddress);
+            consumer.handler(new TileStreamWriter(consumer, 1000, response));
+            consumer.completionHandler(result -> {
+                streamer.accept(streamAddress, response);
+            });
+        }).listen(0, "localhost", result -> {
+            if (result.succeeded()) {
+                listening.complete(result.result());
+            } else {
+                listening.completeExceptionally(result.cause());
+            }
+        });
+        server = listening.get(10, TimeUnit.SECONDS);
+    }
+
+    @AfterClass
+    public void tearDown() {
+        vertx.close();
+    }
+
+    private Buffer get() throws Exception {
+        CompletableFuture<Buffer> body = new CompletableFuture<Buffer>();
+        vertx.createHttpClient().getNow(
+                server.actualPort(), "localhost", "/", response -> {
+            response.bodyHandler(body::complete);
+            response.exceptionHandler(body::completeExceptionally);
+        });
+        return body.get(30, TimeUnit.SECONDS);
+    }
+
+    private static void sendTile(
+            EventBus eventBus, String streamAddress, int index, byte[] tile) {
+        eventBus.send(
+                streamAddress, BufferReferenceCodec.wrap(tile),
+                new DeliveryOptions()
+                        .setCodecName(BufferReferenceCodec.NAME)
+                        .addHeader("index", String.valueOf(index)));
+    }
+
+    private static void sendEnd(EventBus eventBus, String streamAddress) {
+        eventBus.send(
+                streamAddress, null,
+                new DeliveryOptions().addHeader("end", "true"));
+    }
+
+    @Test
+    public void testFraming() throws Exception {
+        streamer = (streamAddress, response) -> {
+            EventBus eventBus = vertx.eventBus();
+            sendTile(eventBus, streamAddress, 0, new byte[] { 1, 2, 3 });
+            sendTile(eventBus, streamAddress, 1, new byte[0]);
+            sendTile(eventBus, streamAddress, 2, new byte[] { 4 });
+            sendEnd(eventBus, streamAddress);
+        };
+        Buffer body = get();
+        Assert.assertEquals(body.length(), 8 + 3 + 8 + 8 + 1);
+        Assert.assertEquals(body.getInt(0), 0);
+        Assert.assertEquals(body.getInt(4), 3);
+        Assert.assertEquals(body.getBytes(8, 11), new byte[] { 1, 2, 3 });
+        Assert.assertEquals(body.getInt(11), 1);
+        Assert.assertEquals(body.getInt(15), 0);
+        Assert.assertEquals(body.getInt(19), 2);
+        Assert.assertEquals(body.getInt(23), 1);
+        Assert.assertEquals(body.getByte(27), 4);
+    }
+
+    @Test
+    public void testSlowClient() throws Exception {
+        int tiles = 64;
+        int size = 256 * 1024;
+        streamer = (streamAddress, response) -> {
+            // Fill the write queue with every tile
+            response.setWriteQueueMaxSize(size / 4);
+            EventBus eventBus = vertx.eventBus();
+            for (int index = 0; index < tiles; index++) {
+                byte[] tile = new byte[size];
+                tile[0] = (byte) index;
+                tile[size - 1] = (byte) index;
+                sendTile(eventBus, streamAddress, index, tile);
+            }
+            sendEnd(eventBus, streamAddress);
+        };
+        Buffer body = get();
+        Assert.assertEquals(body.length(), tiles * (8 + size));
+        for (int index = 0; index < tiles; index++) {
+            int offset = index * (8 + size);
+            Assert.assertEquals(body.getInt(offset), index);
+            Assert.assertEquals(body.getInt(offset + 4), size);
+            Assert.assertEquals(body.getByte(offset + 8), (byte) index);
+            Assert.assertEquals(
+                    body.getByte(offset + 8 + size - 1), (byte) index);
+        }
+    }
+}
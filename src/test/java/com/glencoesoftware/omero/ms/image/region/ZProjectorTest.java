@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2017 Glencoe Software, Inc. All rights reserved.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.glencoesoftware.omero.ms.image.region;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import omero.ServerError;
+
+public class ZProjectorTest {
+
+    private static final int SIZE_Z = 23;
+
+    private final ZProjector projector = new ZProjector(4);
+
+    /**
+     * Single resolution, unsigned 16 bit, 2 x 1 pixel stub where the value
+     * of the first pixel is <code>z * 10</code> and of the second
+     * <code>(SIZE_Z - z) * 1000</code>.  Like the raw pixels store backed
+     * source it fails if it is entered concurrently.
+     */
+    private final PixelSource source = new PixelSource() {
+
+        private final AtomicInteger readers = new AtomicInteger();
+
+        @Override
+        public int getResolutionLevels() {
+            return 1;
+        }
+
+        @Override
+        public int[] getSize(int resolution) {
+            return new int[] { 2, 1 };
+        }
+
+        @Override
+        public int[] getTileSize() {
+            return new int[] { 2, 1 };
+        }
+
+        @Override
+        public int getByteWidth() {
+            return 2;
+        }
+
+        @Override
+        public boolean isSigned() {
+            return false;
+        }
+
+        @Override
+        public boolean isFloat() {
+            return false;
+        }
+
+        @Override
+        public byte[] getRegion(
+                int resolution, int z, int c, int t,
+                int x, int y, int width, int height) throws ServerError {
+            if (readers.incrementAndGet() > 1) {
+                throw new IllegalStateException("Entered concurrently");
+            }
+            try {
+                if (z >= SIZE_Z) {
+                    throw new ServerError();
+                }
+                // Widen the window in which concurrent reads would overlap
+                Thread.sleep(1);
+                int a = z * 10;
+                int b = (SIZE_Z - z) * 1000;
+                return new byte[] {
+                        (byte) (a >> 8), (byte) a,
+                        (byte) (b >> 8), (byte) b };
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                readers.decrementAndGet();
+            }
+        }
+    };
+
+    @AfterClass
+    public void tearDown() {
+        projector.close();
+    }
+
+    private double[] project(String projection) throws ServerError {
+        return projector.project(
+                source, ZProjector.Projection.parse(projection, SIZE_Z),
+                0, 0, 0, 0, 0, 2, 1);
+    }
+
+    @Test
+    public void testParse() {
+        ZProjector.Projection projection =
+                ZProjector.Projection.parse("intmean", SIZE_Z);
+        Assert.assertEquals(
+                projection.algorithm, ZProjector.Algorithm.INTMEAN);
+        Assert.assertEquals(projection.start, 0);
+        Assert.assertEquals(projection.end, SIZE_Z - 1);
+        projection = ZProjector.Projection.parse("IntMax|5:20", SIZE_Z);
+        Assert.assertEquals(projection.algorithm, ZProjector.Algorithm.INTMAX);
+        Assert.assertEquals(projection.start, 5);
+        Assert.assertEquals(projection.end, 20);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testParseUnsupported() {
+        ZProjector.Projection.parse("normal", SIZE_Z);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testParseOutsideImage() {
+        ZProjector.Projection.parse("intmax|5:" + SIZE_Z, SIZE_Z);
+    }
+
+    @Test
+    public void testIntMax() throws ServerError {
+        Assert.assertEquals(
+                project("intmax"),
+                new double[] { (SIZE_Z - 1) * 10, SIZE_Z * 1000 });
+        Assert.assertEquals(
+                project("intmax|3:17"),
+                new double[] { 170, (SIZE_Z - 3) * 1000 });
+    }
+
+    @Test
+    public void testIntSum() throws ServerError {
+        double a = 0;
+        double b = 0;
+        for (int z = 2; z <= 19; z++) {
+            a += z * 10;
+            b += (SIZE_Z - z) * 1000;
+        }
+        Assert.assertEquals(project("intsum|2:19"), new double[] { a, b });
+    }
+
+    @Test
+    public void testIntMean() throws ServerError {
+        double[] sum = project("intsum");
+        double[] mean = project("intmean");
+        Assert.assertEquals(mean[0], sum[0] / SIZE_Z, 1e-9);
+        Assert.assertEquals(mean[1], sum[1] / SIZE_Z, 1e-9);
+    }
+
+    @Test
+    public void testSingleSection() throws ServerError {
+        Assert.assertEquals(
+                project("intmax|4:4"),
+                new double[] { 40, (SIZE_Z - 4) * 1000 });
+    }
+
+    @Test
+    public void testSectionsAreReadOneAtATime() throws ServerError {
+        // The stub throws if more than one Z section is read at once
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(
+                    project("intmax"),
+                    new double[] { (SIZE_Z - 1) * 10, SIZE_Z * 1000 });
+        }
+    }
+
+    /**
+     * Single resolution, signed 16 bit stub of many Z sections with
+     * arbitrary, reproducible pixel values.
+     */
+    private static final class ManySectionsSource implements PixelSource {
+
+        static final int SIZE_Z = 1000;
+
+        static final int WIDTH = 16;
+
+        static final int HEIGHT = 8;
+
+        static short value(int z, int i) {
+            return (short) ((z * 7919 + i * 104729) % 65536);
+        }
+
+        @Override
+        public int getResolutionLevels() {
+            return 1;
+        }
+
+        @Override
+        public int[] getSize(int resolution) {
+            return new int[] { WIDTH, HEIGHT };
+        }
+
+        @Override
+        public int[] getTileSize() {
+            return new int[] { WIDTH, HEIGHT };
+        }
+
+        @Override
+        public int getByteWidth() {
+            return 2;
+        }
+
+        @Override
+        public boolean isSigned() {
+            return true;
+        }
+
+        @Override
+        public boolean isFloat() {
+            return false;
+        }
+
+        @Override
+        public byte[] getRegion(
+                int resolution, int z, int c, int t,
+                int x, int y, int width, int height) {
+            byte[] region = new byte[width * height * 2];
+            for (int i = 0; i < width * height; i++) {
+                short v = value(z, i);
+                region[i * 2] = (byte) (v >> 8);
+                region[i * 2 + 1] = (byte) v;
+            }
+            return region;
+        }
+    }
+
+    @Test
+    public void testManySectionsMatchSerialReduction() throws ServerError {
+        PixelSource many = new ManySectionsSource();
+        int size = ManySectionsSource.WIDTH * ManySectionsSource.HEIGHT;
+        int start = 3;
+        int end = ManySectionsSource.SIZE_Z - 2;
+        for (ZProjector.Algorithm algorithm
+                : ZProjector.Algorithm.values()) {
+            double[] expected = new double[size];
+            for (int i = 0; i < size; i++) {
+                expected[i] = algorithm == ZProjector.Algorithm.INTMAX?
+                        Double.NEGATIVE_INFINITY : 0;
+                for (int z = start; z <= end; z++) {
+                    short v = ManySectionsSource.value(z, i);
+                    expected[i] = algorithm == ZProjector.Algorithm.INTMAX?
+                            Math.max(expected[i], v) : expected[i] + v;
+                }
+                if (algorithm == ZProjector.Algorithm.INTMEAN) {
+                    expected[i] /= end - start + 1;
+                }
+            }
+            double[] projected = projector.project(
+                    many, ZProjector.Projection.parse(
+                            algorithm.name() + "|" + start + ":" + end,
+                            ManySectionsSource.SIZE_Z),
+                    0, 0, 0, 0, 0,
+                    ManySectionsSource.WIDTH, ManySectionsSource.HEIGHT);
+            for (int i = 0; i < size; i++) {
+                Assert.assertEquals(projected[i], expected[i], 1e-6);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = ServerError.class)
+    public void testServerErrorIsRethrown() throws ServerError {
+        projector.project(
+                source, new ZProjector.Projection(
+                        ZProjector.Algorithm.INTMAX, 0, SIZE_Z + 8),
+                0, 0, 0, 0, 0, 2, 1);
+    }
+}